@@ -0,0 +1,94 @@
+package com.luketn.benchmark;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureDedupMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.bson.RawBsonDocument;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process stand-in for WeatherDataAccess, serving the projected seed data instead of querying MongoDB.
+ * Reports are decoded up front so that benchmarks of the service measure only its own work.
+ */
+public class FakeWeatherDataAccess extends WeatherDataAccess {
+    private final List<SeaTemperatureReading> seaTemperatureReadings;
+    private final Duration fetchLatency;
+    private final int fetchSize;
+
+    /**
+     * @param copies how many times to repeat the seed data, simulating a larger collection with duplicate coordinates
+     */
+    public FakeWeatherDataAccess(List<RawBsonDocument> seedDocuments, int copies) {
+        this(seedDocuments, copies, Duration.ZERO, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param fetchLatency how long to wait before each fetchSize readings within a bounding box, simulating the round
+     *                     trip of a cursor's getMore, and before each count, simulating the round trip of countDocuments
+     *                     (so the counts the parallel scan partitions by cost what they would against MongoDB)
+     */
+    public FakeWeatherDataAccess(List<RawBsonDocument> seedDocuments, int copies, Duration fetchLatency, int fetchSize) {
+        super(null, null, 500, SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM);
+        this.fetchLatency = fetchLatency;
+        this.fetchSize = fetchSize;
+        List<SeaTemperatureReading> readings = new ArrayList<>(seedDocuments.size());
+        for (RawBsonDocument document : seedDocuments) {
+            readings.add(SeedData.decodeSeaTemperatureReading(SeedData.projectSeaTemperature(document)));
+        }
+        this.seaTemperatureReadings = new ArrayList<>(readings.size() * copies);
+        for (int i = 0; i < copies; i++) {
+            this.seaTemperatureReadings.addAll(readings);
+        }
+    }
+
+    @Override
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+        int fetched = 0;
+        for (SeaTemperatureReading reading : seaTemperatureReadings) {
+            if (!contains(boundingBox, reading)) {
+                continue;
+            }
+            if (fetched++ % fetchSize == 0 && fetchLatency.isPositive()) {
+                if (fetched > 1) {
+                    seaTemperatureConsumer.fetchingMore();
+                }
+                roundTrip();
+            }
+            seaTemperatureConsumer.accept(reading.longitude(), reading.latitude(), reading.seaSurfaceTemperature());
+        }
+    }
+
+    @Override
+    public long countSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, int limit) {
+        if (fetchLatency.isPositive()) {
+            roundTrip();
+        }
+        return seaTemperatureReadings.stream()
+                .filter(reading -> contains(boundingBox, reading))
+                .limit(limit)
+                .count();
+    }
+
+    private void roundTrip() {
+        try {
+            Thread.sleep(fetchLatency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching", e);
+        }
+    }
+
+    private static boolean contains(BoundingBox boundingBox, SeaTemperatureReading reading) {
+        if (!reading.hasPosition() || !reading.hasSeaSurfaceTemperature()) {
+            return false;
+        }
+        return reading.longitude() >= boundingBox.west() && reading.longitude() <= boundingBox.east()
+                && reading.latitude() >= boundingBox.south() && reading.latitude() <= boundingBox.north();
+    }
+}
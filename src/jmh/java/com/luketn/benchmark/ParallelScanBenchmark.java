@@ -0,0 +1,58 @@
+package com.luketn.benchmark;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.seatemperature.AdaptiveBatchPolicy;
+import com.luketn.seatemperature.SeaTemperatureParallelScan;
+import com.luketn.seatemperature.SeaTemperatureService;
+import com.luketn.seatemperature.SeaTemperatureTileCache;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to the last event of a whole earth stream, from a single cursor or from concurrent cursors, against a fake
+ * collection with a simulated round trip per cursor batch (as the seed data alone is read faster than any real query).
+ * Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args="ParallelScanBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelScanBenchmark {
+    private static final BoundingBox earth = new BoundingBox(-90.0, 90.0, -180.0, 180.0);
+
+    /**
+     * Cursors read concurrently, 1 being the sequential path.
+     */
+    @Param({"1", "2", "4", "8"})
+    public int cursors;
+
+    /**
+     * The simulated round trip of each cursor batch, in milliseconds.
+     */
+    @Param({"1", "5"})
+    public int fetchLatencyMillis;
+
+    private SeaTemperatureService seaTemperatureService;
+
+    @Setup
+    public void setup() {
+        FakeWeatherDataAccess weatherDataAccess = new FakeWeatherDataAccess(SeedData.loadDocuments(), 10, Duration.ofMillis(fetchLatencyMillis), 500);
+        AdaptiveBatchPolicy batchPolicy = new AdaptiveBatchPolicy(SeaTemperatureService.initial_batch_size, 500, 10, 2000, 2.0, Duration.ofMillis(100));
+        // a cursor per 1/cursors of the earth's readings, so it is always read by exactly that many
+        long readings = weatherDataAccess.countSeaTemperatures(earth, SeaTemperatureQueryOptions.DEFAULTS, Integer.MAX_VALUE);
+        SeaTemperatureParallelScan parallelScan = new SeaTemperatureParallelScan(weatherDataAccess, cursors > 1, cursors, (int) (readings / cursors));
+        seaTemperatureService = SeaTemperatureBenchmark.seaTemperatureService(weatherDataAccess,
+                new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO), parallelScan, batchPolicy);
+    }
+
+    @Benchmark
+    public void timeToLastEvent(Blackhole blackhole) {
+        seaTemperatureService.streamSeaTemperatures(earth, blackhole::consume);
+    }
+}
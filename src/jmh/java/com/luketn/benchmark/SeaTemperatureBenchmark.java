@@ -0,0 +1,187 @@
+package com.luketn.benchmark;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.seatemperature.AdaptiveBatchPolicy;
+import com.luketn.seatemperature.SeaTemperatureLevelOfDetail;
+import com.luketn.seatemperature.SeaTemperatureParallelScan;
+import com.luketn.seatemperature.SeaTemperatureService;
+import com.luketn.seatemperature.SeaTemperatureTileCache;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.util.JsonUtil;
+import com.luketn.util.SseCompression;
+import com.luketn.util.SynchronousSse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the sea temperature streaming hot path, from POJO decoding through to SSE encoding.
+ * Run with: mvn -Pbenchmark test-compile exec:exec
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeaTemperatureBenchmark {
+    private static final BoundingBox earth = new BoundingBox(-90.0, 90.0, -180.0, 180.0);
+
+    /**
+     * How many times the seed data is repeated. Repeats have the same coordinates, so exercise the dedup path.
+     */
+    @Param({"1", "10"})
+    public int copies;
+
+    private SeaTemperatureService seaTemperatureService;
+    private SeaTemperatureService cachedSeaTemperatureService;
+    private SynchronousSse sse;
+    private SynchronousSse coalescingSse;
+    private SynchronousSse gzipSse;
+    private RawBsonDocument fullDocumentsBatch;
+    private RawBsonDocument projectedDocumentsBatch;
+    private List<SeaTemperature> batch;
+
+    @Setup
+    public void setup() {
+        List<RawBsonDocument> seedDocuments = SeedData.loadDocuments();
+
+        FakeWeatherDataAccess weatherDataAccess = new FakeWeatherDataAccess(seedDocuments, copies);
+        AdaptiveBatchPolicy batchPolicy = new AdaptiveBatchPolicy(SeaTemperatureService.initial_batch_size, 500, 10, 2000, 2.0, Duration.ofMillis(100));
+        seaTemperatureService = seaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO),
+                new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy);
+        cachedSeaTemperatureService = seaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofDays(1)),
+                new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy);
+        sse = SynchronousSse.forResponse(new DiscardingResponse());
+        coalescingSse = SynchronousSse.forResponse(new DiscardingResponse(), new SynchronousSse.FlushPolicy(8, Duration.ofMillis(50)));
+        gzipSse = SynchronousSse.forResponse(new DiscardingResponse(), new SynchronousSse.FlushPolicy(8, Duration.ofMillis(50)),
+                new SseCompression(true, -1), SseCompression.Encoding.GZIP);
+        List<RawBsonDocument> projectedDocuments = new ArrayList<>(seedDocuments.size());
+        for (RawBsonDocument document : seedDocuments) {
+            projectedDocuments.add(SeedData.projectSeaTemperature(document));
+        }
+        fullDocumentsBatch = SeedData.toBatch(seedDocuments);
+        projectedDocumentsBatch = SeedData.toBatch(projectedDocuments);
+
+        batch = new ArrayList<>();
+        seaTemperatureService.streamSeaTemperatures(earth, seaTemperatures -> {
+            if (batch.isEmpty()) {
+                batch.addAll(seaTemperatures);
+            }
+        });
+    }
+
+    /**
+     * A service reading every report, without the grid or level of detail.
+     */
+    static SeaTemperatureService seaTemperatureService(FakeWeatherDataAccess weatherDataAccess, SeaTemperatureTileCache tileCache, SeaTemperatureParallelScan parallelScan, AdaptiveBatchPolicy batchPolicy) {
+        return new SeaTemperatureService(weatherDataAccess, tileCache, new SeaTemperatureGrid(null, false, false, Duration.ZERO, 0, 0),
+                new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), parallelScan, batchPolicy, new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public void streamSeaTemperatures(Blackhole blackhole) {
+        seaTemperatureService.streamSeaTemperatures(earth, blackhole::consume);
+    }
+
+    @Benchmark
+    public void streamSeaTemperaturesFromCache(Blackhole blackhole) {
+        cachedSeaTemperatureService.streamSeaTemperatures(earth, blackhole::consume);
+    }
+
+    @Benchmark
+    public void streamSeaTemperaturesToSse() {
+        seaTemperatureService.streamSeaTemperatures(earth, sse::sendEvent);
+    }
+
+    @Benchmark
+    public void sendEvent() {
+        sse.sendEvent(batch);
+    }
+
+    @Benchmark
+    public void sendEventCoalesced() {
+        coalescingSse.sendEvent(batch);
+    }
+
+    @Benchmark
+    public void sendEventGzip() {
+        gzipSse.sendEvent(batch);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return JsonUtil.toJson(batch);
+    }
+
+    @Benchmark
+    public void decodeWeatherReports(Blackhole blackhole) {
+        SeedData.decodeBatch(fullDocumentsBatch, SeedData.weatherReportCodec, blackhole::consume);
+    }
+
+    @Benchmark
+    public void decodeProjectedWeatherReports(Blackhole blackhole) {
+        SeedData.decodeBatch(projectedDocumentsBatch, SeedData.weatherReportCodec, blackhole::consume);
+    }
+
+    @Benchmark
+    public void decodeSeaTemperatureReadings(Blackhole blackhole) {
+        SeedData.decodeBatch(projectedDocumentsBatch, SeedData.seaTemperatureReadingCodec, blackhole::consume);
+    }
+
+    /**
+     * A servlet response which encodes everything written to it, then throws it away.
+     */
+    private static class DiscardingResponse extends HttpServletResponseWrapper {
+        private final PrintWriter writer = new PrintWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+
+        DiscardingResponse() {
+            super(new MockHttpServletResponse());
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public void flushBuffer() {
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.luketn.benchmark;
+
+import com.luketn.dataaccess.mongodb.MongoDBProvider;
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.datamodel.mongodb.WeatherReport;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Loads the test seed data (mongoimport extended JSON) into memory, so benchmarks can run without a MongoDB server.
+ */
+public class SeedData {
+    public static final String SEED_DATA_RESOURCE = "/seed-data/sample_weatherdata.data.json";
+
+    /**
+     * The codec registry the application configures on its MongoClient.
+     */
+    public static final CodecRegistry codecRegistry = MongoDBProvider.createClientSettings("mongodb://localhost:27017").getCodecRegistry();
+
+    public static final Codec<WeatherReport> weatherReportCodec = codecRegistry.get(WeatherReport.class);
+    public static final Codec<SeaTemperatureReading> seaTemperatureReadingCodec = codecRegistry.get(SeaTemperatureReading.class);
+    private static final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    public static List<RawBsonDocument> loadDocuments() {
+        try (InputStream inputStream = SeedData.class.getResourceAsStream(SEED_DATA_RESOURCE)) {
+            if (inputStream == null) {
+                throw new IllegalStateException("Seed data not found on the classpath: " + SEED_DATA_RESOURCE);
+            }
+            String json = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            BsonArray documents = BsonArray.parse(json);
+            List<RawBsonDocument> rawDocuments = new ArrayList<>(documents.size());
+            for (BsonValue document : documents) {
+                rawDocuments.add(new RawBsonDocument(document.asDocument(), new BsonDocumentCodec()));
+            }
+            return rawDocuments;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read seed data", e);
+        }
+    }
+
+    /**
+     * Applies the same projection as WeatherDataAccess.streamSeaTemperatures does on the server.
+     */
+    public static RawBsonDocument projectSeaTemperature(BsonDocument document) {
+        BsonDocument projected = new BsonDocument();
+        BsonDocument position = document.getDocument("position", null);
+        if (position != null && position.containsKey("coordinates")) {
+            projected.append("position", new BsonDocument("coordinates", position.get("coordinates")));
+        }
+        BsonDocument seaSurfaceTemperature = document.getDocument("seaSurfaceTemperature", null);
+        if (seaSurfaceTemperature != null && seaSurfaceTemperature.containsKey("value")) {
+            projected.append("seaSurfaceTemperature", new BsonDocument("value", seaSurfaceTemperature.get("value")));
+        }
+        return new RawBsonDocument(projected, new BsonDocumentCodec());
+    }
+
+    public static WeatherReport decodeWeatherReport(RawBsonDocument document) {
+        return weatherReportCodec.decode(binaryReader(document), decoderContext);
+    }
+
+    public static SeaTemperatureReading decodeSeaTemperatureReading(RawBsonDocument document) {
+        return seaTemperatureReadingCodec.decode(binaryReader(document), decoderContext);
+    }
+
+    /**
+     * Packs documents into a single buffer, like a cursor batch in a server reply.
+     */
+    public static RawBsonDocument toBatch(List<RawBsonDocument> documents) {
+        return new RawBsonDocument(new BsonDocument("nextBatch", new BsonArray(documents)), new BsonDocumentCodec());
+    }
+
+    /**
+     * Decodes each document in a batch with one reader, as the driver does for a cursor batch.
+     */
+    public static <T> void decodeBatch(RawBsonDocument batch, Codec<T> codec, Consumer<T> consumer) {
+        try (BsonReader reader = binaryReader(batch)) {
+            reader.readStartDocument();
+            reader.readName();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                consumer.accept(codec.decode(reader, decoderContext));
+            }
+            reader.readEndArray();
+            reader.readEndDocument();
+        }
+    }
+
+    // RawBsonDocument.asBsonReader() decodes the whole document first, where the driver reads straight from the buffer
+    private static BsonReader binaryReader(RawBsonDocument document) {
+        return new BsonBinaryReader(document.getByteBuffer().asNIO());
+    }
+}
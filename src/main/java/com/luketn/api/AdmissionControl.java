@@ -0,0 +1,113 @@
+package com.luketn.api;
+
+import com.luketn.util.AdmissionLimiter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The admission limiters in front of the sea temperature streams and the report list, which share the MongoDB connection
+ * pool. Virtual threads put no cap on concurrent requests, so without these every request is accepted and they all slow
+ * down together. Disabled, every request is admitted.
+ */
+@Component
+public class AdmissionControl implements MeterBinder {
+    private final boolean enabled;
+    private final Duration retryAfter;
+    private final AdmissionLimiter seaTemperatureStreams;
+    private final AdmissionLimiter reportLists;
+
+    public AdmissionControl(
+            @Value("${mongodb-schema.admission.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.admission.min-limit:4}") int minLimit,
+            @Value("${mongodb-schema.admission.max-wait:250ms}") Duration maxWait,
+            @Value("${mongodb-schema.admission.retry-after:1s}") Duration retryAfter,
+            @Value("${mongodb-schema.admission.sea-temperature.initial-limit:32}") int seaTemperatureInitialLimit,
+            @Value("${mongodb-schema.admission.sea-temperature.max-limit:128}") int seaTemperatureMaxLimit,
+            @Value("${mongodb-schema.admission.sea-temperature.max-queued:16}") int seaTemperatureMaxQueued,
+            @Value("${mongodb-schema.admission.sea-temperature.latency-target:1s}") Duration seaTemperatureLatencyTarget,
+            @Value("${mongodb-schema.admission.report-list.initial-limit:32}") int reportListInitialLimit,
+            @Value("${mongodb-schema.admission.report-list.max-limit:128}") int reportListMaxLimit,
+            @Value("${mongodb-schema.admission.report-list.max-queued:32}") int reportListMaxQueued,
+            @Value("${mongodb-schema.admission.report-list.latency-target:250ms}") Duration reportListLatencyTarget) {
+        this.enabled = enabled;
+        this.retryAfter = retryAfter;
+        this.seaTemperatureStreams = new AdmissionLimiter(seaTemperatureInitialLimit, minLimit, seaTemperatureMaxLimit, seaTemperatureMaxQueued, maxWait, seaTemperatureLatencyTarget);
+        this.reportLists = new AdmissionLimiter(reportListInitialLimit, minLimit, reportListMaxLimit, reportListMaxQueued, maxWait, reportListLatencyTarget);
+    }
+
+    /**
+     * A permit to stream sea temperatures, or null to turn the request away (see retryAfterSeconds).
+     */
+    public AdmissionLimiter.Permit admitSeaTemperatureStream() {
+        return admit(seaTemperatureStreams);
+    }
+
+    /**
+     * A permit to list reports, or null to turn the request away (see retryAfterSeconds).
+     */
+    public AdmissionLimiter.Permit admitReportList() {
+        return admit(reportLists);
+    }
+
+    private AdmissionLimiter.Permit admit(AdmissionLimiter limiter) {
+        if (!enabled) {
+            return AdmissionLimiter.UNLIMITED;
+        }
+        try {
+            return limiter.tryAcquire();
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * The Retry-After header value for turned away requests.
+     */
+    public String retryAfterSeconds() {
+        return Long.toString(Math.max(1, retryAfter.toSeconds()));
+    }
+
+    public record AdmissionControlStats(
+            boolean enabled,
+            AdmissionLimiter.AdmissionStats seaTemperatureStreams,
+            AdmissionLimiter.AdmissionStats reportLists
+    ) {}
+
+    public AdmissionControlStats stats() {
+        return new AdmissionControlStats(enabled, seaTemperatureStreams.stats(), reportLists.stats());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Map<String, AdmissionLimiter> limiters = Map.of("sea_temperature", seaTemperatureStreams, "report_list", reportLists);
+        limiters.forEach((endpoint, limiter) -> {
+            gauge(registry, "admission.limit", "Requests admitted at once", endpoint, limiter, l -> l.stats().limit());
+            gauge(registry, "admission.in.flight", "Requests admitted and not yet finished", endpoint, limiter, l -> l.stats().inFlight());
+            gauge(registry, "admission.queued", "Requests waiting to be admitted", endpoint, limiter, l -> l.stats().queued());
+            FunctionCounter.builder("admission.admitted", limiter, l -> l.stats().admitted())
+                    .description("Requests admitted")
+                    .tag("endpoint", endpoint)
+                    .register(registry);
+            FunctionCounter.builder("admission.rejected", limiter, l -> l.stats().rejected())
+                    .description("Requests turned away with 503")
+                    .tag("endpoint", endpoint)
+                    .register(registry);
+        });
+    }
+
+    private static void gauge(MeterRegistry registry, String name, String description, String endpoint, AdmissionLimiter limiter, ToDoubleFunction<AdmissionLimiter> value) {
+        Gauge.builder(name, limiter, value)
+                .description(description)
+                .tag("endpoint", endpoint)
+                .register(registry);
+    }
+}
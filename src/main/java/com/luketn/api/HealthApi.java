@@ -1,5 +1,9 @@
 package com.luketn.api;
 
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -7,8 +11,25 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 @RequestMapping("/health")
 public class HealthApi {
+    private final ApplicationAvailability applicationAvailability;
+
+    public HealthApi(ApplicationAvailability applicationAvailability) {
+        this.applicationAvailability = applicationAvailability;
+    }
+
     @GetMapping(produces = "text/plain")
     public String check() {
         return "OK";
     }
+
+    /**
+     * Readiness, as opposed to liveness: 503 until the application has started (including the MongoDB warm-up, when enabled).
+     */
+    @GetMapping(value = "/ready", produces = "text/plain")
+    public ResponseEntity<String> ready() {
+        if (applicationAvailability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC) {
+            return ResponseEntity.ok("READY");
+        }
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("NOT READY");
+    }
 }
@@ -0,0 +1,16 @@
+package com.luketn.api;
+
+/**
+ * How the reports found by a batch lookup are written to the client.
+ */
+public enum ReportBatchFormat {
+    /**
+     * A JSON object: {"reports": [...], "missing": [ids with no report]}.
+     */
+    JSON,
+    /**
+     * Newline delimited JSON (application/x-ndjson): a line per report, then a final {"missing": [...]} line.
+     * Selected with an 'Accept: application/x-ndjson' request header.
+     */
+    NDJSON
+}
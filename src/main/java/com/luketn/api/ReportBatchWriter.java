@@ -0,0 +1,109 @@
+package com.luketn.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.luketn.datamodel.mongodb.WeatherReport;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the reports of a batch lookup to the response as they arrive, in either ReportBatchFormat.
+ * Nothing is written until the first report (or the end), so a lookup which fails before any report is found can still
+ * be answered with an error status. The first report is flushed straight away; the rest as the response buffer fills.
+ */
+class ReportBatchWriter {
+    private final HttpServletResponse response;
+    private final ObjectMapper objectMapper;
+    // flushing is left to the writer, rather than after each report
+    private final ObjectWriter reportWriter;
+    private final ReportBatchFormat format;
+    private JsonGenerator generator;
+    private int reportCount = 0;
+
+    ReportBatchWriter(HttpServletResponse response, ObjectMapper objectMapper, ReportBatchFormat format) {
+        this.response = response;
+        this.objectMapper = objectMapper;
+        this.reportWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.format = format;
+    }
+
+    boolean started() {
+        return generator != null;
+    }
+
+    /**
+     * Writes a report.
+     */
+    void write(WeatherReport report) throws IOException {
+        start();
+        reportWriter.writeValue(generator, report);
+        written();
+    }
+
+    /**
+     * Writes a report already serialized as JSON (e.g. by the report cache).
+     */
+    void write(byte[] reportJson) throws IOException {
+        start();
+        generator.writeRawValue(new String(reportJson, StandardCharsets.UTF_8));
+        written();
+    }
+
+    /**
+     * Ends the response with the ids which had no report.
+     */
+    void finish(List<String> missing) throws IOException {
+        start();
+        if (format == ReportBatchFormat.JSON) {
+            generator.writeEndArray();
+            writeMissing(missing);
+            generator.writeEndObject();
+        } else {
+            generator.writeStartObject();
+            writeMissing(missing);
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+        generator.close();
+        response.flushBuffer();
+    }
+
+    private void writeMissing(List<String> missing) throws IOException {
+        generator.writeArrayFieldStart("missing");
+        for (String id : missing) {
+            generator.writeString(id);
+        }
+        generator.writeEndArray();
+    }
+
+    private void start() throws IOException {
+        if (generator != null) {
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType(format == ReportBatchFormat.NDJSON ? "application/x-ndjson" : "application/json");
+        generator = objectMapper.getFactory().createGenerator(response.getOutputStream());
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (format == ReportBatchFormat.JSON) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("reports");
+        } else {
+            generator.setRootValueSeparator(null);
+        }
+    }
+
+    private void written() throws IOException {
+        if (format == ReportBatchFormat.NDJSON) {
+            generator.writeRaw('\n');
+        }
+        if (++reportCount == 1) {
+            generator.flush();
+        }
+    }
+}
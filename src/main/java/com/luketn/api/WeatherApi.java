@@ -1,63 +1,601 @@
 package com.luketn.api;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.luketn.dataaccess.mongodb.ReportCache;
+import com.luketn.dataaccess.mongodb.ReportFields;
+import com.luketn.dataaccess.mongodb.SeaTemperatureDedupMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
 import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.seatemperature.AdaptiveBatchPolicy;
+import com.luketn.seatemperature.SeaTemperatureFormat;
+import com.luketn.seatemperature.SeaTemperatureLevelOfDetail;
+import com.luketn.seatemperature.SeaTemperatureLiveFeed;
+import com.luketn.seatemperature.SeaTemperatureOverflowPolicy;
+import com.luketn.seatemperature.SeaTemperatureParallelScan;
 import com.luketn.seatemperature.SeaTemperatureService;
+import com.luketn.seatemperature.SeaTemperatureStreamEngine;
+import com.luketn.seatemperature.SeaTemperatureSubscription;
+import com.luketn.seatemperature.SeaTemperatureTileCache;
 import com.luketn.datamodel.mongodb.WeatherReport;
 import com.luketn.datamodel.mongodb.WeatherReportSummaryList;
 import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatchEncoder;
+import com.luketn.util.AdmissionLimiter;
+import com.luketn.util.AsyncSse;
+import com.luketn.util.FramedStream;
+import com.luketn.util.JsonUtil;
+import com.luketn.util.SseCompression;
 import com.luketn.util.SynchronousSse;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 
 @RestController
 @RequestMapping("/weather")
 public class WeatherApi {
+    private static final Logger log = LoggerFactory.getLogger(WeatherApi.class);
+    private static final String too_many_streams = "Too many sea temperature streams, retry shortly.";
+
     private final WeatherDataAccess weatherDataAccess;
+    private final ReportCache reportCache;
+    private final ObjectMapper objectMapper;
+    private final int maxBatchReports;
     private final SeaTemperatureService seaTemperatureService;
+    private final SeaTemperatureTileCache seaTemperatureTileCache;
+    private final SeaTemperatureGrid seaTemperatureGrid;
+    private final SeaTemperatureLevelOfDetail seaTemperatureLevelOfDetail;
+    private final SeaTemperatureParallelScan seaTemperatureParallelScan;
+    private final SeaTemperatureLiveFeed seaTemperatureLiveFeed;
+    private final AdaptiveBatchPolicy batchPolicy;
+    private final SseCompression sseCompression;
+    private final AdmissionControl admissionControl;
+    private final SeaTemperatureStreamEngine defaultStreamEngine;
+    private final Duration reactiveStreamTimeout;
+    private final SynchronousSse.FlushPolicy sseFlushPolicy;
 
-    public WeatherApi(WeatherDataAccess weatherDataAccess, SeaTemperatureService seaTemperatureService) {
+    public WeatherApi(
+            WeatherDataAccess weatherDataAccess,
+            ReportCache reportCache,
+            ObjectMapper objectMapper,
+            SeaTemperatureService seaTemperatureService,
+            SeaTemperatureTileCache seaTemperatureTileCache,
+            SeaTemperatureGrid seaTemperatureGrid,
+            SeaTemperatureLevelOfDetail seaTemperatureLevelOfDetail,
+            SeaTemperatureParallelScan seaTemperatureParallelScan,
+            SeaTemperatureLiveFeed seaTemperatureLiveFeed,
+            AdaptiveBatchPolicy batchPolicy,
+            SseCompression sseCompression,
+            AdmissionControl admissionControl,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-batch.max-ids:100}") int maxBatchReports,
+            @Value("${mongodb-schema.seatemperature.stream-engine:SYNCHRONOUS}") SeaTemperatureStreamEngine defaultStreamEngine,
+            @Value("${mongodb-schema.seatemperature.reactive-stream-timeout:5m}") Duration reactiveStreamTimeout,
+            @Value("${mongodb-schema.seatemperature.sse.flush-max-events:1}") int sseFlushMaxEvents,
+            @Value("${mongodb-schema.seatemperature.sse.flush-max-delay:0ms}") Duration sseFlushMaxDelay) {
         this.weatherDataAccess = weatherDataAccess;
+        this.reportCache = reportCache;
+        this.objectMapper = objectMapper;
+        this.maxBatchReports = maxBatchReports;
         this.seaTemperatureService = seaTemperatureService;
+        this.seaTemperatureTileCache = seaTemperatureTileCache;
+        this.seaTemperatureGrid = seaTemperatureGrid;
+        this.seaTemperatureLevelOfDetail = seaTemperatureLevelOfDetail;
+        this.seaTemperatureParallelScan = seaTemperatureParallelScan;
+        this.seaTemperatureLiveFeed = seaTemperatureLiveFeed;
+        this.batchPolicy = batchPolicy;
+        this.sseCompression = sseCompression;
+        this.admissionControl = admissionControl;
+        this.defaultStreamEngine = defaultStreamEngine;
+        this.reactiveStreamTimeout = reactiveStreamTimeout;
+        this.sseFlushPolicy = new SynchronousSse.FlushPolicy(sseFlushMaxEvents, sseFlushMaxDelay);
     }
 
+    /**
+     * The report as JSON, served from the report cache when it holds it. An empty body if there is no such report.
+     * With fields=ts,position,... only those fields (and the id) are fetched from MongoDB and returned, bypassing the cache.
+     */
     @GetMapping("/report")
-    public WeatherReport getReport(@RequestParam(value = "id") String id) {
-        WeatherReport report = weatherDataAccess.getReport(id);
-        return report;
+    public ResponseEntity<byte[]> getReport(
+            @RequestParam(value = "id") String id,
+            @RequestParam(value = "fields", required = false) List<String> fields) throws JsonProcessingException {
+        ReportFields reportFields = parseFields(fields);
+        byte[] report;
+        if (reportFields == null) {
+            report = reportCache.getReportJson(id);
+        } else {
+            WeatherReport projected = weatherDataAccess.getReport(id, reportFields);
+            report = projected != null ? objectMapper.writeValueAsBytes(projected) : null;
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(report);
+    }
+
+    /**
+     * Looks up many reports at once: those in the report cache are written first, then the rest are found with a single
+     * query and written as they are decoded, in no particular order. Ids given as ids=a,b,c or repeated ids parameters.
+     * A JSON object by default, or newline delimited JSON with format=ndjson or 'Accept: application/x-ndjson'.
+     * Either way ends with the ids which had no report. With fields=ts,position,... only those fields (and the ids) are
+     * fetched and returned, and the report cache is not used.
+     */
+    @GetMapping("/report/batch")
+    public void getReports(
+            @RequestParam(value = "ids") List<String> ids,
+            @RequestParam(value = "format", required = false) String format,
+            @RequestParam(value = "fields", required = false) List<String> fields,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        ReportFields reportFields = parseFields(fields);
+        ReportBatchFormat batchFormat;
+        try {
+            batchFormat = parseOption("format", format, ReportBatchFormat.class);
+        } catch (InvalidOption e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (batchFormat == null) {
+            String accept = request.getHeader("Accept");
+            batchFormat = accept != null && accept.contains("application/x-ndjson") ? ReportBatchFormat.NDJSON : ReportBatchFormat.JSON;
+        }
+        Set<String> uniqueIds = new LinkedHashSet<>(ids);
+        if (uniqueIds.isEmpty() || uniqueIds.size() > maxBatchReports) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Supply between 1 and %d ids.".formatted(maxBatchReports));
+        }
+        List<String> invalidIds = uniqueIds.stream().filter(id -> !ObjectId.isValid(id)).toList();
+        if (!invalidIds.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid ids: " + String.join(", ", invalidIds));
+        }
+
+        ReportBatchWriter writer = new ReportBatchWriter(response, objectMapper, batchFormat);
+        List<String> uncachedIds = new ArrayList<>(uniqueIds.size());
+        for (String id : uniqueIds) {
+            byte[] cached = reportFields == null ? reportCache.getCachedReportJson(id) : null;
+            if (cached != null) {
+                writer.write(cached);
+            } else {
+                uncachedIds.add(id);
+            }
+        }
+        Set<String> missing = new LinkedHashSet<>(uncachedIds);
+        if (!uncachedIds.isEmpty()) {
+            try {
+                weatherDataAccess.findReports(uncachedIds, reportFields, report -> {
+                    missing.remove(report.id());
+                    try {
+                        writer.write(report);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException _) { // the client has gone
+                return;
+            } catch (RuntimeException e) {
+                if (!writer.started()) {
+                    throw e;
+                }
+                // the status has been sent, so the best left is to end the body unfinished, which the client can't mistake for complete
+                log.error("Failed to look up reports after the response had started", e);
+                return;
+            }
+        }
+        writer.finish(new ArrayList<>(missing));
     }
 
+    private static ReportFields parseFields(List<String> fields) {
+        if (fields == null) {
+            return null;
+        }
+        try {
+            return ReportFields.of(fields);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @GetMapping("/report/cache")
+    public ReportCache.ReportCacheStats reportCacheStats() {
+        return reportCache.stats();
+    }
+
+    /**
+     * Lists reports a page at a time. Pass the nextPageToken of a page as 'after' for the following page,
+     * which costs the same at any depth. The 'page' number parameter is kept for compatibility.
+     */
     @GetMapping("/report/list")
-    public WeatherReportSummaryList listReports(@RequestParam(value = "page", required = false, defaultValue = "0") int page) {
-        WeatherReportSummaryList weatherReportList = weatherDataAccess.listReports(page);
-        return weatherReportList;
+    public WeatherReportSummaryList listReports(
+            @RequestParam(value = "page", required = false) Integer page,
+            @RequestParam(value = "after", required = false) String after) {
+        if (page != null && after != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Supply either page or after, not both.");
+        }
+        AdmissionLimiter.Permit permit = admissionControl.admitReportList();
+        if (permit == null) {
+            throw new ServiceUnavailable("Too many report list requests, retry shortly.", admissionControl.retryAfterSeconds());
+        }
+        try {
+            if (after == null && page != null) {
+                return weatherDataAccess.listReports(page);
+            }
+            if (after == null) {
+                return weatherDataAccess.listReports(0);
+            }
+            return weatherDataAccess.listReportsAfter(after);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page token.");
+        } finally {
+            permit.release();
+        }
     }
 
+    /**
+     * Streams the unique sea temperatures within the bounding box as server-sent events, in JSON by default or in a compact
+     * binary format with format=binary. An 'Accept: application/octet-stream' header (or format=octet_stream) streams
+     * the binary batches as a raw body instead.
+     * Coarse viewports streamed as events are reduced to a point per cell, the batches then preceded by an event named
+     * 'resolution' holding the cell size in degrees, sent again whenever it changes. Binary frames can't carry a
+     * resolution, so an octet-stream body is always sent in full detail.
+     * When panning from a viewport whose stream completed, pass it as previousSouth, previousNorth, previousWest and
+     * previousEast (event streams on the synchronous engine only). The first event is then one named 'viewport': with
+     * delta true, only the points outside the previous viewport follow, and evict lists the parts of the previous
+     * viewport now out of view; with delta false (either viewport is too coarse for full detail), the whole viewport follows.
+     * With live=true (event streams on the synchronous engine only), the stream stays open once the viewport's points
+     * have been sent, marked by an event named 'live', and readings inserted within the viewport follow as they arrive.
+     * Readings the client fell too far behind to be sent are counted in an event named 'dropped'. overflow=drop or
+     * conflate chooses what is kept when the client falls behind (see SeaTemperatureOverflowPolicy).
+     */
     @GetMapping("/sea/temperature")
     public void streamSeaSurfaceTemperatures(
             @RequestParam(value = "south", required = false) Double south,
             @RequestParam(value = "north", required = false) Double north,
             @RequestParam(value = "west", required = false) Double west,
             @RequestParam(value = "east", required = false) Double east,
+            @RequestParam(value = "queryMode", required = false) String queryMode,
+            @RequestParam(value = "dedup", required = false) String dedup,
+            @RequestParam(value = "engine", required = false) String engine,
+            @RequestParam(value = "format", required = false) String format,
+            @RequestParam(value = "previousSouth", required = false) Double previousSouth,
+            @RequestParam(value = "previousNorth", required = false) Double previousNorth,
+            @RequestParam(value = "previousWest", required = false) Double previousWest,
+            @RequestParam(value = "previousEast", required = false) Double previousEast,
+            @RequestParam(value = "live", required = false, defaultValue = "false") boolean live,
+            @RequestParam(value = "overflow", required = false) String overflow,
+            HttpServletRequest request,
             HttpServletResponse response) {
 
-        var sse = SynchronousSse.forResponse(response);
-
+        String badRequest = null;
+        SeaTemperatureQueryOptions options = null;
+        SeaTemperatureStreamEngine streamEngine = defaultStreamEngine;
+        SeaTemperatureOverflowPolicy overflowPolicy = null;
+        SeaTemperatureFormat seaTemperatureFormat = acceptsOctetStream(request) ? SeaTemperatureFormat.OCTET_STREAM : SeaTemperatureFormat.JSON;
         if (north == null || south == null || east == null || west == null) {
-            sse.error(HttpStatus.BAD_REQUEST, "For BoundingBox query type, north, south, east, and west must all be supplied.");
+            badRequest = "For BoundingBox query type, north, south, east, and west must all be supplied.";
+        } else {
+            try {
+                options = new SeaTemperatureQueryOptions(
+                        parseOption("queryMode", queryMode, SeaTemperatureQueryMode.class),
+                        parseOption("dedup", dedup, SeaTemperatureDedupMode.class)
+                );
+                SeaTemperatureStreamEngine requestedEngine = parseOption("engine", engine, SeaTemperatureStreamEngine.class);
+                if (requestedEngine != null) {
+                    streamEngine = requestedEngine;
+                }
+                SeaTemperatureFormat requestedFormat = parseOption("format", format, SeaTemperatureFormat.class);
+                if (requestedFormat != null) {
+                    seaTemperatureFormat = requestedFormat;
+                }
+                overflowPolicy = parseOption("overflow", overflow, SeaTemperatureOverflowPolicy.class);
+            } catch (InvalidOption e) {
+                badRequest = e.getMessage();
+            }
+        }
+        BoundingBox previousBoundingBox = null;
+        if (previousSouth != null || previousNorth != null || previousWest != null || previousEast != null) {
+            if (previousSouth == null || previousNorth == null || previousWest == null || previousEast == null) {
+                badRequest = badRequest != null ? badRequest : "previousSouth, previousNorth, previousWest and previousEast must all be supplied together.";
+            } else if (seaTemperatureFormat == SeaTemperatureFormat.OCTET_STREAM || streamEngine == SeaTemperatureStreamEngine.REACTIVE) {
+                badRequest = badRequest != null ? badRequest : "A previous viewport is only served as events by the synchronous engine.";
+            } else {
+                previousBoundingBox = new BoundingBox(previousSouth, previousNorth, previousWest, previousEast);
+            }
+        }
+        if (live && (seaTemperatureFormat == SeaTemperatureFormat.OCTET_STREAM || streamEngine == SeaTemperatureStreamEngine.REACTIVE)) {
+            badRequest = badRequest != null ? badRequest : "Live updates are only served as events by the synchronous engine.";
+        }
+
+        if (seaTemperatureFormat == SeaTemperatureFormat.OCTET_STREAM) {
+            if (badRequest == null && streamEngine == SeaTemperatureStreamEngine.REACTIVE) {
+                badRequest = "The octet_stream format is only served by the synchronous engine.";
+            }
+            if (badRequest != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, badRequest);
+            }
+            AdmissionLimiter.Permit permit = admissionControl.admitSeaTemperatureStream();
+            if (permit == null) {
+                throw new ServiceUnavailable(too_many_streams, admissionControl.retryAfterSeconds());
+            }
+            try {
+                streamFramedSeaSurfaceTemperatures(new BoundingBox(south, north, west, east), options, response, permit);
+            } finally {
+                permit.release();
+            }
+            return;
+        }
+
+        AdmissionLimiter.Permit permit = null;
+        if (badRequest == null) {
+            permit = admissionControl.admitSeaTemperatureStream();
+            if (permit == null) {
+                response.setHeader(HttpHeaders.RETRY_AFTER, admissionControl.retryAfterSeconds());
+                SynchronousSse.forResponse(response).error(HttpStatus.SERVICE_UNAVAILABLE, too_many_streams);
+                return;
+            }
+        }
+
+        if (badRequest == null && streamEngine == SeaTemperatureStreamEngine.REACTIVE) {
+            AsyncSse sse;
+            try {
+                sse = AsyncSse.start(request, response, reactiveStreamTimeout);
+            } catch (RuntimeException e) {
+                permit.release(); // there is no stream to release it
+                throw e;
+            }
+            sse.admittedBy(permit); // released when the stream ends
+            try {
+                seaTemperatureService.streamSeaTemperatures(new BoundingBox(south, north, west, east), options, seaTemperatureFormat, sse);
+            } catch (Exception e) {
+                sse.error(HttpStatus.INTERNAL_SERVER_ERROR, e, "An unexpected error occurred while streaming sea surface temperatures.");
+            }
             return;
         }
+
+        SynchronousSse sse;
+        try {
+            sse = SynchronousSse.forResponse(response, sseFlushPolicy, sseCompression, sseCompression.encodingFor(request));
+        } catch (SynchronousSse.SseBrokenPipe _) { // the client went away before the headers were sent
+            if (permit != null) {
+                permit.release();
+            }
+            return;
+        }
+        if (badRequest != null) {
+            sse.error(HttpStatus.BAD_REQUEST, badRequest);
+            return;
+        }
+        SeaTemperatureSubscription subscription = null;
         try {
             BoundingBox boundingBox = new BoundingBox(south, north, west, east);
-            seaTemperatureService.streamSeaTemperatures(boundingBox, sse::sendEvent);
+            Consumer<SeaTemperatureBatch> sendPoints = sse::sendEvent;
+            if (seaTemperatureFormat == SeaTemperatureFormat.BINARY) {
+                SeaTemperatureBatchEncoder encoder = new SeaTemperatureBatchEncoder();
+                sendPoints = batch -> {
+                    encoder.encode(batch);
+                    sse.sendEvent("points", encoder.base64());
+                };
+            }
+            Consumer<SeaTemperatureBatch> sendBatch = respondedTo(permit, labelledWithResolution(sse, sendPoints));
+            if (live && seaTemperatureLiveFeed.available()) {
+                subscription = seaTemperatureLiveFeed.subscribe(boundingBox, overflowPolicy); // before the snapshot, so no insert is missed
+            }
+            long readings = seaTemperatureService.countSeaTemperatures(boundingBox, options); // once, for the delta and the stream
+            SeaTemperatureService.ViewportDelta delta = null;
+            if (previousBoundingBox != null) {
+                delta = seaTemperatureService.viewportDelta(previousBoundingBox, boundingBox, readings, options);
+                sse.sendEvent("viewport", JsonUtil.toJson(delta != null ? new ViewportEvent(true, delta.evicted()) : new ViewportEvent(false, null)));
+            }
+            if (delta != null) {
+                seaTemperatureService.streamSeaTemperatures(delta, options, sendBatch);
+            } else {
+                seaTemperatureService.streamSeaTemperatures(boundingBox, options, readings, sendBatch);
+            }
+            if (subscription != null) {
+                permit.release(); // a live viewer waits on inserts rather than MongoDB, so no longer counts against admission
+                streamLiveSeaTemperatures(sse, subscription, sendPoints);
+            }
         } catch (SynchronousSse.SseBrokenPipe _) { // ignore broken pipes in SSE
         } catch (Exception e) {
             sse.error(HttpStatus.INTERNAL_SERVER_ERROR, e, "An unexpected error occurred while streaming sea surface temperatures.");
+        } finally {
+            if (subscription != null) {
+                subscription.close();
+            }
+            sse.complete();
+            permit.release();
+        }
+    }
+
+    /**
+     * Sends a 'live' event naming the overflow policy, then batches of the readings inserted within the viewport as they
+     * arrive, until the client goes away or the live feed closes. Readings dropped as the client fell behind are counted
+     * in a 'dropped' event, and an idle stream sends a heartbeat comment to find out whether the client is still there.
+     */
+    private void streamLiveSeaTemperatures(SynchronousSse sse, SeaTemperatureSubscription subscription, Consumer<SeaTemperatureBatch> sendPoints) {
+        sse.sendEvent("live", subscription.overflowPolicy().name().toLowerCase());
+        SeaTemperatureBatch batch = new SeaTemperatureBatch(batchPolicy.maxEventSize());
+        try {
+            while (true) {
+                batch.clear();
+                int polled = subscription.poll(batch, seaTemperatureLiveFeed.heartbeatInterval());
+                if (polled < 0) {
+                    return;
+                }
+                long dropped = subscription.takeDropped();
+                if (dropped > 0) {
+                    sse.sendEvent("dropped", Long.toString(dropped));
+                }
+                if (polled > 0) {
+                    sendPoints.accept(batch);
+                } else if (dropped == 0) {
+                    sse.sendComment("heartbeat");
+                }
+            }
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt(); // shutting down
         }
     }
 
+    private void streamFramedSeaSurfaceTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, HttpServletResponse response, AdmissionLimiter.Permit permit) {
+        var stream = FramedStream.forResponse(response);
+        SeaTemperatureBatchEncoder encoder = new SeaTemperatureBatchEncoder();
+        try {
+            seaTemperatureService.streamFullDetailSeaTemperatures(boundingBox, options, respondedTo(permit, batch -> {
+                int length = encoder.encode(batch);
+                stream.sendFrame(encoder.buffer(), length);
+            }));
+            stream.complete();
+        } catch (SynchronousSse.SseBrokenPipe _) { // ignore broken pipes
+        } catch (Exception e) {
+            stream.error(HttpStatus.INTERNAL_SERVER_ERROR, e, "An unexpected error occurred while streaming sea surface temperatures.");
+        }
+    }
+
+    /**
+     * Marks the permit responded once the first batch has been sent, as the stream's latency for admission control.
+     */
+    private static Consumer<SeaTemperatureBatch> respondedTo(AdmissionLimiter.Permit permit, Consumer<SeaTemperatureBatch> sendBatch) {
+        return batch -> {
+            sendBatch.accept(batch);
+            permit.responded();
+        };
+    }
+
+    /**
+     * The first event of a stream from a previous viewport: whether only the added points follow, and if so which parts of
+     * the previous viewport are out of view.
+     */
+    public record ViewportEvent(boolean delta, List<BoundingBox> evict) {}
+
+    /**
+     * Sends a 'resolution' event before each batch whose resolution differs from the last one sent (none for every point).
+     */
+    private static Consumer<SeaTemperatureBatch> labelledWithResolution(SynchronousSse sse, Consumer<SeaTemperatureBatch> sendBatch) {
+        double[] labelled = {0};
+        return batch -> {
+            if (batch.resolution() != labelled[0]) {
+                sse.sendEvent("resolution", Double.toString(batch.resolution()));
+                labelled[0] = batch.resolution();
+            }
+            sendBatch.accept(batch);
+        };
+    }
+
+    private static boolean acceptsOctetStream(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains("application/octet-stream") && !accept.contains("text/event-stream");
+    }
+
+    @GetMapping("/sea/temperature/cache")
+    public SeaTemperatureTileCache.CacheStats seaTemperatureCacheStats() {
+        return seaTemperatureTileCache.stats();
+    }
+
+    @GetMapping("/sea/temperature/grid")
+    public SeaTemperatureGrid.GridStats seaTemperatureGridStats() {
+        return seaTemperatureGrid.stats();
+    }
+
+    @GetMapping("/sea/temperature/level-of-detail")
+    public SeaTemperatureLevelOfDetail.LevelOfDetailStats seaTemperatureLevelOfDetailStats() {
+        return seaTemperatureLevelOfDetail.stats();
+    }
+
+    @GetMapping("/sea/temperature/parallel-scan")
+    public SeaTemperatureParallelScan.ParallelScanStats seaTemperatureParallelScanStats() {
+        return seaTemperatureParallelScan.stats();
+    }
+
+    @GetMapping("/sea/temperature/live")
+    public SeaTemperatureLiveFeed.LiveFeedStats seaTemperatureLiveFeedStats() {
+        return seaTemperatureLiveFeed.stats();
+    }
+
+    @GetMapping("/sea/temperature/batching")
+    public AdaptiveBatchPolicy.BatchingStats seaTemperatureBatchingStats() {
+        return batchPolicy.stats();
+    }
+
+    @GetMapping("/sea/temperature/compression")
+    public SseCompression.CompressionStats seaTemperatureCompressionStats() {
+        return sseCompression.stats();
+    }
+
+    @GetMapping("/admission")
+    public AdmissionControl.AdmissionControlStats admissionStats() {
+        return admissionControl.stats();
+    }
+
+    /**
+     * Parses an optional, case-insensitive enum request parameter. Null when not supplied.
+     */
+    private static <E extends Enum<E>> E parseOption(String name, String value, Class<E> type) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException _) {
+            E[] constants = type.getEnumConstants();
+            StringBuilder allowed = new StringBuilder();
+            for (int i = 0; i < constants.length; i++) {
+                if (i > 0) {
+                    allowed.append(i == constants.length - 1 ? " or " : ", ");
+                }
+                allowed.append(constants[i].name());
+            }
+            throw new InvalidOption("%s must be one of %s.".formatted(name, allowed));
+        }
+    }
+
+    private static class InvalidOption extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        InvalidOption(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A 503 telling the client when to retry.
+     */
+    private static class ServiceUnavailable extends ResponseStatusException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String retryAfterSeconds;
+
+        ServiceUnavailable(String reason, String retryAfterSeconds) {
+            super(HttpStatus.SERVICE_UNAVAILABLE, reason);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+            return headers;
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package com.luketn.api.filters;
 
 import com.luketn.util.SynchronousSse;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -18,6 +20,8 @@ import java.io.IOException;
 @Order(1)
 public class AccessLog extends OncePerRequestFilter {
     private static ThreadLocal<SynchronousSse.SseStats> sseStats = ThreadLocal.withInitial(() -> null);
+    // async streams finish on another thread, so leave their stats on the request instead
+    public static final String SSE_STATS_ATTRIBUTE = AccessLog.class.getName() + ".sseStats";
 
     private static final Logger requestLogger = LoggerFactory.getLogger("RequestLog");
     private static final Logger accessLogger = LoggerFactory.getLogger("AccessLog");
@@ -33,8 +37,24 @@ public class AccessLog extends OncePerRequestFilter {
         try {
             filterChain.doFilter(request, response);
         } finally {
-            long endTime = System.currentTimeMillis();
-            logPostRequest(request, response, endTime - startTime);
+            if (request.isAsyncStarted()) {
+                // log once the async response has completed, not when the request thread is released
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        logPostRequest(request, response, System.currentTimeMillis() - startTime);
+                    }
+                    @Override
+                    public void onTimeout(AsyncEvent event) {}
+                    @Override
+                    public void onError(AsyncEvent event) {}
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+            } else {
+                long endTime = System.currentTimeMillis();
+                logPostRequest(request, response, endTime - startTime);
+            }
         }
     }
 
@@ -42,9 +62,13 @@ public class AccessLog extends OncePerRequestFilter {
         String timeTakenSuffix = "(%dms)".formatted(executionTimeMs);
         int statusCode;
         String suffix;
-        if (sseStats.get() != null) {
-            int eventCount = sseStats.get().eventCount();
-            statusCode = sseStats.get().lastStatusCode().value();
+        SynchronousSse.SseStats stats = sseStats.get();
+        if (stats == null && request.getAttribute(SSE_STATS_ATTRIBUTE) instanceof SynchronousSse.SseStats asyncStats) {
+            stats = asyncStats;
+        }
+        if (stats != null) {
+            int eventCount = stats.eventCount();
+            statusCode = stats.lastStatusCode().value();
             suffix = "(sse: " + eventCount + " event" + (eventCount == 1 ? "" : "s") + ", status: " + statusCode + ")" + " " + timeTakenSuffix;
             sseStats.remove();
         } else {
@@ -0,0 +1,47 @@
+package com.luketn.dataaccess.mongodb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the indexes the application relies on once it has started.
+ * Runs in the background and only logs failures, so the API still starts when MongoDB is unavailable.
+ */
+@Component
+public class MongoDBIndexInitializer {
+    private static final Logger log = LoggerFactory.getLogger(MongoDBIndexInitializer.class);
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final SeaTemperatureGrid seaTemperatureGrid;
+    private final boolean createIndexes;
+
+    public MongoDBIndexInitializer(
+            WeatherDataAccess weatherDataAccess,
+            SeaTemperatureGrid seaTemperatureGrid,
+            @Value("${mongodb-schema.dataaccess.mongodb.create-indexes:true}") boolean createIndexes) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.seaTemperatureGrid = seaTemperatureGrid;
+        this.createIndexes = createIndexes;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!createIndexes) {
+            return;
+        }
+        Thread.ofVirtual().name("mongodb-index-initializer").start(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                weatherDataAccess.createIndexes();
+                seaTemperatureGrid.createIndexes();
+                log.info("MongoDB indexes created in {}ms", System.currentTimeMillis() - startTime);
+            } catch (Exception e) {
+                log.warn("Failed to create MongoDB indexes", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,304 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adds command and connection pool listeners to the MongoDB clients.
+ * Micrometer's listeners publish per command latency by command and collection (mongodb.driver.commands) and the pool
+ * gauges (mongodb.driver.pool.*). On top of those, this records how long each connection checkout waited and how
+ * saturated each pool is, and logs a sample of the commands slower than the threshold with the shape of their filter
+ * (field names and operators, never values) to the MongoDBSlowOperations logger.
+ */
+@Component
+public class MongoDBInstrumentation {
+    private static final Logger slowOperationLog = LoggerFactory.getLogger("MongoDBSlowOperations");
+    // cursors which are never exhausted or killed (e.g. the client crashed) are forgotten past this many
+    private static final int max_tracked_cursors = 10_000;
+
+    private final MeterRegistry meterRegistry;
+    private final long slowOperationThresholdNanos;
+    private final double slowOperationSampleRate;
+    private final Counter slowOperations;
+
+    public MongoDBInstrumentation(
+            MeterRegistry meterRegistry,
+            @Value("${mongodb-schema.dataaccess.mongodb.instrumentation.slow-operation-threshold:100ms}") Duration slowOperationThreshold,
+            @Value("${mongodb-schema.dataaccess.mongodb.instrumentation.slow-operation-sample-rate:1.0}") double slowOperationSampleRate) {
+        if (slowOperationSampleRate < 0 || slowOperationSampleRate > 1) {
+            throw new IllegalArgumentException("The slow operation sample rate must be between 0 and 1.");
+        }
+        this.meterRegistry = meterRegistry;
+        this.slowOperationThresholdNanos = slowOperationThreshold.toNanos();
+        this.slowOperationSampleRate = slowOperationSampleRate;
+        this.slowOperations = Counter.builder("mongodb.driver.commands.slow")
+                .description("Commands slower than the slow operation threshold, whether or not they were sampled to the log")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The settings with the listeners added. Each client gets its own listeners, so its pools are measured separately.
+     */
+    public MongoClientSettings instrument(MongoClientSettings settings) {
+        return MongoClientSettings.builder(settings)
+                .addCommandListener(new MongoMetricsCommandListener(meterRegistry))
+                .addCommandListener(new SlowOperationListener())
+                .applyToConnectionPoolSettings(pool -> pool
+                        .addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry))
+                        .addConnectionPoolListener(new CheckoutListener()))
+                .build();
+    }
+
+    /**
+     * Times connection checkouts, and tracks how many of each pool's connections are checked out.
+     */
+    private class CheckoutListener implements ConnectionPoolListener {
+        private final Map<ServerId, Pool> pools = new ConcurrentHashMap<>();
+
+        private record Pool(AtomicInteger checkedOut, int maxSize, Timer checkouts, Timer failedCheckouts, Gauge saturation) {}
+
+        @Override
+        public void connectionPoolCreated(ConnectionPoolCreatedEvent event) {
+            ServerId serverId = event.getServerId();
+            Tags tags = Tags.of("cluster.id", serverId.getClusterId().getValue(), "server.address", serverId.getAddress().toString());
+            AtomicInteger checkedOut = new AtomicInteger();
+            int maxSize = event.getSettings().getMaxSize();
+            pools.put(serverId, new Pool(
+                    checkedOut,
+                    maxSize,
+                    checkoutTimer(tags.and("status", "SUCCESS")),
+                    checkoutTimer(tags.and("status", "FAILED")),
+                    Gauge.builder("mongodb.driver.pool.saturation", checkedOut, connections -> maxSize == 0 ? 0 : (double) connections.get() / maxSize)
+                            .description("Share of the pool's maximum connections checked out")
+                            .tags(tags)
+                            .register(meterRegistry)));
+        }
+
+        private Timer checkoutTimer(Tags tags) {
+            return Timer.builder("mongodb.driver.pool.checkout")
+                    .description("Time waited to check a connection out of the pool")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            Pool pool = pools.get(event.getConnectionId().getServerId());
+            if (pool != null) {
+                pool.checkedOut().incrementAndGet();
+                pool.checkouts().record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+            Pool pool = pools.get(event.getServerId());
+            if (pool != null) {
+                pool.failedCheckouts().record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+            Pool pool = pools.get(event.getConnectionId().getServerId());
+            if (pool != null) {
+                pool.checkedOut().decrementAndGet();
+            }
+        }
+
+        @Override
+        public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+            Pool pool = pools.remove(event.getServerId());
+            if (pool != null) {
+                meterRegistry.remove(pool.checkouts());
+                meterRegistry.remove(pool.failedCheckouts());
+                meterRegistry.remove(pool.saturation());
+            }
+        }
+    }
+
+    /**
+     * Logs a sample of the commands slower than the threshold. A getMore is logged with the filter of the find or
+     * aggregate which opened its cursor.
+     */
+    private class SlowOperationListener implements CommandListener {
+        /**
+         * @param command a copy of the command which opened the operation (or its cursor), or null if it is unknown
+         * @param filterField the command's field holding its filter or pipeline
+         * @param cursorId the cursor a getMore continues, or 0
+         */
+        private record Operation(String collection, RawBsonDocument command, String filterField, long cursorId) {
+            String filterShape() {
+                return command == null ? "unknown" : MongoDBInstrumentation.filterShape(command.get(filterField));
+            }
+        }
+
+        // the command document is only valid during its started event, so its bytes are copied then; the shape is only
+        // built for the few commands which turn out to be slow
+        private final Map<Integer, Operation> inFlight = new ConcurrentHashMap<>();
+        private final Map<Long, Operation> cursors = new ConcurrentHashMap<>();
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+            BsonDocument command = event.getCommand();
+            Operation operation = switch (event.getCommandName()) {
+                case "find" -> new Operation(command.getString("find").getValue(), copy(command), "filter", 0);
+                case "aggregate" -> new Operation(command.get("aggregate").isString() ? command.getString("aggregate").getValue() : "", copy(command), "pipeline", 0);
+                case "count" -> new Operation(command.getString("count").getValue(), copy(command), "query", 0);
+                case "getMore" -> {
+                    long cursorId = command.getInt64("getMore").getValue();
+                    Operation opened = cursors.get(cursorId);
+                    yield opened != null
+                            ? new Operation(opened.collection(), opened.command(), opened.filterField(), cursorId)
+                            : new Operation(command.getString("collection").getValue(), null, null, cursorId);
+                }
+                case "killCursors" -> {
+                    for (BsonValue cursorId : command.getArray("cursors")) {
+                        cursors.remove(cursorId.asInt64().getValue());
+                    }
+                    yield null;
+                }
+                default -> null;
+            };
+            if (operation != null) {
+                inFlight.put(event.getRequestId(), operation);
+            }
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            Operation operation = inFlight.remove(event.getRequestId());
+            if (operation != null) {
+                trackCursor(event.getResponse(), operation);
+            }
+            slow(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), operation, event.getConnectionDescription().getServerAddress(), "succeeded");
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            Operation operation = inFlight.remove(event.getRequestId());
+            if (operation != null && operation.cursorId() != 0) {
+                cursors.remove(operation.cursorId());
+            }
+            slow(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), operation, event.getConnectionDescription().getServerAddress(), "failed");
+        }
+
+        private void trackCursor(BsonDocument response, Operation operation) {
+            if (!(response.get("cursor") instanceof BsonDocument cursor) || !cursor.isInt64("id")) {
+                return;
+            }
+            long cursorId = cursor.getInt64("id").getValue();
+            if (operation.cursorId() != 0) {
+                if (cursorId == 0) {
+                    cursors.remove(operation.cursorId()); // exhausted
+                }
+            } else if (cursorId != 0) {
+                if (cursors.size() >= max_tracked_cursors) {
+                    cursors.clear();
+                }
+                cursors.put(cursorId, operation);
+            }
+        }
+
+        private void slow(String commandName, long elapsedNanos, Operation operation, Object serverAddress, String outcome) {
+            if (elapsedNanos < slowOperationThresholdNanos) {
+                return;
+            }
+            slowOperations.increment();
+            if (slowOperationSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= slowOperationSampleRate) {
+                return;
+            }
+            slowOperationLog.warn("Slow MongoDB {} {} in {}ms on {}, collection: {}, filter: {}",
+                    commandName, outcome, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), serverAddress,
+                    operation == null ? "" : operation.collection(), operation == null ? "" : operation.filterShape());
+        }
+    }
+
+    /**
+     * A copy of the command's bytes, piped through without decoding it into a tree of values.
+     */
+    static RawBsonDocument copy(BsonDocument command) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer); BsonReader reader = command.asBsonReader()) {
+            writer.pipe(reader);
+        }
+        return new RawBsonDocument(buffer.getInternalBuffer(), 0, buffer.getPosition());
+    }
+
+    /**
+     * The filter with every value replaced by ?, keeping the field names and operators.
+     * e.g. {"position.coordinates.0": {"$gte": ?, "$lte": ?}}
+     */
+    static String filterShape(BsonValue filter) {
+        if (filter == null) {
+            return "{}";
+        }
+        StringBuilder shape = new StringBuilder();
+        appendShape(filter, shape);
+        return shape.toString();
+    }
+
+    private static void appendShape(BsonValue value, StringBuilder shape) {
+        if (value instanceof BsonDocument document) {
+            shape.append('{');
+            boolean first = true;
+            for (Map.Entry<String, BsonValue> field : document.entrySet()) {
+                if (!first) {
+                    shape.append(", ");
+                }
+                first = false;
+                shape.append('"').append(field.getKey()).append("\": ");
+                appendShape(field.getValue(), shape);
+            }
+            shape.append('}');
+        } else if (value instanceof BsonArray array && !array.isEmpty() && array.get(0).isDocument()) {
+            // a pipeline, or the clauses of an $and/$or
+            shape.append('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    shape.append(", ");
+                }
+                appendShape(array.get(i), shape);
+            }
+            shape.append(']');
+        } else {
+            shape.append('?');
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.Conventions;
 import org.bson.codecs.pojo.PojoCodecProvider;
@@ -13,6 +14,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromCodecs;
 import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
 import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
 
@@ -22,38 +33,109 @@ public class MongoDBProvider {
 
     private final String connectionString;
     private final String databaseName;
+    private final MongoDBInstrumentation instrumentation;
+    private final int minPoolSize;
+
+    // a lock rather than synchronized, so a virtual thread waiting on the first connection does not pin its carrier
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private volatile MongoClient mongoClient;
+    private volatile MongoDatabase mongoDatabase;
 
-    private MongoClient mongoClient;
-    private MongoDatabase mongoDatabase;
+    private volatile com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient;
+    private volatile com.mongodb.reactivestreams.client.MongoDatabase reactiveMongoDatabase;
 
     public MongoDBProvider(
             @Value("${mongodb-schema.dataaccess.mongodb.connection-string}") String connectionString,
-            @Value("${mongodb-schema.dataaccess.mongodb.database-name}") String databaseName) {
+            @Value("${mongodb-schema.dataaccess.mongodb.database-name}") String databaseName,
+            MongoDBInstrumentation instrumentation,
+            @Value("${mongodb-schema.dataaccess.mongodb.min-pool-size:0}") int minPoolSize) {
         this.connectionString = connectionString;
         this.databaseName = databaseName;
+        this.instrumentation = instrumentation;
+        this.minPoolSize = minPoolSize;
 
         this.mongoClient = null;
         this.mongoDatabase = null;
+        this.reactiveMongoClient = null;
+        this.reactiveMongoDatabase = null;
     }
 
     public MongoDatabase getMongoDatabase() {
-        if (mongoClient == null || mongoDatabase == null) {
-            synchronized (MongoDBProvider.class) {
-                if (mongoClient == null || mongoDatabase == null) {
+        if (mongoDatabase == null) {
+            connectLock.lock();
+            try {
+                if (mongoDatabase == null) {
                     long startTime = System.currentTimeMillis();
                     logger.info("Connecting to MongoDB at {}", connectionString);
 
-                    MongoClientSettings settings = createClientSettings(connectionString);
-                    mongoClient = MongoClients.create(settings);
+                    mongoClient = MongoClients.create(clientSettings());
                     mongoDatabase = mongoClient.getDatabase(databaseName);
 
                     logger.info("Connected to MongoDB in {}ms", System.currentTimeMillis() - startTime);
                 }
+            } finally {
+                connectLock.unlock();
             }
         }
         return mongoDatabase;
     }
 
+    /**
+     * The database on a separate Reactive Streams client (with its own connection pool), for the reactive streaming engine.
+     */
+    public com.mongodb.reactivestreams.client.MongoDatabase getReactiveMongoDatabase() {
+        if (reactiveMongoDatabase == null) {
+            connectLock.lock();
+            try {
+                if (reactiveMongoDatabase == null) {
+                    long startTime = System.currentTimeMillis();
+                    logger.info("Connecting to MongoDB (reactive) at {}", connectionString);
+
+                    reactiveMongoClient = com.mongodb.reactivestreams.client.MongoClients.create(clientSettings());
+                    reactiveMongoDatabase = reactiveMongoClient.getDatabase(databaseName);
+
+                    logger.info("Connected to MongoDB (reactive) in {}ms", System.currentTimeMillis() - startTime);
+                }
+            } finally {
+                connectLock.unlock();
+            }
+        }
+        return reactiveMongoDatabase;
+    }
+
+    /**
+     * Creates the sync client and opens connections on it (at least the minimum pool size), so the first requests do not
+     * pay for connecting, TLS and authentication. The driver then keeps the pool at its minimum size in the background.
+     *
+     * @return the connections opened
+     */
+    public int connect() throws InterruptedException, ExecutionException {
+        MongoDatabase database = getMongoDatabase();
+        int connections = Math.max(1, minPoolSize);
+        // concurrent pings each need a connection of their own, so open that many rather than reusing one
+        List<Callable<Document>> pings = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            pings.add(() -> database.runCommand(new Document("ping", 1)));
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Future<Document> ping : executor.invokeAll(pings)) {
+                ping.get();
+            }
+        }
+        return connections;
+    }
+
+    private MongoClientSettings clientSettings() {
+        MongoClientSettings settings = createClientSettings(connectionString);
+        if (minPoolSize > 0) {
+            settings = MongoClientSettings.builder(settings)
+                    .applyToConnectionPoolSettings(pool -> pool.minSize(minPoolSize))
+                    .build();
+        }
+        return instrumentation.instrument(settings);
+    }
+
     public static MongoClientSettings createClientSettings(String connectionString) {
 
         // Configure codec registry for POJO serialization with full flexibility
@@ -62,7 +144,9 @@ public class MongoDBProvider {
                 .conventions(Conventions.DEFAULT_CONVENTIONS)
                 .build());
 
+        // Purpose-built codecs for hot paths take precedence over the POJO codecs
         CodecRegistry codecRegistry = fromRegistries(
+                fromCodecs(new SeaTemperatureReadingCodec()),
                 MongoClientSettings.getDefaultCodecRegistry(),
                 pojoCodecRegistry);
 
@@ -0,0 +1,96 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.datamodel.mongodb.WeatherReportSummaryList;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Connects to MongoDB and runs representative queries before the application reports itself ready, so the first
+ * requests after a deploy do not pay for connecting or for code the JIT has not yet compiled.
+ * Runs as the application starts, after the web server is up: /health (liveness) answers throughout, while /health/ready
+ * (readiness) answers 503 until the warm-up has finished. Failures and timeouts are logged, and the application then
+ * reports ready anyway, as when MongoDB is unavailable requests fail the same with or without the warm-up.
+ */
+@Component
+public class MongoDBWarmUp implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(MongoDBWarmUp.class);
+
+    // around the North Sea: dense enough to exercise the cursor and codec paths, small enough to stream quickly
+    private static final BoundingBox warm_up_bounding_box = new BoundingBox(48.85, 56.79, -12.98, 13.39);
+
+    private final MongoDBProvider mongoDBProvider;
+    private final WeatherDataAccess weatherDataAccess;
+    private final boolean enabled;
+    private final int iterations;
+    private final Duration timeout;
+
+    public MongoDBWarmUp(
+            MongoDBProvider mongoDBProvider,
+            WeatherDataAccess weatherDataAccess,
+            @Value("${mongodb-schema.dataaccess.mongodb.warm-up.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.dataaccess.mongodb.warm-up.iterations:10}") int iterations,
+            @Value("${mongodb-schema.dataaccess.mongodb.warm-up.timeout:60s}") Duration timeout) {
+        this.mongoDBProvider = mongoDBProvider;
+        this.weatherDataAccess = weatherDataAccess;
+        this.enabled = enabled;
+        this.iterations = iterations;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        Thread warmUp = Thread.ofVirtual().name("mongodb-warm-up").start(this::warmUp);
+        if (!warmUp.join(timeout)) {
+            log.warn("MongoDB warm-up did not finish within {}, reporting ready without it", timeout);
+            warmUp.interrupt();
+        }
+    }
+
+    void warmUp() {
+        try {
+            long startTime = System.currentTimeMillis();
+            int connections = mongoDBProvider.connect();
+            mongoDBProvider.getReactiveMongoDatabase(); // its pool fills to the minimum size in the background
+            log.info("MongoDB warm-up opened {} connections in {}ms", connections, System.currentTimeMillis() - startTime);
+
+            startTime = System.currentTimeMillis();
+            for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+                runQueries();
+            }
+            log.info("MongoDB warm-up ran {} iterations of queries in {}ms", iterations, System.currentTimeMillis() - startTime);
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("MongoDB warm-up failed", e);
+        }
+    }
+
+    /**
+     * One of each query the API serves, through each query strategy a request can choose.
+     */
+    private void runQueries() {
+        WeatherReportSummaryList firstPage = weatherDataAccess.listReports(0);
+        if (firstPage.nextPageToken() != null) {
+            weatherDataAccess.listReportsAfter(firstPage.nextPageToken());
+        }
+        if (!firstPage.reports().isEmpty()) {
+            weatherDataAccess.getReport(firstPage.reports().getFirst().id());
+        }
+        for (SeaTemperatureQueryMode queryMode : SeaTemperatureQueryMode.values()) {
+            for (SeaTemperatureDedupMode dedupMode : SeaTemperatureDedupMode.values()) {
+                weatherDataAccess.streamSeaTemperatures(warm_up_bounding_box, new SeaTemperatureQueryOptions(queryMode, dedupMode),
+                        (_, _, _) -> {});
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.luketn.datamodel.mongodb.WeatherReport;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.or;
+
+/**
+ * A read-through cache of reports, held as the JSON of the /weather/report response so a hit needs neither a query,
+ * a decode nor serialization. Entries are evicted least recently used beyond the maximum, and expire after the time
+ * to live.
+ * A change stream on the collection removes each report as it is written (or every report, if the collection is
+ * dropped or renamed). While the change stream is not open (e.g. MongoDB is not a replica set), entries instead expire
+ * after the shorter fallback time to live.
+ * Concurrent misses on a report share a single query.
+ */
+@Component
+public class ReportCache implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(ReportCache.class);
+    // the server's error for a change stream on a standalone server, which retrying will not fix
+    private static final int change_streams_unsupported = 40573;
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final MongoDBProvider mongoDBProvider;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final long fallbackTimeToLiveNanos;
+    private final Duration changeStreamRetryInterval;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Load> loads = new ConcurrentHashMap<>();
+
+    private volatile boolean changeStreamOpen = false;
+    private volatile boolean closed = false;
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStream;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedMisses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private record Entry(byte[] json, long expiresAtNanos) {}
+
+    /**
+     * A query in progress, which every concurrent miss on the report waits for. Invalidated (under the entries lock) if the
+     * report changes meanwhile, so the possibly stale result is returned but not cached.
+     */
+    private static class Load {
+        final CompletableFuture<byte[]> json = new CompletableFuture<>();
+        // only a report read while the change stream was open is sure to be invalidated by any later change
+        final boolean watched;
+        boolean invalidated = false;
+
+        Load(boolean watched) {
+            this.watched = watched;
+        }
+    }
+
+    public ReportCache(
+            WeatherDataAccess weatherDataAccess,
+            MongoDBProvider mongoDBProvider,
+            ObjectMapper objectMapper,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-cache.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-cache.max-entries:10000}") int maxEntries,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-cache.time-to-live:10m}") Duration timeToLive,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-cache.fallback-time-to-live:30s}") Duration fallbackTimeToLive,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-cache.change-stream-retry-interval:30s}") Duration changeStreamRetryInterval) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.mongoDBProvider = mongoDBProvider;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.fallbackTimeToLiveNanos = fallbackTimeToLive.toNanos();
+        this.changeStreamRetryInterval = changeStreamRetryInterval;
+    }
+
+    /**
+     * The report as JSON, or null if there is no report with the id.
+     *
+     * @throws IllegalArgumentException if the id is not a valid ObjectId
+     */
+    public byte[] getReportJson(String id) {
+        if (!enabled) {
+            return loadReportJson(id);
+        }
+        byte[] cached = get(id);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        Load load = new Load(changeStreamOpen);
+        Load existing = loads.putIfAbsent(id, load);
+        if (existing != null) {
+            sharedMisses.increment();
+            try {
+                return existing.json.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            byte[] json = loadReportJson(id);
+            if (json != null) {
+                put(id, json, load);
+            }
+            load.json.complete(json);
+            return json;
+        } catch (RuntimeException e) {
+            load.json.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(id, load);
+        }
+    }
+
+    /**
+     * The report as JSON if it is cached, otherwise null (without querying for it).
+     * Only a hit is counted: nothing is loaded into the cache when the report isn't there, so it is not a miss.
+     */
+    public byte[] getCachedReportJson(String id) {
+        if (!enabled) {
+            return null;
+        }
+        byte[] cached = get(id);
+        if (cached != null) {
+            hits.increment();
+        }
+        return cached;
+    }
+
+    private byte[] loadReportJson(String id) {
+        WeatherReport report = weatherDataAccess.getReport(id);
+        if (report == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsBytes(report);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to convert report to JSON", e);
+        }
+    }
+
+    private byte[] get(String id) {
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAtNanos() > 0) {
+                entries.remove(id);
+                return null;
+            }
+            return entry.json();
+        }
+    }
+
+    private void put(String id, byte[] json, Load load) {
+        long timeToLive = load.watched && changeStreamOpen ? timeToLiveNanos : fallbackTimeToLiveNanos;
+        synchronized (entries) {
+            if (load.invalidated) {
+                return;
+            }
+            entries.put(id, new Entry(json, System.nanoTime() + timeToLive));
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries) {
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        invalidations.increment();
+        synchronized (entries) {
+            entries.remove(id);
+            Load load = loads.get(id);
+            if (load != null) {
+                load.invalidated = true;
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        invalidations.increment();
+        synchronized (entries) {
+            entries.clear();
+            for (Load load : loads.values()) {
+                load.invalidated = true;
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled) {
+            startWatching();
+        }
+    }
+
+    /**
+     * Watches the collection for changes on a virtual thread, reopening the change stream after failures.
+     */
+    public void startWatching() {
+        Thread.ofVirtual().name("report-cache-change-stream").start(() -> {
+            while (!closed) {
+                try {
+                    watch();
+                } catch (MongoCommandException e) {
+                    if (e.getErrorCode() == change_streams_unsupported) {
+                        log.warn("Change streams are unsupported (MongoDB is not a replica set), cached reports expire after the fallback time to live");
+                        return;
+                    }
+                    log.warn("Report cache change stream failed, cached reports expire after the fallback time to live until it reopens", e);
+                } catch (Exception e) {
+                    if (closed) {
+                        return;
+                    }
+                    log.warn("Report cache change stream failed, cached reports expire after the fallback time to live until it reopens", e);
+                }
+                changeStreamOpen = false;
+                invalidateAll(); // changes may have been missed
+                try {
+                    Thread.sleep(changeStreamRetryInterval);
+                } catch (InterruptedException _) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private void watch() {
+        List<Bson> pipeline = List.of(match(or(
+                eq("ns.coll", COLLECTION_NAME),
+                eq("operationType", "dropDatabase"))));
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mongoDBProvider.getMongoDatabase().watch(pipeline).cursor()) {
+            changeStream = cursor;
+            changeStreamOpen = true;
+            log.info("Report cache change stream opened");
+            while (!closed) {
+                ChangeStreamDocument<Document> change = cursor.next();
+                BsonDocument documentKey = change.getDocumentKey();
+                BsonValue id = documentKey == null ? null : documentKey.get("_id");
+                if (id != null && id.isObjectId()) {
+                    invalidate(id.asObjectId().getValue().toHexString());
+                } else {
+                    invalidateAll(); // a drop, rename or invalidate, or a report with an id the API can't serve
+                }
+            }
+        } finally {
+            changeStreamOpen = false;
+            changeStream = null;
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = changeStream;
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    public record ReportCacheStats(
+            boolean enabled,
+            boolean changeStreamOpen,
+            long hits,
+            long misses,
+            long sharedMisses,
+            long invalidations,
+            long evictions,
+            int entries
+    ) {}
+
+    public ReportCacheStats stats() {
+        synchronized (entries) {
+            return new ReportCacheStats(enabled, changeStreamOpen, hits.sum(), misses.sum(), sharedMisses.sum(), invalidations.sum(), evictions.sum(), entries.size());
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("report.cache.hits", this, cache -> cache.hits.sum())
+                .description("Reports served from the cache")
+                .register(registry);
+        FunctionCounter.builder("report.cache.misses", this, cache -> cache.misses.sum())
+                .description("Reports not in the cache (including those which waited on another request's query)")
+                .register(registry);
+        FunctionCounter.builder("report.cache.invalidations", this, cache -> cache.invalidations.sum())
+                .description("Reports invalidated by a change to them, or to the whole collection")
+                .register(registry);
+        Gauge.builder("report.cache.entries", this, cache -> cache.stats().entries())
+                .description("Reports held in the cache")
+                .register(registry);
+    }
+}
@@ -0,0 +1,16 @@
+package com.luketn.dataaccess.mongodb;
+
+/**
+ * How the total number of reports is counted for the report list.
+ */
+public enum ReportCountAccuracy {
+    /**
+     * estimatedDocumentCount, read from the collection metadata without scanning.
+     * May drift after an unclean shutdown or on a sharded cluster with orphaned documents.
+     */
+    ESTIMATED,
+    /**
+     * countDocuments, which scans the whole _id index, so takes longer the larger the collection.
+     */
+    EXACT
+}
@@ -0,0 +1,97 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+
+/**
+ * Caches the total number of reports, so listing a page doesn't count the whole collection.
+ * Once the count is older than the time to live it is still served, while a fresh count is taken on a virtual thread.
+ * A time to live of zero counts on every call.
+ */
+@Component
+public class ReportCountCache {
+    private static final Logger log = LoggerFactory.getLogger(ReportCountCache.class);
+
+    private final MongoDBProvider mongoDBProvider;
+    private final ReportCountAccuracy accuracy;
+    private final long timeToLiveNanos;
+
+    private volatile CachedCount cached;
+    // the count in progress, shared by every caller which needs it until it completes
+    private final AtomicReference<CompletableFuture<Long>> inFlight = new AtomicReference<>();
+
+    private record CachedCount(long count, long countedAtNanos) {}
+
+    public ReportCountCache(
+            MongoDBProvider mongoDBProvider,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-count.accuracy:ESTIMATED}") ReportCountAccuracy accuracy,
+            @Value("${mongodb-schema.dataaccess.mongodb.report-count.time-to-live:30s}") Duration timeToLive) {
+        this.mongoDBProvider = mongoDBProvider;
+        this.accuracy = accuracy;
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    /**
+     * The total number of reports. Completes immediately when a count is cached, otherwise once the count has been
+     * taken on a virtual thread, so the caller can fetch its page meanwhile.
+     */
+    public CompletableFuture<Long> count() {
+        CachedCount cachedCount = cached;
+        if (cachedCount == null || timeToLiveNanos == 0) {
+            return refresh();
+        }
+        if (System.nanoTime() - cachedCount.countedAtNanos() > timeToLiveNanos) {
+            refresh();
+        }
+        return CompletableFuture.completedFuture(cachedCount.count());
+    }
+
+    private CompletableFuture<Long> refresh() {
+        while (true) {
+            CompletableFuture<Long> current = inFlight.get();
+            if (current != null) {
+                return current;
+            }
+            CompletableFuture<Long> next = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, next)) {
+                Thread.ofVirtual().name("report-count").start(() -> countInto(next));
+                return next;
+            }
+        }
+    }
+
+    private void countInto(CompletableFuture<Long> future) {
+        try {
+            long startTime = System.nanoTime();
+            long count = countReports();
+            cached = new CachedCount(count, System.nanoTime());
+            if (log.isDebugEnabled()) {
+                log.debug("Counted {} reports ({}) in {}ms", count, accuracy, (System.nanoTime() - startTime) / 1_000_000);
+            }
+            inFlight.set(null);
+            future.complete(count);
+        } catch (RuntimeException e) {
+            log.warn("Failed to count reports", e);
+            inFlight.set(null);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private long countReports() {
+        MongoCollection<Document> collection = mongoDBProvider.getMongoDatabase().getCollection(COLLECTION_NAME);
+        return switch (accuracy) {
+            case ESTIMATED -> collection.estimatedDocumentCount();
+            case EXACT -> collection.countDocuments();
+        };
+    }
+}
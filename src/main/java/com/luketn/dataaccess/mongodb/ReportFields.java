@@ -0,0 +1,61 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.datamodel.mongodb.WeatherReport;
+import org.bson.Document;
+
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A sparse fieldset of WeatherReport: the top-level fields a client asked for, as a MongoDB projection. Fields left out
+ * are neither sent by MongoDB nor decoded, and are null in the projected report (so left out of its JSON).
+ * The id is always included.
+ */
+public record ReportFields(Set<String> names) {
+    private static final List<String> all_names = Arrays.stream(WeatherReport.class.getRecordComponents())
+            .map(RecordComponent::getName)
+            .toList();
+
+    /**
+     * @param names WeatherReport component names, e.g. ts, position, airTemperature
+     * @throws IllegalArgumentException if there are none, or any is not a WeatherReport component
+     */
+    public static ReportFields of(Collection<String> names) {
+        Set<String> fields = new LinkedHashSet<>();
+        List<String> unknown = new ArrayList<>();
+        for (String name : names) {
+            String trimmed = name.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (all_names.contains(trimmed)) {
+                fields.add(trimmed);
+            } else {
+                unknown.add(trimmed);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown report fields: %s. Allowed: %s.".formatted(String.join(", ", unknown), String.join(", ", all_names)));
+        }
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("Supply at least one report field.");
+        }
+        return new ReportFields(Collections.unmodifiableSet(fields));
+    }
+
+    public Document projection() {
+        Document projection = new Document("_id", 1);
+        for (String name : names) {
+            if (!name.equals("id")) {
+                projection.append(name, 1);
+            }
+        }
+        return projection;
+    }
+}
@@ -0,0 +1,17 @@
+package com.luketn.dataaccess.mongodb;
+
+/**
+ * Where duplicate coordinates are removed from a sea temperature stream.
+ */
+public enum SeaTemperatureDedupMode {
+    /**
+     * Every matching reading is sent from MongoDB, and duplicates are dropped in SeaTemperatureService.
+     * Streams as soon as the first batch is found.
+     */
+    JVM,
+    /**
+     * An aggregation groups readings by coordinate pair, keeping the latest at each, so only unique points leave the server.
+     * $group is blocking, so the first point is only sent once all matching readings have been scanned.
+     */
+    SERVER
+}
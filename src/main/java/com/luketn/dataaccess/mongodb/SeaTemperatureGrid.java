@@ -0,0 +1,371 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.UpdateOptions;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+import static com.mongodb.client.model.Accumulators.max;
+import static com.mongodb.client.model.Accumulators.min;
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.descending;
+
+/**
+ * Sea surface temperatures pre-aggregated into grid cells at a few resolutions, materialized in their own collection, so
+ * a viewport of a continent or the globe is served from a few thousand cells rather than every report within it.
+ * Each cell holds the sum, count, min and max of the readings within it; it is served as a point at its centre with the
+ * mean temperature.
+ * A background job folds in the reports with a ts after the watermark of its last run, up to the latest ts when the run
+ * starts, in a single aggregation which $merges into the grid. The end of the window is saved as pending before the
+ * merge, and a run after a failed one finishes that same window; each cell records the watermark it has been merged
+ * through, so the cells merged before the failure are not counted twice. Reports written with a ts at or before the
+ * watermark are not folded in; drop the collection to rebuild the grid from scratch on the next run.
+ * Only one instance should build the grid (building is off by default), the rest just read it.
+ */
+@Component
+public class SeaTemperatureGrid implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(SeaTemperatureGrid.class);
+
+    public static final String GRID_COLLECTION_NAME = "sea_temperature_grid";
+    // the watermark is kept in the grid collection, so dropping the grid resets it too
+    private static final String watermark_id = "watermark";
+
+    // cell edge lengths in degrees, from finest to coarsest
+    private static final double[] cell_sizes_degrees = {0.5, 2, 8};
+
+    private final MongoDBProvider mongoDBProvider;
+    private final boolean enabled;
+    private final boolean build;
+    private final Duration refreshInterval;
+    private final double minSpanDegrees;
+    private final int maxCells;
+
+    private volatile Instant watermark;
+    private volatile boolean closed = false;
+    private volatile Thread refresher;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failedRuns = new LongAdder();
+    private final LongAdder viewports = new LongAdder();
+    private final LongAdder cellsServed = new LongAdder();
+    private volatile long lastRunMillis = 0;
+
+    /**
+     * @param build whether this instance builds the grid, rather than only reading it
+     * @param minSpanDegrees viewports spanning at least this many degrees of longitude or latitude are served from the grid
+     * @param maxCells the finest level is chosen which covers a viewport in at most this many cells
+     */
+    public SeaTemperatureGrid(
+            MongoDBProvider mongoDBProvider,
+            @Value("${mongodb-schema.seatemperature.grid.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.grid.build:false}") boolean build,
+            @Value("${mongodb-schema.seatemperature.grid.refresh-interval:5m}") Duration refreshInterval,
+            @Value("${mongodb-schema.seatemperature.grid.min-span-degrees:20}") double minSpanDegrees,
+            @Value("${mongodb-schema.seatemperature.grid.max-cells:10000}") int maxCells) {
+        this.mongoDBProvider = mongoDBProvider;
+        this.enabled = enabled;
+        this.build = build;
+        this.refreshInterval = refreshInterval;
+        this.minSpanDegrees = minSpanDegrees;
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * Idempotently creates the indexes the grid is read and built with: the cell index on the grid, and when this instance
+     * builds the grid, the ts index on the reports which finds each run's window.
+     */
+    public void createIndexes() {
+        if (!enabled) {
+            return;
+        }
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        database.getCollection(GRID_COLLECTION_NAME).createIndex(Indexes.ascending("_id.l", "_id.y", "_id.x"));
+        if (build) {
+            database.getCollection(COLLECTION_NAME).createIndex(Indexes.ascending("ts"));
+        }
+    }
+
+    /**
+     * Whether the viewport is coarse enough to be served from the grid, and the grid has been built.
+     */
+    public boolean serves(BoundingBox boundingBox) {
+        if (!enabled || watermark == null) {
+            return false;
+        }
+        if (!(boundingBox.west() <= boundingBox.east()) || !(boundingBox.south() <= boundingBox.north())) {
+            return false; // left to the raw query, which returns nothing
+        }
+        return boundingBox.east() - boundingBox.west() >= minSpanDegrees || boundingBox.north() - boundingBox.south() >= minSpanDegrees;
+    }
+
+    /**
+     * The cell size in degrees the bounding box would be served at.
+     */
+    public double resolutionFor(BoundingBox boundingBox) {
+        return cell_sizes_degrees[levelFor(boundingBox, maxCells)];
+    }
+
+    /**
+     * The finest level which covers the bounding box in at most the maximum cells, or the coarsest.
+     */
+    static int levelFor(BoundingBox boundingBox, int maxCells) {
+        for (int level = 0; level < cell_sizes_degrees.length - 1; level++) {
+            double cellSize = cell_sizes_degrees[level];
+            long columns = cellX(boundingBox.east(), cellSize) - cellX(boundingBox.west(), cellSize) + 1L;
+            long rows = cellY(boundingBox.north(), cellSize) - cellY(boundingBox.south(), cellSize) + 1L;
+            if (columns * rows <= maxCells) {
+                return level;
+            }
+        }
+        return cell_sizes_degrees.length - 1;
+    }
+
+    /**
+     * Streams a point for each cell whose centre is within the bounding box, with the mean temperature of the cell.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureConsumer seaTemperatureConsumer) {
+        int level = levelFor(boundingBox, maxCells);
+        double cellSize = cell_sizes_degrees[level];
+        viewports.increment();
+
+        MongoCollection<Document> grid = mongoDBProvider.getMongoDatabase().getCollection(GRID_COLLECTION_NAME);
+        Bson filter = and(
+                eq("_id.l", level),
+                gte("_id.x", cellX(boundingBox.west(), cellSize)),
+                lte("_id.x", cellX(boundingBox.east(), cellSize)),
+                gte("_id.y", cellY(boundingBox.south(), cellSize)),
+                lte("_id.y", cellY(boundingBox.north(), cellSize)));
+        int cells = 0;
+        for (Document cell : grid.find(filter).projection(include("sum", "count"))) {
+            Document id = cell.get("_id", Document.class);
+            double longitude = -180 + (id.getInteger("x") + 0.5) * cellSize;
+            double latitude = -90 + (id.getInteger("y") + 0.5) * cellSize;
+            if (longitude < boundingBox.west() || longitude > boundingBox.east() || latitude < boundingBox.south() || latitude > boundingBox.north()) {
+                continue;
+            }
+            double mean = ((Number) cell.get("sum")).doubleValue() / ((Number) cell.get("count")).doubleValue();
+            seaTemperatureConsumer.accept(longitude, latitude, mean);
+            cells++;
+        }
+        cellsServed.add(cells);
+    }
+
+    private static int cellX(double longitude, double cellSize) {
+        int maxX = (int) Math.ceil(360 / cellSize) - 1;
+        return Math.clamp((long) Math.floor((longitude + 180) / cellSize), 0, maxX);
+    }
+
+    private static int cellY(double latitude, double cellSize) {
+        int maxY = (int) Math.ceil(180 / cellSize) - 1;
+        return Math.clamp((long) Math.floor((latitude + 90) / cellSize), 0, maxY);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled) {
+            startRefreshing();
+        }
+    }
+
+    /**
+     * Refreshes the grid (or, when not building it, re-reads its watermark) every refresh interval, on a virtual thread.
+     */
+    public void startRefreshing() {
+        refresher = Thread.ofVirtual().name("sea-temperature-grid").start(() -> {
+            while (!closed) {
+                try {
+                    if (build) {
+                        refresh();
+                    } else {
+                        watermark = readWatermark(mongoDBProvider.getMongoDatabase().getCollection(GRID_COLLECTION_NAME));
+                    }
+                } catch (Exception e) {
+                    if (closed) {
+                        return;
+                    }
+                    log.warn("Failed to refresh the sea temperature grid, retrying in {}", refreshInterval, e);
+                }
+                try {
+                    Thread.sleep(refreshInterval);
+                } catch (InterruptedException _) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Folds the reports since the watermark into the grid, and advances the watermark.
+     * If the last run failed part way through its merge, this finishes the same window rather than starting a new one.
+     */
+    public void refresh() {
+        long startTime = System.currentTimeMillis();
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<Document> reports = database.getCollection(COLLECTION_NAME);
+        MongoCollection<Document> grid = database.getCollection(GRID_COLLECTION_NAME);
+        try {
+            Document state = grid.find(eq("_id", watermark_id)).first();
+            Instant after = instant(state, "through");
+            Instant through = instant(state, "pending");
+            if (through == null) {
+                Document latest = reports.find().sort(descending("ts")).projection(include("ts")).first();
+                through = instant(latest, "ts");
+                if (through == null || (after != null && !through.isAfter(after))) {
+                    watermark = after;
+                    return; // nothing new
+                }
+                // saved before merging, so if the merge fails part way the retry uses the same window, and the cells
+                // already merged through it are skipped rather than merged again over a wider one
+                grid.updateOne(eq("_id", watermark_id), new Document("$set", new Document("pending", Date.from(through))), new UpdateOptions().upsert(true));
+            }
+
+            reports.aggregate(mergePipeline(after, through)).allowDiskUse(true).toCollection();
+            grid.updateOne(eq("_id", watermark_id), new Document("$set", new Document("through", Date.from(through))).append("$unset", new Document("pending", "")), new UpdateOptions().upsert(true));
+            watermark = through;
+            runs.increment();
+            lastRunMillis = System.currentTimeMillis() - startTime;
+            log.info("Sea temperature grid merged reports from {} through {} in {}ms", after, through, lastRunMillis);
+        } catch (RuntimeException e) {
+            failedRuns.increment();
+            throw e;
+        }
+    }
+
+    private static Instant readWatermark(MongoCollection<Document> grid) {
+        return instant(grid.find(eq("_id", watermark_id)).first(), "through");
+    }
+
+    private static Instant instant(Document document, String field) {
+        return document != null && document.getDate(field) != null ? document.getDate(field).toInstant() : null;
+    }
+
+    /**
+     * Groups the readings in the window (after, through] into a cell at every level, and merges each cell's sum, count,
+     * min and max into the grid. Cells already merged through the end of the window are left as they are.
+     *
+     * @param after the previous watermark, or null for every report up to through
+     */
+    static List<Bson> mergePipeline(Instant after, Instant through) {
+        List<Bson> window = new ArrayList<>();
+        if (after != null) {
+            window.add(gt("ts", Date.from(after)));
+        }
+        window.add(lte("ts", Date.from(through)));
+        window.add(ne("seaSurfaceTemperature.value", null));
+        window.add(exists("position.coordinates.1"));
+
+        List<Document> levels = new ArrayList<>(cell_sizes_degrees.length);
+        for (int level = 0; level < cell_sizes_degrees.length; level++) {
+            double cellSize = cell_sizes_degrees[level];
+            levels.add(new Document("l", level)
+                    .append("size", cellSize)
+                    .append("maxX", (int) Math.ceil(360 / cellSize) - 1)
+                    .append("maxY", (int) Math.ceil(180 / cellSize) - 1));
+        }
+        Document cell = new Document("l", "$$level.l")
+                .append("x", cellIndex("$lon", 180, "$$level.size", "$$level.maxX"))
+                .append("y", cellIndex("$lat", 90, "$$level.size", "$$level.maxY"));
+
+        Document merged = new Document("_id", "$_id")
+                .append("sum", new Document("$add", List.of("$sum", "$$new.sum")))
+                .append("count", new Document("$add", List.of("$count", "$$new.count")))
+                .append("min", new Document("$min", List.of("$min", "$$new.min")))
+                .append("max", new Document("$max", List.of("$max", "$$new.max")))
+                .append("through", "$$new.through");
+        Document mergedUnlessAlready = new Document("$cond", List.of(
+                new Document("$gte", List.of("$through", "$$new.through")),
+                "$$ROOT",
+                merged));
+
+        return List.of(
+                match(and(window)),
+                project(new Document()
+                        .append("_id", 0)
+                        .append("lon", new Document("$arrayElemAt", List.of("$position.coordinates", 0)))
+                        .append("lat", new Document("$arrayElemAt", List.of("$position.coordinates", 1)))
+                        .append("temp", "$seaSurfaceTemperature.value")),
+                set(new Field<>("cell", new Document("$map", new Document()
+                        .append("input", levels)
+                        .append("as", "level")
+                        .append("in", cell)))),
+                unwind("$cell"),
+                group("$cell",
+                        sum("sum", "$temp"),
+                        sum("count", 1),
+                        min("min", "$temp"),
+                        max("max", "$temp")),
+                set(new Field<>("through", Date.from(through))),
+                merge(GRID_COLLECTION_NAME, new MergeOptions()
+                        .whenMatched(MergeOptions.WhenMatched.PIPELINE)
+                        .whenMatchedPipeline(List.of(replaceWith(mergedUnlessAlready)))
+                        .whenNotMatched(MergeOptions.WhenNotMatched.INSERT))
+        );
+    }
+
+    // the cell along one axis: floor((value + offset) / size), clamped to the grid
+    private static Document cellIndex(String value, int offset, String size, String max) {
+        Document index = new Document("$floor", new Document("$divide", List.of(new Document("$add", List.of(value, offset)), size)));
+        return new Document("$toInt", new Document("$min", List.of(max, new Document("$max", List.of(0, index)))));
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        Thread thread = refresher;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public record GridStats(
+            boolean enabled,
+            boolean build,
+            Instant watermark,
+            long runs,
+            long failedRuns,
+            long lastRunMillis,
+            long viewports,
+            long cellsServed
+    ) {}
+
+    public GridStats stats() {
+        return new GridStats(enabled, build, watermark, runs.sum(), failedRuns.sum(), lastRunMillis, viewports.sum(), cellsServed.sum());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("sea.temperature.grid.viewports", this, grid -> grid.viewports.sum())
+                .description("Sea temperature viewports served from the pre-aggregated grid rather than every report")
+                .register(registry);
+        FunctionCounter.builder("sea.temperature.grid.runs", this, grid -> grid.runs.sum())
+                .description("Runs which merged new reports into the grid")
+                .register(registry);
+    }
+}
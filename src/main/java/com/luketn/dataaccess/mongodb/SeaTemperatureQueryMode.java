@@ -0,0 +1,16 @@
+package com.luketn.dataaccess.mongodb;
+
+/**
+ * How the bounding box filter for streaming sea temperatures is expressed to MongoDB.
+ */
+public enum SeaTemperatureQueryMode {
+    /**
+     * Range predicates on position.coordinates.0 and position.coordinates.1 (cannot use a geospatial index).
+     */
+    RANGE,
+    /**
+     * $geoWithin a polygon enclosing the bounding box, using the 2dsphere index on position, plus the range predicates for exact edges.
+     * Falls back to RANGE for boxes near the size of a hemisphere or touching a pole, where the index would not narrow the scan anyway.
+     */
+    GEO_WITHIN
+}
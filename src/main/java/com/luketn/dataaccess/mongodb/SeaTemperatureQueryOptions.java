@@ -0,0 +1,18 @@
+package com.luketn.dataaccess.mongodb;
+
+/**
+ * Per-request choices for how sea temperatures are queried. Null fields use the configured defaults.
+ */
+public record SeaTemperatureQueryOptions(
+        SeaTemperatureQueryMode queryMode,
+        SeaTemperatureDedupMode dedupMode
+) {
+    public static final SeaTemperatureQueryOptions DEFAULTS = new SeaTemperatureQueryOptions(null, null);
+
+    public SeaTemperatureQueryOptions withDefaults(SeaTemperatureQueryOptions defaults) {
+        return new SeaTemperatureQueryOptions(
+                queryMode != null ? queryMode : defaults.queryMode(),
+                dedupMode != null ? dedupMode : defaults.dedupMode()
+        );
+    }
+}
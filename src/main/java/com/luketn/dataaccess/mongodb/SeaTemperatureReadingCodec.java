@@ -0,0 +1,109 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Decodes the sea temperature projection ({position: {coordinates: [lon, lat]}, seaSurfaceTemperature: {value}})
+ * directly into primitives, skipping the general purpose POJO codec and the WeatherReport object graph.
+ * Also reads the flat {lon, lat, temp} shape produced by the server-side dedup aggregation.
+ */
+public class SeaTemperatureReadingCodec implements Codec<SeaTemperatureReading> {
+
+    @Override
+    public SeaTemperatureReading decode(BsonReader reader, DecoderContext decoderContext) {
+        double longitude = Double.NaN;
+        double latitude = Double.NaN;
+        double seaSurfaceTemperature = Double.NaN;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (name.equals("position") && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    if (reader.readName().equals("coordinates") && reader.getCurrentBsonType() == BsonType.ARRAY) {
+                        reader.readStartArray();
+                        if (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                            longitude = readNumber(reader);
+                            if (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                                latitude = readNumber(reader);
+                                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                                    reader.skipValue(); // ignore altitude, if present
+                                }
+                            }
+                        }
+                        reader.readEndArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.readEndDocument();
+            } else if (name.equals("seaSurfaceTemperature") && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    if (reader.readName().equals("value")) {
+                        seaSurfaceTemperature = readNumber(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.readEndDocument();
+            } else if (name.equals("lon")) {
+                longitude = readNumber(reader);
+            } else if (name.equals("lat")) {
+                latitude = readNumber(reader);
+            } else if (name.equals("temp")) {
+                seaSurfaceTemperature = readNumber(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return new SeaTemperatureReading(longitude, latitude, seaSurfaceTemperature);
+    }
+
+    private static double readNumber(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case DOUBLE -> reader.readDouble();
+            case INT32 -> reader.readInt32();
+            case INT64 -> reader.readInt64();
+            case DECIMAL128 -> reader.readDecimal128().doubleValue();
+            default -> {
+                reader.skipValue();
+                yield Double.NaN;
+            }
+        };
+    }
+
+    @Override
+    public void encode(BsonWriter writer, SeaTemperatureReading value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (value.hasPosition()) {
+            writer.writeStartDocument("position");
+            writer.writeString("type", "Point");
+            writer.writeStartArray("coordinates");
+            writer.writeDouble(value.longitude());
+            writer.writeDouble(value.latitude());
+            writer.writeEndArray();
+            writer.writeEndDocument();
+        }
+        if (value.hasSeaSurfaceTemperature()) {
+            writer.writeStartDocument("seaSurfaceTemperature");
+            writer.writeDouble("value", value.seaSurfaceTemperature());
+            writer.writeEndDocument();
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<SeaTemperatureReading> getEncoderClass() {
+        return SeaTemperatureReading.class;
+    }
+}
@@ -1,27 +1,48 @@
 package com.luketn.dataaccess.mongodb;
 
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
 import com.luketn.datamodel.mongodb.WeatherReport;
 import com.luketn.datamodel.mongodb.WeatherReportSummary;
 import com.luketn.datamodel.mongodb.WeatherReportSummaryList;
 import com.luketn.seatemperature.datamodel.BoundingBox;
 import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Facet;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.geojson.Polygon;
+import com.mongodb.client.model.geojson.Position;
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.json.JsonWriterSettings;
 import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 
+import static com.mongodb.client.model.Accumulators.top;
 import static com.mongodb.client.model.Aggregates.*;
 import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
 
 @Component
 public class WeatherDataAccess {
@@ -31,89 +52,397 @@ public class WeatherDataAccess {
 
     private static final int pageSize = 10;
 
+    // the bounding polygon is padded and densified so its geodesic edges always enclose the box's lines of latitude
+    private static final double geo_within_padding_degrees = 0.01;
+    private static final double geo_within_edge_step_degrees = 1.0;
+
     private final MongoDBProvider mongoDBProvider;
+    private final ReportCountCache reportCountCache;
+    private final int cursorBatchSize;
+    private final SeaTemperatureQueryOptions defaultSeaTemperatureQueryOptions;
 
-    public WeatherDataAccess(MongoDBProvider mongoDBProvider) {
+    public WeatherDataAccess(
+            MongoDBProvider mongoDBProvider,
+            ReportCountCache reportCountCache,
+            @Value("${mongodb-schema.seatemperature.batching.cursor-batch-size:500}") int cursorBatchSize,
+            @Value("${mongodb-schema.seatemperature.query-mode:RANGE}") SeaTemperatureQueryMode defaultSeaTemperatureQueryMode,
+            @Value("${mongodb-schema.seatemperature.dedup-mode:JVM}") SeaTemperatureDedupMode defaultSeaTemperatureDedupMode) {
         this.mongoDBProvider = mongoDBProvider;
+        this.reportCountCache = reportCountCache;
+        this.cursorBatchSize = cursorBatchSize;
+        this.defaultSeaTemperatureQueryOptions = new SeaTemperatureQueryOptions(defaultSeaTemperatureQueryMode, defaultSeaTemperatureDedupMode);
+    }
+
+    /**
+     * Idempotently creates the indexes used by the queries in this class.
+     */
+    public void createIndexes() {
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+        collection.createIndex(Indexes.geo2dsphere("position"));
     }
 
     public WeatherReport getReport(String id) {
+        return getReport(id, null);
+    }
+
+    /**
+     * The report with only the fields given (and its id), or null if there is no such report.
+     *
+     * @param fields the fields to fetch, or null for the whole report
+     */
+    public WeatherReport getReport(String id, ReportFields fields) {
         MongoDatabase database = mongoDBProvider.getMongoDatabase();
         MongoCollection<WeatherReport> collection = database.getCollection(COLLECTION_NAME, WeatherReport.class);
-        return collection.find(new Document("_id", new ObjectId(id))).first();
+        return collection.find(new Document("_id", new ObjectId(id)))
+                .projection(fields != null ? fields.projection() : null)
+                .first();
     }
 
-    public WeatherReportSummaryList listReports(int page) {
+    /**
+     * Finds the reports with the ids in a single query, passing each to the consumer as soon as it is decoded, in no
+     * particular order. Ids with no report are skipped.
+     *
+     * @param ids valid ObjectIds. The batch size is the number of ids, so every report comes back in a single round trip
+     *            unless they exceed MongoDB's 16MB reply limit
+     */
+    public void findReports(List<String> ids, Consumer<WeatherReport> consumer) {
+        findReports(ids, null, consumer);
+    }
+
+    /**
+     * As findReports, fetching only the fields given (and the ids), or the whole reports if fields is null.
+     */
+    public void findReports(List<String> ids, ReportFields fields, Consumer<WeatherReport> consumer) {
+        List<ObjectId> objectIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            objectIds.add(new ObjectId(id));
+        }
         MongoDatabase database = mongoDBProvider.getMongoDatabase();
-        MongoCollection<WeatherReportSummaryAggregate> collection = database.getCollection(COLLECTION_NAME, WeatherReportSummaryAggregate.class);
-
-        WeatherReportSummaryAggregate result = collection.aggregate(List.of(
-                        facet(
-                                new Facet("reports", List.of(
-                                        skip(page * pageSize),
-                                        limit(pageSize),
-                                        project(new Document()
-                                                .append("_id", 1)
-                                                .append("ts", "$ts")
-                                                .append("seaSurfaceTemperature", "$seaSurfaceTemperature.value")
-                                                .append("airTemperature", "$airTemperature.value")
-                                        )
-                                ))
-                                ,new Facet("summary", List.of(
-                                        count()
-                                ))
-                        )
-                )
-        ).first();
+        MongoCollection<WeatherReport> collection = database.getCollection(COLLECTION_NAME, WeatherReport.class);
+        collection.find(in("_id", objectIds))
+                .projection(fields != null ? fields.projection() : null)
+                .batchSize(objectIds.size())
+                .forEach(consumer);
+    }
+
+    /**
+     * Lists a page of reports by page number (offset pagination, kept for compatibility).
+     * The cost of page N grows with N, as MongoDB must skip all the reports before it; prefer listReportsAfter.
+     */
+    public WeatherReportSummaryList listReports(int page) {
+        CompletableFuture<Long> totalReports = reportCountCache.count();
 
-        Integer totalReportsMatched = Objects.requireNonNull(result).summary().getFirst().count();
-        if (totalReportsMatched == null) {
-            totalReportsMatched = 0;
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<WeatherReportSummary> collection = database.getCollection(COLLECTION_NAME, WeatherReportSummary.class);
+        List<WeatherReportSummary> reports = collection.aggregate(List.of(
+                sort(ascending("_id")),
+                skip(page * pageSize),
+                limit(pageSize + 1), // one extra, to know whether there is a next page
+                project(reportSummaryProjection())
+        )).into(new ArrayList<>(pageSize + 1));
+        String nextPageToken = null;
+        if (reports.size() > pageSize) {
+            reports = reports.subList(0, pageSize);
+            nextPageToken = encodePageToken(reports.getLast().id());
         }
-        int totalPages = (int) Math.ceil((double) totalReportsMatched / pageSize);
+
         return new WeatherReportSummaryList(
-                result.reports(),
+                reports,
                 page,
-                totalPages
+                totalPages(totalReports),
+                nextPageToken
         );
     }
 
-    public record WeatherReportSummaryAggregate(
-        List<WeatherReportSummary> reports,
-        List<Summary> summary
-    ) {
-        public record Summary(Integer count) {}
-    }
+    /**
+     * Lists the page of reports following the one which returned the page token (keyset pagination on _id).
+     * Each page is a range scan of the _id index, so costs the same however deep it is.
+     *
+     * @param pageToken the nextPageToken of the previous page, or null for the first page
+     * @throws IllegalArgumentException if the page token is not valid
+     */
+    public WeatherReportSummaryList listReportsAfter(String pageToken) {
+        List<Bson> pipeline = new ArrayList<>();
+        if (pageToken != null) {
+            pipeline.add(match(gt("_id", decodePageToken(pageToken))));
+        }
+        pipeline.add(sort(ascending("_id")));
+        pipeline.add(limit(pageSize + 1)); // one extra, to know whether there is a next page
+        pipeline.add(project(reportSummaryProjection()));
+
+        CompletableFuture<Long> totalReports = reportCountCache.count();
 
-    public void streamSeaTemperatures(BoundingBox boundingBox, Consumer<WeatherReport> weatherReportConsumer) {
         MongoDatabase database = mongoDBProvider.getMongoDatabase();
-        MongoCollection<WeatherReport> collection = database.getCollection(COLLECTION_NAME, WeatherReport.class);
+        MongoCollection<WeatherReportSummary> collection = database.getCollection(COLLECTION_NAME, WeatherReportSummary.class);
+        List<WeatherReportSummary> reports = collection.aggregate(pipeline).into(new ArrayList<>(pageSize + 1));
+        String nextPageToken = null;
+        if (reports.size() > pageSize) {
+            reports = reports.subList(0, pageSize);
+            nextPageToken = encodePageToken(reports.getLast().id());
+        }
 
-        Bson filter = and(
-                gte("position.coordinates.0", boundingBox.west()),
-                lte("position.coordinates.0", boundingBox.east()),
-                gte("position.coordinates.1", boundingBox.south()),
-                lte("position.coordinates.1", boundingBox.north())
+        return new WeatherReportSummaryList(
+                reports,
+                null,
+                totalPages(totalReports),
+                nextPageToken
         );
+    }
+
+    private static int totalPages(CompletableFuture<Long> totalReports) {
+        long count;
+        try {
+            count = totalReports.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return (int) Math.ceil((double) count / pageSize);
+    }
+
+    private static Document reportSummaryProjection() {
+        return new Document()
+                .append("_id", 1)
+                .append("ts", "$ts")
+                .append("seaSurfaceTemperature", "$seaSurfaceTemperature.value")
+                .append("airTemperature", "$airTemperature.value");
+    }
+
+    // page tokens are the url-safe base64 of the last _id's bytes; opaque to clients so the key can change later
+    private static String encodePageToken(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(new ObjectId(lastId).toByteArray());
+    }
+
+    private static ObjectId decodePageToken(String pageToken) {
+        byte[] bytes = Base64.getUrlDecoder().decode(pageToken);
+        if (bytes.length != 12) {
+            throw new IllegalArgumentException("Invalid page token");
+        }
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Receives the position and sea surface temperature of each report, without materializing a WeatherReport.
+     */
+    @FunctionalInterface
+    public interface SeaTemperatureConsumer {
+        void accept(double longitude, double latitude, double seaSurfaceTemperature);
+
+        /**
+         * Every reading fetched so far has been accepted, and the stream is about to wait on MongoDB for more.
+         */
+        default void fetchingMore() {}
+
+        /**
+         * A cursor batch of this many documents has been read from MongoDB, and its readings accepted.
+         */
+        default void fetchedBatch(int documents) {}
+    }
+
+    /**
+     * The options with the configured defaults in place of any not chosen, so results can be told apart by strategy.
+     */
+    public SeaTemperatureQueryOptions withDefaults(SeaTemperatureQueryOptions options) {
+        return options.withDefaults(defaultSeaTemperatureQueryOptions);
+    }
 
-        Document projection = new Document()
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureConsumer seaTemperatureConsumer) {
+        streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, seaTemperatureConsumer);
+    }
+
+    /**
+     * Streams the readings within the bounding box from a sync driver cursor, reading a fixed cursor-batch-size documents
+     * in the first reply and in every getMore. Unlike the reactive engine's demand, the batches don't start small and
+     * grow: the sync driver fixes a cursor's batch size when it is opened, and issuing the getMores by hand to resize
+     * them would bypass the driver's session, retry and cursor cleanup handling. The first events still go out early,
+     * as the service sends small events at first, whatever the cursor's batch size.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+        options = options.withDefaults(defaultSeaTemperatureQueryOptions);
+
+        if (log.isTraceEnabled()) {
+            Document explain = explainSeaTemperatures(boundingBox, options);
+            log.trace("MongoDB explain plan for sea surface temperature query ({}):\n{}", options, explain.toJson(JsonWriterSettings.builder().indent(true).build()));
+        }
+
+        MongoIterable<SeaTemperatureReading> readings = switch (options.dedupMode()) {
+            case JVM -> findSeaTemperatures(boundingBox, options.queryMode());
+            case SERVER -> aggregateUniqueSeaTemperatures(boundingBox, options.queryMode());
+        };
+        // the driver asks for a batch of this size in the first reply and in every getMore
+        try (MongoCursor<SeaTemperatureReading> cursor = readings.batchSize(cursorBatchSize).cursor()) {
+            int documents = 0;
+            while (cursor.hasNext()) {
+                SeaTemperatureReading reading = cursor.next();
+                documents++;
+                if (reading.hasPosition() && reading.hasSeaSurfaceTemperature()) {
+                    seaTemperatureConsumer.accept(reading.longitude(), reading.latitude(), reading.seaSurfaceTemperature());
+                }
+                if (cursor.available() == 0) {
+                    seaTemperatureConsumer.fetchedBatch(documents);
+                    documents = 0;
+                    if (cursor.getServerCursor() != null) {
+                        seaTemperatureConsumer.fetchingMore();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the readings with a sea surface temperature within the bounding box (duplicate coordinates included),
+     * stopping at the limit, as a cheap estimate of how many points a stream would send.
+     */
+    public long countSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, int limit) {
+        options = options.withDefaults(defaultSeaTemperatureQueryOptions);
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+        return collection.countDocuments(
+                and(seaTemperatureFilter(boundingBox, options.queryMode()), ne("seaSurfaceTemperature.value", null)),
+                new CountOptions().limit(limit));
+    }
+
+    /**
+     * Explains the query streamSeaTemperatures would run, with execution stats.
+     */
+    public Document explainSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options) {
+        options = options.withDefaults(defaultSeaTemperatureQueryOptions);
+        return switch (options.dedupMode()) {
+            case JVM -> findSeaTemperatures(boundingBox, options.queryMode()).explain(ExplainVerbosity.EXECUTION_STATS);
+            case SERVER -> aggregateUniqueSeaTemperatures(boundingBox, options.queryMode()).explain(ExplainVerbosity.EXECUTION_STATS);
+        };
+    }
+
+    private FindIterable<SeaTemperatureReading> findSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryMode queryMode) {
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<SeaTemperatureReading> collection = database.getCollection(COLLECTION_NAME, SeaTemperatureReading.class);
+
+        return collection
+                .find(seaTemperatureFilter(boundingBox, queryMode))
+                .projection(seaTemperatureProjection());
+    }
+
+    private AggregateIterable<SeaTemperatureReading> aggregateUniqueSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryMode queryMode) {
+        MongoDatabase database = mongoDBProvider.getMongoDatabase();
+        MongoCollection<SeaTemperatureReading> collection = database.getCollection(COLLECTION_NAME, SeaTemperatureReading.class);
+
+        return collection.aggregate(uniqueSeaTemperaturesPipeline(boundingBox, queryMode))
+                .allowDiskUse(true);
+    }
+
+    /**
+     * Publishes the readings streamSeaTemperatures would return, from the Reactive Streams driver.
+     * Documents are only fetched from MongoDB as the subscriber requests them, and the driver sizes each batch by the demand.
+     * Unlike streamSeaTemperatures, readings without a position or sea surface temperature are published too.
+     */
+    public Publisher<SeaTemperatureReading> publishSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options) {
+        options = options.withDefaults(defaultSeaTemperatureQueryOptions);
+        com.mongodb.reactivestreams.client.MongoCollection<SeaTemperatureReading> collection = mongoDBProvider.getReactiveMongoDatabase()
+                .getCollection(COLLECTION_NAME, SeaTemperatureReading.class);
+        return switch (options.dedupMode()) {
+            case JVM -> collection
+                    .find(seaTemperatureFilter(boundingBox, options.queryMode()))
+                    .projection(seaTemperatureProjection());
+            case SERVER -> collection
+                    .aggregate(uniqueSeaTemperaturesPipeline(boundingBox, options.queryMode()))
+                    .allowDiskUse(true);
+        };
+    }
+
+    /**
+     * Opens a change stream of the position and sea surface temperature of each report inserted with one, resuming
+     * after the token if there is one so that inserts made while it was closed are not missed.
+     * The stream's events carry nothing else of the report, and are not filtered by position.
+     */
+    public MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> watchSeaTemperatureInserts(BsonDocument resumeToken) {
+        MongoCollection<SeaTemperatureReading> collection = mongoDBProvider.getMongoDatabase().getCollection(COLLECTION_NAME, SeaTemperatureReading.class);
+        List<Bson> pipeline = List.of(
+                match(and(
+                        eq("operationType", "insert"),
+                        exists("fullDocument.position.coordinates"),
+                        exists("fullDocument.seaSurfaceTemperature.value"))),
+                project(Projections.include(
+                        "operationType",
+                        "fullDocument.position.coordinates",
+                        "fullDocument.seaSurfaceTemperature.value")));
+        ChangeStreamIterable<SeaTemperatureReading> changeStream = collection.watch(pipeline);
+        if (resumeToken != null) {
+            changeStream = changeStream.resumeAfter(resumeToken);
+        }
+        return changeStream.cursor();
+    }
+
+    private static Document seaTemperatureProjection() {
+        return new Document()
                 .append("_id", 0)
                 .append("position.coordinates", 1)
                 .append("seaSurfaceTemperature.value", 1);
+    }
 
+    private static List<Bson> uniqueSeaTemperaturesPipeline(BoundingBox boundingBox, SeaTemperatureQueryMode queryMode) {
+        return List.of(
+                match(and(
+                        seaTemperatureFilter(boundingBox, queryMode),
+                        ne("seaSurfaceTemperature.value", null)
+                )),
+                // the latest reading at each coordinate (the _id breaking ties), so the temperature is the same on every run
+                group("$position.coordinates", top("temp", descending("ts", "_id"), "$seaSurfaceTemperature.value")),
+                project(new Document()
+                        .append("_id", 0)
+                        .append("lon", new Document("$arrayElemAt", List.of("$_id", 0)))
+                        .append("lat", new Document("$arrayElemAt", List.of("$_id", 1)))
+                        .append("temp", 1)
+                )
+        );
+    }
 
-        if (log.isTraceEnabled()) {
-            Document explain = collection
-                    .find(filter)
-                    .projection(projection)
-                    .explain(ExplainVerbosity.EXECUTION_STATS);
-            log.trace("MongoDB explain plan for sea surface temperature query:\n{}", explain.toJson(JsonWriterSettings.builder().indent(true).build()));
+    private static Bson seaTemperatureFilter(BoundingBox boundingBox, SeaTemperatureQueryMode queryMode) {
+        Bson rangeFilter = and(
+                gte("position.coordinates.0", boundingBox.west()),
+                lte("position.coordinates.0", boundingBox.east()),
+                gte("position.coordinates.1", boundingBox.south()),
+                lte("position.coordinates.1", boundingBox.north())
+        );
+        if (queryMode == SeaTemperatureQueryMode.GEO_WITHIN) {
+            Polygon boundingPolygon = boundingPolygon(boundingBox);
+            if (boundingPolygon != null) {
+                // the polygon selects candidates from the 2dsphere index, the range predicates keep the edges exact
+                return and(geoWithin("position", boundingPolygon), rangeFilter);
+            }
+        }
+        return rangeFilter;
+    }
+
+    /**
+     * A GeoJSON polygon enclosing the bounding box, or null if the box touches a pole or is too large to be expressed as a single-hemisphere polygon.
+     */
+    static Polygon boundingPolygon(BoundingBox boundingBox) {
+        double south = boundingBox.south() - geo_within_padding_degrees;
+        double north = boundingBox.north() + geo_within_padding_degrees;
+        double west = boundingBox.west() - geo_within_padding_degrees;
+        double east = boundingBox.east() + geo_within_padding_degrees;
+        if (south <= -90 || north >= 90 || west < -180 || east > 180 || west >= east || south >= north) {
+            return null;
+        }
+        // MongoDB takes the smaller of the two regions a polygon ring divides the sphere into, so stay well inside a hemisphere
+        double steradians = Math.toRadians(east - west) * (Math.sin(Math.toRadians(north)) - Math.sin(Math.toRadians(south)));
+        if (steradians > 0.9 * 2 * Math.PI) {
+            return null;
         }
 
-        collection
-                .find(filter)
-                .projection(projection)
-                .batchSize(pageSize)
-                .forEach(weatherReportConsumer);
+        // counter-clockwise: along the south edge heading east, then back along the north edge heading west
+        int edgeSteps = (int) Math.ceil((east - west) / geo_within_edge_step_degrees);
+        List<Position> ring = new ArrayList<>(edgeSteps * 2 + 3);
+        for (int i = 0; i <= edgeSteps; i++) {
+            ring.add(new Position(west + (east - west) * i / edgeSteps, south));
+        }
+        for (int i = edgeSteps; i >= 0; i--) {
+            ring.add(new Position(west + (east - west) * i / edgeSteps, north));
+        }
+        ring.add(ring.getFirst());
+        return new Polygon(ring);
     }
 }
@@ -0,0 +1,19 @@
+package com.luketn.datamodel.mongodb;
+
+/**
+ * The projection of a weather report used for streaming sea surface temperatures, decoded straight from BSON into primitives.
+ * Fields absent from the document are NaN.
+ */
+public record SeaTemperatureReading(
+        double longitude,
+        double latitude,
+        double seaSurfaceTemperature
+) {
+    public boolean hasSeaSurfaceTemperature() {
+        return !Double.isNaN(seaSurfaceTemperature);
+    }
+
+    public boolean hasPosition() {
+        return !Double.isNaN(longitude) && !Double.isNaN(latitude);
+    }
+}
@@ -2,8 +2,17 @@ package com.luketn.datamodel.mongodb;
 
 import java.util.List;
 
+/**
+ * A page of report summaries.
+ * page is only set when listing by page number; pass nextPageToken back to fetch the following page (absent on the last page).
+ */
 public record WeatherReportSummaryList(
         List<WeatherReportSummary> reports,
-        int page,
-        int totalPages
-) { }
+        Integer page,
+        int totalPages,
+        String nextPageToken
+) {
+    public WeatherReportSummaryList(List<WeatherReportSummary> reports, Integer page, int totalPages) {
+        this(reports, page, totalPages, null);
+    }
+}
@@ -0,0 +1,159 @@
+package com.luketn.seatemperature;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sizes the batches of a sea temperature stream. Both the SSE events sent to the client and the reactive engine's demand
+ * on its MongoDB cursor start small, so the first points arrive quickly, then grow geometrically up to a maximum as the
+ * stream continues. The synchronous engine's cursor batches are a fixed size, configured on WeatherDataAccess.
+ * An event is also sent before it is full once its first point has lingered for the configured time, or when the stream
+ * is about to wait on MongoDB for more readings.
+ * Counts every decision, for the /weather/sea/temperature/batching endpoint.
+ */
+@Component
+public class AdaptiveBatchPolicy {
+    private final int initialEventSize;
+    private final int maxEventSize;
+    private final int initialCursorBatchSize;
+    private final int maxCursorBatchSize;
+    private final double growthFactor;
+    private final long lingerNanos;
+
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder eventPoints = new LongAdder();
+    private final LongAdder[] eventsByTrigger = new LongAdder[EventTrigger.values().length];
+    private final LongAdder cursorBatches = new LongAdder();
+    private final LongAdder cursorDocuments = new LongAdder();
+
+    public AdaptiveBatchPolicy(
+            @Value("${mongodb-schema.seatemperature.batching.initial-event-size:" + SeaTemperatureService.initial_batch_size + "}") int initialEventSize,
+            @Value("${mongodb-schema.seatemperature.batching.max-event-size:500}") int maxEventSize,
+            @Value("${mongodb-schema.seatemperature.batching.initial-cursor-batch-size:10}") int initialCursorBatchSize,
+            @Value("${mongodb-schema.seatemperature.batching.max-cursor-batch-size:2000}") int maxCursorBatchSize,
+            @Value("${mongodb-schema.seatemperature.batching.growth-factor:2.0}") double growthFactor,
+            @Value("${mongodb-schema.seatemperature.batching.linger:100ms}") Duration linger) {
+        if (initialEventSize < 1 || maxEventSize < initialEventSize || initialCursorBatchSize < 1 || maxCursorBatchSize < initialCursorBatchSize || growthFactor < 1) {
+            throw new IllegalArgumentException("Batch sizes must be positive, with maximums no smaller than the initial sizes, and a growth factor of at least 1.");
+        }
+        this.initialEventSize = initialEventSize;
+        this.maxEventSize = maxEventSize;
+        this.initialCursorBatchSize = initialCursorBatchSize;
+        this.maxCursorBatchSize = maxCursorBatchSize;
+        this.growthFactor = growthFactor;
+        this.lingerNanos = linger.toNanos();
+        for (int i = 0; i < eventsByTrigger.length; i++) {
+            eventsByTrigger[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Fixed size batches with no linger, as before batching was adaptive.
+     */
+    public static AdaptiveBatchPolicy fixed(int eventSize, int cursorBatchSize) {
+        return new AdaptiveBatchPolicy(eventSize, eventSize, cursorBatchSize, cursorBatchSize, 1, Duration.ofNanos(Long.MAX_VALUE));
+    }
+
+    /**
+     * Why an event was sent.
+     */
+    public enum EventTrigger {
+        /** it reached the current event size */
+        FULL,
+        /** its first point had waited for the linger time */
+        LINGER,
+        /** the stream was about to wait on MongoDB */
+        FETCH,
+        /** the stream ended */
+        END
+    }
+
+    /**
+     * A geometric sequence of sizes, for one stream. Not thread safe.
+     */
+    public final class Sizes {
+        private int next;
+        private final int max;
+
+        private Sizes(int initial, int max) {
+            this.next = initial;
+            this.max = max;
+        }
+
+        public int next() {
+            int size = next;
+            next = (int) Math.min(max, Math.ceil(next * growthFactor));
+            return size;
+        }
+    }
+
+    public Sizes eventSizes() {
+        streams.increment();
+        return new Sizes(initialEventSize, maxEventSize);
+    }
+
+    public Sizes cursorBatchSizes() {
+        return new Sizes(initialCursorBatchSize, maxCursorBatchSize);
+    }
+
+    public int maxEventSize() {
+        return maxEventSize;
+    }
+
+    public long lingerNanos() {
+        return lingerNanos;
+    }
+
+    public void recordEvent(int points, EventTrigger trigger) {
+        events.increment();
+        eventPoints.add(points);
+        eventsByTrigger[trigger.ordinal()].increment();
+    }
+
+    public long events(EventTrigger trigger) {
+        return eventsByTrigger[trigger.ordinal()].sum();
+    }
+
+    public void recordCursorBatch(int documents) {
+        cursorBatches.increment();
+        cursorDocuments.add(documents);
+    }
+
+    public record BatchingStats(
+            long streams,
+            long events,
+            long eventPoints,
+            double averageEventSize,
+            long fullEvents,
+            long lingerEvents,
+            long fetchEvents,
+            long endEvents,
+            long cursorBatches,
+            long cursorDocuments,
+            double averageCursorBatchSize
+    ) {}
+
+    public BatchingStats stats() {
+        long events = this.events.sum();
+        long eventPoints = this.eventPoints.sum();
+        long cursorBatches = this.cursorBatches.sum();
+        long cursorDocuments = this.cursorDocuments.sum();
+        return new BatchingStats(
+                streams.sum(),
+                events,
+                eventPoints,
+                events == 0 ? 0 : (double) eventPoints / events,
+                events(EventTrigger.FULL),
+                events(EventTrigger.LINGER),
+                events(EventTrigger.FETCH),
+                events(EventTrigger.END),
+                cursorBatches,
+                cursorDocuments,
+                cursorBatches == 0 ? 0 : (double) cursorDocuments / cursorBatches
+        );
+    }
+}
@@ -0,0 +1,106 @@
+package com.luketn.seatemperature;
+
+/**
+ * An open-addressing hash set of longitude/latitude pairs, stored as the raw bits of the two doubles.
+ * Avoids boxing a Double pair per point, so memory is bounded by the number of unique coordinates.
+ * Coordinates are compared the same way as Double.equals (bit patterns, NaN collapsed to one value).
+ * Not thread safe.
+ */
+public class CoordinateSet {
+    private static final int default_capacity = 64;
+
+    // keys are stored in pairs: [lon0, lat0, lon1, lat1, ...]
+    private long[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public CoordinateSet() {
+        this(default_capacity);
+    }
+
+    public CoordinateSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(default_capacity, expectedSize * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @return true if the coordinates were not already present
+     */
+    public boolean add(double longitude, double latitude) {
+        long lonBits = Double.doubleToLongBits(longitude);
+        long latBits = Double.doubleToLongBits(latitude);
+
+        int slot = hash(lonBits, latBits) & mask;
+        while (used[slot]) {
+            if (keys[slot * 2] == lonBits && keys[slot * 2 + 1] == latBits) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot * 2] = lonBits;
+        keys[slot * 2 + 1] = latBits;
+        size++;
+
+        // keep the load factor at or below 0.5 so probe sequences stay short
+        if (size * 2 > used.length) {
+            rehash(used.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(double longitude, double latitude) {
+        long lonBits = Double.doubleToLongBits(longitude);
+        long latBits = Double.doubleToLongBits(latitude);
+
+        int slot = hash(lonBits, latBits) & mask;
+        while (used[slot]) {
+            if (keys[slot * 2] == lonBits && keys[slot * 2 + 1] == latBits) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(newCapacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                long lonBits = oldKeys[i * 2];
+                long latBits = oldKeys[i * 2 + 1];
+                int slot = hash(lonBits, latBits) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                keys[slot * 2] = lonBits;
+                keys[slot * 2 + 1] = latBits;
+            }
+        }
+    }
+
+    private static int hash(long lonBits, long latBits) {
+        // murmur3 64-bit finalizer over the combined bits
+        long h = lonBits * 0x9E3779B97F4A7C15L ^ latBits;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
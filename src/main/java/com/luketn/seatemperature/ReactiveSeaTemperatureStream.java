@@ -0,0 +1,200 @@
+package com.luketn.seatemperature;
+
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.seatemperature.AdaptiveBatchPolicy.EventTrigger;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatchEncoder;
+import com.luketn.util.AsyncSse;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+
+/**
+ * Subscribes to sea temperature readings and sends the unique ones to the client in batches.
+ * Readings are requested from the publisher a block at a time, and the next block only once the client has taken every
+ * batch sent so far, so a slow client slows the MongoDB cursor instead of buffering in memory.
+ * Blocks grow as the cursor batch sizes of the AdaptiveBatchPolicy, and the driver sizes its getMores to match.
+ */
+class ReactiveSeaTemperatureStream implements Subscriber<SeaTemperatureReading> {
+    private final AsyncSse sse;
+    private final SeaTemperatureBatchEncoder encoder;
+    private final SeaTemperatureBatch seaTemperaturesBatch;
+    private final SeaTemperatureService service;
+    private final AdaptiveBatchPolicy batchPolicy;
+    private final AdaptiveBatchPolicy.Sizes eventSizes;
+    private final AdaptiveBatchPolicy.Sizes requestSizes;
+    private final long lingerNanos;
+    private final CoordinateSet uniqueCoordinates = new CoordinateSet();
+    private long firstPointNanos;
+    private int received = 0;
+    private int readings = 0;
+    private int duplicates = 0;
+
+    private Subscription subscription;
+    // readings requested and not yet received, whether the stream has ended, the onNext calls using the batch, and
+    // whether it has gone back to the pool (guarded by this)
+    private long outstanding = 0;
+    private boolean done = false;
+    private int delivering = 0;
+    private boolean released = false;
+
+    ReactiveSeaTemperatureStream(AsyncSse sse, SeaTemperatureFormat format, SeaTemperatureBatch seaTemperaturesBatch, SeaTemperatureService service, AdaptiveBatchPolicy batchPolicy) {
+        this.sse = sse;
+        this.encoder = format == SeaTemperatureFormat.BINARY ? new SeaTemperatureBatchEncoder() : null;
+        this.seaTemperaturesBatch = seaTemperaturesBatch;
+        this.service = service;
+        this.batchPolicy = batchPolicy;
+        this.eventSizes = batchPolicy.eventSizes();
+        this.requestSizes = batchPolicy.cursorBatchSizes();
+        this.lingerNanos = batchPolicy.lingerNanos();
+        seaTemperaturesBatch.setLimit(eventSizes.next());
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        synchronized (this) {
+            this.subscription = subscription;
+        }
+        try {
+            sse.stream(this::requestMore, this::cancel);
+        } catch (IOException e) {
+            cancel();
+        }
+    }
+
+    private void requestMore() {
+        int requestSize;
+        synchronized (this) {
+            if (done || outstanding > 0) {
+                return;
+            }
+            requestSize = requestSizes.next();
+            outstanding = requestSize;
+        }
+        subscription.request(requestSize);
+    }
+
+    // the client has gone, so stop the cursor. the batch goes back to the pool now, or once an onNext using it returns
+    private void cancel() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+        }
+        subscription.cancel();
+        releaseBatchIfIdle();
+    }
+
+    // returns the batch to the pool, once only, when the stream has ended and no onNext is using it
+    private void releaseBatchIfIdle() {
+        synchronized (this) {
+            if (!done || delivering > 0 || released) {
+                return;
+            }
+            released = true;
+        }
+        service.releaseBatch(seaTemperaturesBatch);
+    }
+
+    @Override
+    public void onNext(SeaTemperatureReading reading) {
+        synchronized (this) {
+            if (done) {
+                return; // cancelled, so the batch may already be back in the pool
+            }
+            delivering++;
+        }
+        try {
+            deliver(reading);
+        } finally {
+            synchronized (this) {
+                delivering--;
+            }
+            releaseBatchIfIdle(); // if the stream ended while this was using the batch
+        }
+    }
+
+    private void deliver(SeaTemperatureReading reading) {
+        received++;
+        boolean unique = false;
+        if (reading.hasPosition() && reading.hasSeaSurfaceTemperature()) {
+            readings++;
+            unique = uniqueCoordinates.add(reading.longitude(), reading.latitude());
+            if (!unique) {
+                duplicates++;
+            }
+        }
+        if (unique) {
+            long now = System.nanoTime();
+            if (seaTemperaturesBatch.isEmpty()) {
+                firstPointNanos = now;
+            }
+            seaTemperaturesBatch.add(reading.longitude(), reading.latitude(), reading.seaSurfaceTemperature());
+            if (seaTemperaturesBatch.isFull()) {
+                send(EventTrigger.FULL);
+            } else if (now - firstPointNanos >= lingerNanos) {
+                send(EventTrigger.LINGER);
+            }
+        }
+        boolean exhausted;
+        synchronized (this) {
+            exhausted = --outstanding == 0 && !done;
+        }
+        if (exhausted) {
+            batchPolicy.recordCursorBatch(received);
+            received = 0;
+            send(EventTrigger.FETCH); // don't hold points back while waiting on MongoDB
+            sse.resume(); // request the next block once the client has taken what was sent
+        }
+    }
+
+    private void send(EventTrigger trigger) {
+        if (seaTemperaturesBatch.isEmpty()) {
+            return;
+        }
+        batchPolicy.recordEvent(seaTemperaturesBatch.size(), trigger);
+        if (encoder != null) {
+            encoder.encode(seaTemperaturesBatch);
+            sse.sendEvent("points", encoder.base64());
+        } else {
+            sse.sendEvent(seaTemperaturesBatch);
+        }
+        seaTemperaturesBatch.clear();
+        seaTemperaturesBatch.setLimit(eventSizes.next());
+    }
+
+    @Override
+    public void onComplete() {
+        if (!end()) {
+            return;
+        }
+        if (received > 0) {
+            batchPolicy.recordCursorBatch(received);
+        }
+        send(EventTrigger.END);
+        service.recordStream(readings, duplicates);
+        releaseBatchIfIdle();
+        sse.complete();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (!end()) {
+            return;
+        }
+        service.recordStream(readings, duplicates);
+        releaseBatchIfIdle();
+        sse.error(HttpStatus.INTERNAL_SERVER_ERROR, t, "An unexpected error occurred while streaming sea surface temperatures.");
+    }
+
+    private synchronized boolean end() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        return true;
+    }
+}
@@ -0,0 +1,22 @@
+package com.luketn.seatemperature;
+
+/**
+ * How batches of sea temperatures are written to the client.
+ */
+public enum SeaTemperatureFormat {
+    /**
+     * SSE events holding a JSON array of {lon, lat, temp} objects.
+     */
+    JSON,
+    /**
+     * SSE events named 'points', each holding one batch in the compact binary format of SeaTemperatureBatchEncoder, base64 encoded.
+     * Error events are still sent as JSON in unnamed events.
+     */
+    BINARY,
+    /**
+     * A raw application/octet-stream body of batches in the compact binary format, each prefixed with its length as a varint.
+     * A zero length marks the end of the stream, so a client can tell a complete stream from a broken one.
+     * Selected with an 'Accept: application/octet-stream' request header. Only served by the synchronous engine.
+     */
+    OCTET_STREAM
+}
@@ -0,0 +1,154 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the points sent for a viewport with more readings than a browser can draw distinctly.
+ * The readings within the bounding box are counted first (once per stream, shared with the parallel scan by
+ * SeaTemperatureService), stopping just past the maximum. Beyond it, the stream keeps only
+ * the first reading in each cell of a grid on which the bounding box spans at most the maximum points, passing it on
+ * straight away, so points still arrive as they are read and memory stays fixed at a bit per cell.
+ * Cell sizes are powers of two degrees on a grid anchored at -180, -90, so panning keeps the same cells.
+ */
+@Component
+public class SeaTemperatureLevelOfDetail {
+    // cell sizes are powers of two degrees, from about 0.001 up to 256 (which covers any bounding box in a cell or two)
+    private static final int min_cell_size_exponent = -10;
+    private static final int max_cell_size_exponent = 8;
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final boolean enabled;
+    private final int maxPoints;
+
+    private final LongAdder downsampledStreams = new LongAdder();
+    private final LongAdder droppedReadings = new LongAdder();
+
+    public SeaTemperatureLevelOfDetail(
+            WeatherDataAccess weatherDataAccess,
+            @Value("${mongodb-schema.seatemperature.level-of-detail.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.level-of-detail.max-points:10000}") int maxPoints) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.enabled = enabled;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * The most readings worth counting to decide whether to downsample, or 0 if nothing is downsampled.
+     */
+    public int countLimit() {
+        return enabled ? maxPoints + 1 : 0;
+    }
+
+    /**
+     * The cell size in degrees to downsample the bounding box to, or 0 to send every point.
+     *
+     * @param readings the readings within the bounding box, counted up to at least the count limit
+     */
+    public double resolutionFor(BoundingBox boundingBox, long readings) {
+        if (!downsamples(readings)) {
+            return 0;
+        }
+        downsampledStreams.increment();
+        return cellSizeFor(boundingBox, maxPoints);
+    }
+
+    /**
+     * Whether a bounding box with this many readings (counted up to at least the count limit) is too many to be sent in full.
+     */
+    public boolean downsamples(long readings) {
+        return enabled && readings > maxPoints;
+    }
+
+    /**
+     * Whether the bounding box has too many readings to be sent in full, counting them.
+     */
+    public boolean downsamples(BoundingBox boundingBox, SeaTemperatureQueryOptions options) {
+        if (!enabled || !(boundingBox.west() <= boundingBox.east()) || !(boundingBox.south() <= boundingBox.north())) {
+            return false;
+        }
+        return downsamples(weatherDataAccess.countSeaTemperatures(boundingBox, options, countLimit()));
+    }
+
+    /**
+     * The smallest cell size on which the bounding box spans at most the maximum cells.
+     */
+    static double cellSizeFor(BoundingBox boundingBox, int maxCells) {
+        for (int exponent = min_cell_size_exponent; exponent < max_cell_size_exponent; exponent++) {
+            double cellSize = Math.scalb(1.0, exponent);
+            long columns = cell(boundingBox.east(), 180, cellSize) - cell(boundingBox.west(), 180, cellSize) + 1;
+            long rows = cell(boundingBox.north(), 90, cellSize) - cell(boundingBox.south(), 90, cellSize) + 1;
+            if (columns * rows <= maxCells) {
+                return cellSize;
+            }
+        }
+        return Math.scalb(1.0, max_cell_size_exponent);
+    }
+
+    private static long cell(double degrees, int offset, double cellSize) {
+        return (long) Math.floor((degrees + offset) / cellSize);
+    }
+
+    /**
+     * Passes on the first reading in each cell of the given size, and drops the rest.
+     */
+    public SeaTemperatureConsumer downsample(BoundingBox boundingBox, double cellSize, SeaTemperatureConsumer seaTemperatureConsumer) {
+        return new Downsampler(boundingBox, cellSize, seaTemperatureConsumer);
+    }
+
+    private class Downsampler implements SeaTemperatureConsumer {
+        private final double cellSize;
+        private final long minX;
+        private final long minY;
+        private final int columns;
+        private final int rows;
+        private final BitSet occupied;
+        private final SeaTemperatureConsumer seaTemperatureConsumer;
+
+        Downsampler(BoundingBox boundingBox, double cellSize, SeaTemperatureConsumer seaTemperatureConsumer) {
+            this.cellSize = cellSize;
+            this.minX = cell(boundingBox.west(), 180, cellSize);
+            this.minY = cell(boundingBox.south(), 90, cellSize);
+            this.columns = (int) (cell(boundingBox.east(), 180, cellSize) - minX + 1);
+            this.rows = (int) (cell(boundingBox.north(), 90, cellSize) - minY + 1);
+            this.occupied = new BitSet(columns * rows);
+            this.seaTemperatureConsumer = seaTemperatureConsumer;
+        }
+
+        @Override
+        public void accept(double longitude, double latitude, double seaSurfaceTemperature) {
+            int x = Math.clamp(cell(longitude, 180, cellSize) - minX, 0, columns - 1);
+            int y = Math.clamp(cell(latitude, 90, cellSize) - minY, 0, rows - 1);
+            int index = y * columns + x;
+            if (occupied.get(index)) {
+                droppedReadings.increment();
+                return;
+            }
+            occupied.set(index);
+            seaTemperatureConsumer.accept(longitude, latitude, seaSurfaceTemperature);
+        }
+
+        @Override
+        public void fetchingMore() {
+            seaTemperatureConsumer.fetchingMore();
+        }
+
+        @Override
+        public void fetchedBatch(int documents) {
+            seaTemperatureConsumer.fetchedBatch(documents);
+        }
+    }
+
+    public record LevelOfDetailStats(boolean enabled, int maxPoints, long downsampledStreams, long droppedReadings) {}
+
+    public LevelOfDetailStats stats() {
+        return new LevelOfDetailStats(enabled, maxPoints, downsampledStreams.sum(), droppedReadings.sum());
+    }
+}
@@ -0,0 +1,226 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Readings inserted into the collection, passed on to the live viewers whose bounding box contains them.
+ * A single change stream per instance watches for inserts, however many viewers there are. Each insert is routed through
+ * a subscription index to the few subscriptions near it, and queued on each without waiting, so one slow client can't
+ * hold up the change stream or the other clients.
+ * The change stream is reopened after failures, resuming after the last insert seen so none are missed. It is not
+ * reopened if MongoDB is not a replica set, and viewers then only get their first snapshot.
+ */
+@Component
+public class SeaTemperatureLiveFeed {
+    private static final Logger log = LoggerFactory.getLogger(SeaTemperatureLiveFeed.class);
+    // the server's error for a change stream on a standalone server, which retrying will not fix
+    private static final int change_streams_unsupported = 40573;
+    // the server's error when the resume token has aged out of the oplog, so the change stream must start afresh
+    private static final int change_stream_history_lost = 286;
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final boolean enabled;
+    private final int queueSize;
+    private final SeaTemperatureOverflowPolicy defaultOverflowPolicy;
+    private final Duration heartbeatInterval;
+    private final Duration changeStreamRetryInterval;
+    private final SeaTemperatureSubscriptionIndex index;
+    private final Set<SeaTemperatureSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean available = true;
+    private volatile boolean changeStreamOpen = false;
+    private volatile boolean closed = false;
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> changeStream;
+    // only used by the change stream thread
+    private BsonDocument resumeToken;
+
+    public SeaTemperatureLiveFeed(
+            WeatherDataAccess weatherDataAccess,
+            @Value("${mongodb-schema.seatemperature.live.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.live.queue-size:1000}") int queueSize,
+            @Value("${mongodb-schema.seatemperature.live.overflow:CONFLATE}") SeaTemperatureOverflowPolicy defaultOverflowPolicy,
+            @Value("${mongodb-schema.seatemperature.live.index-cell-degrees:10}") double indexCellDegrees,
+            @Value("${mongodb-schema.seatemperature.live.max-index-cells:64}") int maxIndexCells,
+            @Value("${mongodb-schema.seatemperature.live.heartbeat-interval:15s}") Duration heartbeatInterval,
+            @Value("${mongodb-schema.seatemperature.live.change-stream-retry-interval:30s}") Duration changeStreamRetryInterval) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.enabled = enabled;
+        this.queueSize = queueSize;
+        this.defaultOverflowPolicy = defaultOverflowPolicy;
+        this.heartbeatInterval = heartbeatInterval;
+        this.changeStreamRetryInterval = changeStreamRetryInterval;
+        this.index = new SeaTemperatureSubscriptionIndex(indexCellDegrees, maxIndexCells);
+    }
+
+    /**
+     * Whether live viewers can subscribe: the feed is enabled, and MongoDB supports change streams.
+     */
+    public boolean available() {
+        return enabled && available && !closed;
+    }
+
+    /**
+     * How long a live stream may be idle before a heartbeat is sent, to find out if the client has gone.
+     */
+    public Duration heartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Starts queueing the readings inserted within the bounding box, until the subscription is closed.
+     *
+     * @param overflowPolicy what to do once the queue is full, or null for the configured default
+     */
+    public SeaTemperatureSubscription subscribe(BoundingBox boundingBox, SeaTemperatureOverflowPolicy overflowPolicy) {
+        SeaTemperatureSubscription subscription = new SeaTemperatureSubscription(boundingBox,
+                overflowPolicy != null ? overflowPolicy : defaultOverflowPolicy, queueSize, this::unsubscribe);
+        subscriptions.add(subscription);
+        index.add(subscription);
+        if (closed) {
+            subscription.close();
+        }
+        return subscription;
+    }
+
+    private void unsubscribe(SeaTemperatureSubscription subscription) {
+        if (subscriptions.remove(subscription)) {
+            index.remove(subscription);
+        }
+    }
+
+    /**
+     * Queues an inserted reading on every subscription whose bounding box contains it.
+     */
+    void publish(double longitude, double latitude, double seaSurfaceTemperature) {
+        inserts.increment();
+        index.forEachContaining(longitude, latitude, subscription -> {
+            switch (subscription.offer(longitude, latitude, seaSurfaceTemperature)) {
+                case QUEUED -> deliveries.increment();
+                case CONFLATED -> conflated.increment();
+                case DROPPED -> dropped.increment();
+                case CLOSED -> {}
+            }
+        });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled) {
+            startWatching();
+        }
+    }
+
+    /**
+     * Watches the collection for inserts on a virtual thread, reopening the change stream after failures.
+     */
+    public void startWatching() {
+        Thread.ofVirtual().name("sea-temperature-live-change-stream").start(() -> {
+            while (!closed) {
+                try {
+                    watch();
+                } catch (MongoCommandException e) {
+                    if (e.getErrorCode() == change_streams_unsupported) {
+                        log.warn("Change streams are unsupported (MongoDB is not a replica set), live sea temperature viewers only get their first snapshot");
+                        available = false;
+                        closeSubscriptions();
+                        return;
+                    }
+                    if (e.getErrorCode() == change_stream_history_lost) {
+                        resumeToken = null;
+                    }
+                    log.warn("Live sea temperature change stream failed, inserts are not passed on until it reopens", e);
+                } catch (Exception e) {
+                    if (closed) {
+                        return;
+                    }
+                    log.warn("Live sea temperature change stream failed, inserts are not passed on until it reopens", e);
+                }
+                try {
+                    Thread.sleep(changeStreamRetryInterval);
+                } catch (InterruptedException _) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private void watch() {
+        try (MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> cursor = weatherDataAccess.watchSeaTemperatureInserts(resumeToken)) {
+            changeStream = cursor;
+            changeStreamOpen = true;
+            log.info("Live sea temperature change stream opened");
+            while (!closed) {
+                ChangeStreamDocument<SeaTemperatureReading> change = cursor.next();
+                SeaTemperatureReading reading = change.getFullDocument();
+                if (reading == null) {
+                    resumeToken = null; // the collection was dropped or renamed, so the stream can't be resumed after it
+                    return;
+                }
+                resumeToken = cursor.getResumeToken(); // the cursor's, which also advances past events the pipeline filtered out
+                if (reading.hasPosition() && reading.hasSeaSurfaceTemperature()) {
+                    publish(reading.longitude(), reading.latitude(), reading.seaSurfaceTemperature());
+                }
+            }
+        } finally {
+            changeStreamOpen = false;
+            changeStream = null;
+        }
+    }
+
+    private void closeSubscriptions() {
+        for (SeaTemperatureSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    /**
+     * Closes the change stream, and ends every live stream.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> cursor = changeStream;
+        if (cursor != null) {
+            cursor.close();
+        }
+        closeSubscriptions();
+    }
+
+    public record LiveFeedStats(
+            boolean enabled,
+            boolean changeStreamOpen,
+            int subscribers,
+            int indexCells,
+            long inserts,
+            long deliveries,
+            long conflated,
+            long dropped
+    ) {}
+
+    public LiveFeedStats stats() {
+        return new LiveFeedStats(enabled, changeStreamOpen, subscriptions.size(), index.cellCount(), inserts.sum(), deliveries.sum(), conflated.sum(), dropped.sum());
+    }
+}
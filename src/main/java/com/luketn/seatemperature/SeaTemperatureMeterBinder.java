@@ -0,0 +1,79 @@
+package com.luketn.seatemperature;
+
+import com.luketn.util.SseCompression;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes the counters behind the tile cache, level of detail, parallel scan, live feed, batching and compression stats endpoints as metrics.
+ * They are only read when scraped, so the streams themselves do no extra work.
+ */
+@Component
+public class SeaTemperatureMeterBinder implements MeterBinder {
+    private final SeaTemperatureTileCache tileCache;
+    private final SeaTemperatureLevelOfDetail levelOfDetail;
+    private final SeaTemperatureParallelScan parallelScan;
+    private final SeaTemperatureLiveFeed liveFeed;
+    private final AdaptiveBatchPolicy batchPolicy;
+    private final SseCompression sseCompression;
+
+    public SeaTemperatureMeterBinder(SeaTemperatureTileCache tileCache, SeaTemperatureLevelOfDetail levelOfDetail, SeaTemperatureParallelScan parallelScan, SeaTemperatureLiveFeed liveFeed, AdaptiveBatchPolicy batchPolicy, SseCompression sseCompression) {
+        this.tileCache = tileCache;
+        this.levelOfDetail = levelOfDetail;
+        this.parallelScan = parallelScan;
+        this.liveFeed = liveFeed;
+        this.batchPolicy = batchPolicy;
+        this.sseCompression = sseCompression;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        counter(registry, "sea.temperature.cache.hits", "Tiles served from the cache", tileCache, cache -> cache.stats().hits());
+        counter(registry, "sea.temperature.cache.misses", "Tiles fetched from MongoDB", tileCache, cache -> cache.stats().misses());
+        counter(registry, "sea.temperature.cache.shared.misses", "Tile misses served by waiting on another stream's fetch of the tile", tileCache, cache -> cache.stats().sharedMisses());
+        counter(registry, "sea.temperature.cache.evictions", "Tiles evicted to stay within the maximum points", tileCache, cache -> cache.stats().evictions());
+        Gauge.builder("sea.temperature.cache.points", tileCache, cache -> cache.stats().points())
+                .description("Points held in the cache")
+                .register(registry);
+
+        counter(registry, "sea.temperature.level.of.detail.streams", "Streams downsampled to a point per cell", levelOfDetail, lod -> lod.stats().downsampledStreams());
+        counter(registry, "sea.temperature.level.of.detail.dropped", "Readings dropped as their cell already had a point", levelOfDetail, lod -> lod.stats().droppedReadings());
+
+        counter(registry, "sea.temperature.parallel.scan.streams", "Streams read by concurrent cursors", parallelScan, scan -> scan.stats().parallelStreams());
+        counter(registry, "sea.temperature.parallel.scan.cursors", "Cursors read concurrently by parallel streams", parallelScan, scan -> scan.stats().cursors());
+        counter(registry, "sea.temperature.parallel.scan.partitions", "Partitions scanned by parallel streams", parallelScan, scan -> scan.stats().partitions());
+
+        Gauge.builder("sea.temperature.live.subscribers", liveFeed, feed -> feed.stats().subscribers())
+                .description("Live viewers waiting on inserts")
+                .register(registry);
+        counter(registry, "sea.temperature.live.inserts", "Inserted readings seen by the live change stream", liveFeed, feed -> feed.stats().inserts());
+        counter(registry, "sea.temperature.live.deliveries", "Inserted readings queued for live viewers", liveFeed, feed -> feed.stats().deliveries());
+        counter(registry, "sea.temperature.live.conflated", "Inserted readings which replaced one still queued for the same coordinate", liveFeed, feed -> feed.stats().conflated());
+        counter(registry, "sea.temperature.live.dropped", "Inserted readings dropped as a live viewer's queue was full", liveFeed, feed -> feed.stats().dropped());
+
+        for (AdaptiveBatchPolicy.EventTrigger trigger : AdaptiveBatchPolicy.EventTrigger.values()) {
+            FunctionCounter.builder("sea.temperature.batching.events", batchPolicy, policy -> policy.events(trigger))
+                    .description("Events sent, by what triggered them")
+                    .tag("trigger", trigger.name().toLowerCase())
+                    .register(registry);
+        }
+        counter(registry, "sea.temperature.batching.event.points", "Points sent in events", batchPolicy, policy -> policy.stats().eventPoints());
+        counter(registry, "sea.temperature.batching.cursor.batches", "Cursor batches fetched from MongoDB", batchPolicy, policy -> policy.stats().cursorBatches());
+        counter(registry, "sea.temperature.batching.cursor.documents", "Documents fetched in cursor batches", batchPolicy, policy -> policy.stats().cursorDocuments());
+
+        counter(registry, "sse.compression.uncompressed.bytes", "Bytes of events before compression", sseCompression, compression -> compression.stats().uncompressedBytes());
+        counter(registry, "sse.compression.compressed.bytes", "Bytes of events after compression", sseCompression, compression -> compression.stats().compressedBytes());
+        counter(registry, "sse.compression.seconds", "Time spent compressing events", sseCompression, compression -> compression.stats().compressionMillis() / 1000);
+    }
+
+    private static <T> void counter(MeterRegistry registry, String name, String description, T source, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(name, source, count)
+                .description(description)
+                .register(registry);
+    }
+}
@@ -0,0 +1,16 @@
+package com.luketn.seatemperature;
+
+/**
+ * What a live subscriber's queue does with readings inserted faster than the client takes them.
+ */
+public enum SeaTemperatureOverflowPolicy {
+    /**
+     * Every reading is queued in turn. Once the queue is full, new readings are dropped until the client catches up.
+     */
+    DROP,
+    /**
+     * A reading replaces any still queued for the same coordinate, so a client that falls behind gets only the latest
+     * temperature at each point. Once the queue holds its maximum coordinates, readings for new ones are dropped.
+     */
+    CONFLATE
+}
@@ -0,0 +1,259 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scans a bounding box with many readings with several cursors at once, each on a virtual thread, rather than one cursor
+ * reading the whole box in turn.
+ * The readings are counted first, stopping at enough for the maximum cursors, to give a cursor per min-readings-per-cursor
+ * (SeaTemperatureService counts a viewport once, for this and the level of detail, and passes the count in).
+ * The bounding box is then split into partitions of similar numbers of readings, a few per cursor, which the cursors take
+ * in turn from the largest, so that they finish at about the same time.
+ * Each cursor buffers a few readings at a time, then passes them on under a single lock, so the consumer (the dedup and
+ * batching of a stream) sees one reading at a time as if from one cursor. The first cursor to fail cancels the rest, and
+ * its exception is thrown once they have stopped.
+ */
+@Component
+public class SeaTemperatureParallelScan {
+    // readings a cursor holds before taking the lock to pass them on
+    private static final int chunk_size = 256;
+    // more partitions even out clustered readings between the cursors, but each costs another query
+    private static final int partitions_per_cursor = 2;
+    // readings clustered on a point would be halved forever, so stop after a few halvings a partition
+    private static final int max_halvings_per_partition = 4;
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final boolean enabled;
+    private final int maxCursors;
+    private final int minReadingsPerCursor;
+
+    private final LongAdder parallelStreams = new LongAdder();
+    private final LongAdder cursors = new LongAdder();
+    private final LongAdder partitions = new LongAdder();
+    private final LongAdder failedStreams = new LongAdder();
+
+    public SeaTemperatureParallelScan(
+            WeatherDataAccess weatherDataAccess,
+            @Value("${mongodb-schema.seatemperature.parallel-scan.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.parallel-scan.max-cursors:4}") int maxCursors,
+            @Value("${mongodb-schema.seatemperature.parallel-scan.min-readings-per-cursor:5000}") int minReadingsPerCursor) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.enabled = enabled;
+        this.maxCursors = maxCursors;
+        this.minReadingsPerCursor = minReadingsPerCursor;
+    }
+
+    /**
+     * Streams the readings within the bounding box, with concurrent cursors if it has enough of them.
+     * Readings on the edges shared by partitions are passed on by each, so the consumer must drop duplicate coordinates.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+        long readings = scans(boundingBox) ? weatherDataAccess.countSeaTemperatures(boundingBox, options, countLimit()) : 0;
+        streamSeaTemperatures(boundingBox, options, readings, seaTemperatureConsumer);
+    }
+
+    /**
+     * Streams the readings within the bounding box, with concurrent cursors if it has enough of them.
+     *
+     * @param readings the readings within the bounding box, counted up to at least the count limit
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, long readings, SeaTemperatureConsumer seaTemperatureConsumer) {
+        if (!scans(boundingBox)) {
+            weatherDataAccess.streamSeaTemperatures(boundingBox, options, seaTemperatureConsumer);
+            return;
+        }
+        int cursorCount = Math.clamp(readings / Math.max(1, minReadingsPerCursor), 1, maxCursors);
+        if (cursorCount <= 1) {
+            weatherDataAccess.streamSeaTemperatures(boundingBox, options, seaTemperatureConsumer);
+            return;
+        }
+        List<BoundingBox> partitionBoxes = partition(boundingBox, readings, options, cursorCount * partitions_per_cursor);
+        cursorCount = Math.min(cursorCount, partitionBoxes.size());
+        parallelStreams.increment();
+        cursors.add(cursorCount);
+        partitions.add(partitionBoxes.size());
+
+        ConcurrentLinkedQueue<BoundingBox> queue = new ConcurrentLinkedQueue<>(partitionBoxes);
+        Merge merge = new Merge(seaTemperatureConsumer);
+        List<Future<Void>> scans = new ArrayList<>(cursorCount);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < cursorCount; i++) {
+                scans.add(completion.submit(() -> {
+                    Merge.Cursor consumer = merge.new Cursor();
+                    for (BoundingBox partition = queue.poll(); partition != null; partition = queue.poll()) {
+                        weatherDataAccess.streamSeaTemperatures(partition, options, consumer);
+                        consumer.flush();
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (int i = 0; i < scans.size(); i++) {
+                    completion.take().get();
+                }
+            } catch (ExecutionException e) {
+                failedStreams.increment();
+                cancel(merge, scans);
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw new RuntimeException("Failed to scan sea temperatures", e.getCause());
+            } catch (InterruptedException e) {
+                cancel(merge, scans);
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while scanning sea temperatures");
+            }
+        } // closing the executor waits for the cancelled cursors to stop
+    }
+
+    /**
+     * Stops the other cursors: those reading at their next chunk, and those waiting on MongoDB by interrupting them.
+     */
+    private static void cancel(Merge merge, List<Future<Void>> scans) {
+        merge.cancelled = true;
+        for (Future<Void> scan : scans) {
+            scan.cancel(true);
+        }
+    }
+
+    private boolean scans(BoundingBox boundingBox) {
+        return enabled && maxCursors > 1 && boundingBox.west() <= boundingBox.east() && boundingBox.south() <= boundingBox.north();
+    }
+
+    /**
+     * The most readings worth counting to decide how many cursors to scan with, or 0 if every scan uses one cursor.
+     */
+    public int countLimit() {
+        return enabled && maxCursors > 1 ? (int) Math.min(Integer.MAX_VALUE, (long) maxCursors * minReadingsPerCursor) : 0;
+    }
+
+    private record Part(BoundingBox boundingBox, long readings) {}
+
+    /**
+     * The bounding box as up to the maximum partitions, of similar numbers of readings, largest first and leaving out
+     * any without readings. The partition with the most readings is halved across its longer side until none has more
+     * than its share. Readings are rarely spread evenly (the oceans, and the shipping lanes reporting from them), so
+     * halving by count keeps the partitions of similar size where equal strips would leave one with most of the readings.
+     * Counts stop at the same limit as the first, so partitions with more readings than that are halved by area.
+     */
+    List<BoundingBox> partition(BoundingBox boundingBox, long readings, SeaTemperatureQueryOptions options, int maxPartitions) {
+        int limit = countLimit();
+        long share = Math.max(1, readings / maxPartitions);
+        List<Part> parts = new ArrayList<>(maxPartitions + 1);
+        parts.add(new Part(boundingBox, readings));
+        for (int halvings = 0; parts.size() < maxPartitions && halvings < maxPartitions * max_halvings_per_partition; halvings++) {
+            Part largest = parts.stream().max(Comparator.comparingLong(Part::readings)).orElseThrow();
+            if (largest.readings() <= share) {
+                break;
+            }
+            parts.remove(largest);
+            for (BoundingBox half : split(largest.boundingBox(), 2)) {
+                long halfReadings = weatherDataAccess.countSeaTemperatures(half, options, limit);
+                if (halfReadings > 0) {
+                    parts.add(new Part(half, halfReadings));
+                }
+            }
+        }
+        parts.sort(Comparator.comparingLong(Part::readings).reversed());
+        return parts.stream().map(Part::boundingBox).toList();
+    }
+
+    /**
+     * The bounding box as equal strips across its longer side. The strips are closed, so share their edges.
+     */
+    static List<BoundingBox> split(BoundingBox boundingBox, int count) {
+        List<BoundingBox> strips = new ArrayList<>(count);
+        boolean acrossLongitude = boundingBox.east() - boundingBox.west() >= boundingBox.north() - boundingBox.south();
+        double from = acrossLongitude ? boundingBox.west() : boundingBox.south();
+        double to = acrossLongitude ? boundingBox.east() : boundingBox.north();
+        for (int i = 0; i < count; i++) {
+            double start = from + (to - from) * i / count;
+            double end = i == count - 1 ? to : from + (to - from) * (i + 1) / count;
+            strips.add(acrossLongitude
+                    ? new BoundingBox(boundingBox.south(), boundingBox.north(), start, end)
+                    : new BoundingBox(start, end, boundingBox.west(), boundingBox.east()));
+        }
+        return strips;
+    }
+
+    /**
+     * Passes the readings of every cursor on to the consumer, one chunk at a time.
+     */
+    private static class Merge {
+        private final SeaTemperatureConsumer seaTemperatureConsumer;
+        private volatile boolean cancelled = false;
+
+        Merge(SeaTemperatureConsumer seaTemperatureConsumer) {
+            this.seaTemperatureConsumer = seaTemperatureConsumer;
+        }
+
+        class Cursor implements SeaTemperatureConsumer {
+            private final double[] chunk = new double[chunk_size * 3];
+            private int size = 0;
+
+            @Override
+            public void accept(double longitude, double latitude, double seaSurfaceTemperature) {
+                chunk[size * 3] = longitude;
+                chunk[size * 3 + 1] = latitude;
+                chunk[size * 3 + 2] = seaSurfaceTemperature;
+                if (++size == chunk_size) {
+                    flush();
+                }
+            }
+
+            @Override
+            public void fetchingMore() {
+                synchronized (Merge.this) {
+                    flush();
+                    seaTemperatureConsumer.fetchingMore(); // don't hold points back while this cursor waits on MongoDB
+                }
+            }
+
+            @Override
+            public void fetchedBatch(int documents) {
+                synchronized (Merge.this) {
+                    seaTemperatureConsumer.fetchedBatch(documents);
+                }
+            }
+
+            void flush() {
+                if (cancelled) {
+                    throw new CancellationException("Another sea temperature cursor failed");
+                }
+                synchronized (Merge.this) {
+                    for (int i = 0; i < size; i++) {
+                        seaTemperatureConsumer.accept(chunk[i * 3], chunk[i * 3 + 1], chunk[i * 3 + 2]);
+                    }
+                    size = 0;
+                }
+            }
+        }
+    }
+
+    public record ParallelScanStats(boolean enabled, int maxCursors, int minReadingsPerCursor, long parallelStreams, long cursors, long partitions, long failedStreams) {}
+
+    public ParallelScanStats stats() {
+        return new ParallelScanStats(enabled, maxCursors, minReadingsPerCursor, parallelStreams.sum(), cursors.sum(), partitions.sum(), failedStreams.sum());
+    }
+}
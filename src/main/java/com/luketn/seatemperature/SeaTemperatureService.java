@@ -1,60 +1,278 @@
 package com.luketn.seatemperature;
 
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
 import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.seatemperature.AdaptiveBatchPolicy.EventTrigger;
 import com.luketn.seatemperature.datamodel.BoundingBox;
-import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+import com.luketn.util.AsyncSse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Publisher;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.function.Consumer;
 
 /**
  * Handles validation and transformation of weather reports into sea temperature data.
  * Batches and returns only unique coordinate sea surface temperature reports within a specified bounding box.
+ * (reports without a sea surface temperature are skipped by WeatherDataAccess)
+ * Batches are sized by the AdaptiveBatchPolicy, starting small and growing as the stream continues.
+ * Viewports too coarse to need every report are served from the pre-aggregated SeaTemperatureGrid instead, and
+ * failing that are downsampled by the SeaTemperatureLevelOfDetail. Batches are labelled with the resolution they were
+ * reduced to.
+ * Bounding boxes not served from the tile cache may be read by concurrent cursors by the SeaTemperatureParallelScan,
+ * which passes their readings on to a stream's dedup and batching one at a time. A viewport's readings are counted once
+ * per stream, for both the level of detail and the parallel scan.
+ * Records readings, duplicates and points per stream as metrics, once per stream rather than per point.
  */
 @Service
 public class SeaTemperatureService {
-    public static final int batch_size = 10;
+    // the default size of the first batch of a stream
+    public static final int initial_batch_size = 10;
+    // the count of a stream's readings when nothing needed them counted
+    public static final long not_counted = -1;
+    private static final int batch_pool_size = 256;
 
     private final WeatherDataAccess weatherDataAccess;
+    private final SeaTemperatureTileCache tileCache;
+    private final SeaTemperatureGrid grid;
+    private final SeaTemperatureLevelOfDetail levelOfDetail;
+    private final SeaTemperatureParallelScan parallelScan;
+    private final AdaptiveBatchPolicy batchPolicy;
+    private final Counter readings;
+    private final Counter duplicates;
+    private final DistributionSummary pointsPerStream;
 
-    public SeaTemperatureService(WeatherDataAccess weatherDataAccess) {
+    // batch buffers are reused across streams, so a stream allocates nothing per point
+    private final ArrayBlockingQueue<SeaTemperatureBatch> batchPool = new ArrayBlockingQueue<>(batch_pool_size);
+
+    public SeaTemperatureService(WeatherDataAccess weatherDataAccess, SeaTemperatureTileCache tileCache, SeaTemperatureGrid grid, SeaTemperatureLevelOfDetail levelOfDetail, SeaTemperatureParallelScan parallelScan, AdaptiveBatchPolicy batchPolicy, MeterRegistry meterRegistry) {
         this.weatherDataAccess = weatherDataAccess;
+        this.tileCache = tileCache;
+        this.grid = grid;
+        this.levelOfDetail = levelOfDetail;
+        this.parallelScan = parallelScan;
+        this.batchPolicy = batchPolicy;
+        this.readings = Counter.builder("sea.temperature.readings")
+                .description("Readings streamed from MongoDB or the tile cache, before dedup")
+                .register(meterRegistry);
+        this.duplicates = Counter.builder("sea.temperature.duplicates")
+                .description("Readings dropped as a duplicate of a coordinate already streamed")
+                .register(meterRegistry);
+        this.pointsPerStream = DistributionSummary.builder("sea.temperature.stream.points")
+                .description("Unique points sent per stream")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("sea.temperature.dedup.ratio", this, service -> service.readings.count() == 0 ? 0 : service.duplicates.count() / service.readings.count())
+                .description("Share of all readings dropped as duplicates")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Streams batches of unique sea temperatures within the bounding box.
+     * The batch passed to the consumer is reused once the consumer returns, so must not be retained.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+        streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, seaTemperatureConsumer);
+    }
+
+    /**
+     * @param options how the bounding box is queried in MongoDB (coordinates are always deduplicated here too, which is cheap when MongoDB already has)
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+        streamSeaTemperatures(boundingBox, options, countSeaTemperatures(boundingBox, options), seaTemperatureConsumer);
+    }
+
+    /**
+     * @param readings the count of the readings within the bounding box from countSeaTemperatures
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, long readings, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+        stream(seaTemperatureConsumer, batcher -> {
+            if (grid.serves(boundingBox)) {
+                batcher.seaTemperaturesBatch.setResolution(grid.resolutionFor(boundingBox));
+                grid.streamSeaTemperatures(boundingBox, batcher);
+            } else {
+                double resolution = levelOfDetail.resolutionFor(boundingBox, readings);
+                batcher.seaTemperaturesBatch.setResolution(resolution);
+                SeaTemperatureConsumer consumer = resolution > 0 ? levelOfDetail.downsample(boundingBox, resolution, batcher) : batcher;
+                scan(boundingBox, options, readings, consumer);
+            }
+        });
+    }
+
+    /**
+     * Streams batches of every unique sea temperature within the bounding box, never reduced to a point per cell by the
+     * grid or the level of detail, for formats which can't label a batch with its resolution.
+     * The batch passed to the consumer is reused once the consumer returns, so must not be retained.
+     */
+    public void streamFullDetailSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+        stream(seaTemperatureConsumer, batcher -> scan(boundingBox, options, not_counted, batcher));
     }
 
-    public void streamSeaTemperatures(BoundingBox boundingBox, Consumer<List<SeaTemperature>> seaTemperatureConsumer) {
-        List<SeaTemperature> seaTemperaturesBatch = new ArrayList<>();
+    /**
+     * Counts the readings within the bounding box once for a stream, up to as many as both the level of detail and the
+     * parallel scan need to decide how to read it, or returns not_counted when neither does (or the grid serves it).
+     */
+    public long countSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options) {
+        if (grid.serves(boundingBox) || !(boundingBox.west() <= boundingBox.east()) || !(boundingBox.south() <= boundingBox.north())) {
+            return not_counted;
+        }
+        int limit = Math.max(levelOfDetail.countLimit(), tileCache.isEnabled() ? 0 : parallelScan.countLimit());
+        return limit > 0 ? weatherDataAccess.countSeaTemperatures(boundingBox, options, limit) : not_counted;
+    }
+
+    /**
+     * The change from a viewport the client has every point of to the next: the parts of the new viewport to stream,
+     * and the parts of the previous one the client can drop.
+     */
+    public record ViewportDelta(List<BoundingBox> added, List<BoundingBox> evicted) {}
 
-        record Coordinates(Double longitude, Double latitude) {}
-        Set<Coordinates> uniqueCoordinates = new HashSet<>();
+    /**
+     * The delta between the viewports, or null if the whole new viewport must be streamed, as either viewport is too
+     * coarse to be sent in full detail (so the client does not hold every point of the previous one, or the new one is
+     * reduced to a point per cell regardless).
+     *
+     * @param readings the count of the readings within the current viewport from countSeaTemperatures, which is then
+     *                 passed on to stream it in full if there is no delta
+     */
+    public ViewportDelta viewportDelta(BoundingBox previous, BoundingBox current, long readings, SeaTemperatureQueryOptions options) {
+        if (grid.serves(current) || levelOfDetail.downsamples(readings)
+                || grid.serves(previous) || levelOfDetail.downsamples(previous, options)) {
+            return null;
+        }
+        return new ViewportDelta(current.minus(previous), previous.minus(current));
+    }
 
-        weatherDataAccess.streamSeaTemperatures(boundingBox, weatherReport -> {
-            if (weatherReport.seaSurfaceTemperature() == null) {
-                return; // Skip reports without sea surface temperature
+    /**
+     * Streams batches of the unique sea temperatures within the added parts of the viewport, in full detail.
+     * The batch passed to the consumer is reused once the consumer returns, so must not be retained.
+     */
+    public void streamSeaTemperatures(ViewportDelta delta, SeaTemperatureQueryOptions options, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+        stream(seaTemperatureConsumer, batcher -> {
+            for (BoundingBox added : delta.added()) {
+                scan(added, options, not_counted, batcher);
             }
-            Double longitude = weatherReport.position().coordinates().get(0);
-            Double latitude = weatherReport.position().coordinates().get(1);
-            Double seaSurfaceTemperature = weatherReport.seaSurfaceTemperature().value();
+        });
+    }
 
-            Coordinates coordinates = new Coordinates(longitude, latitude);
-            if (uniqueCoordinates.contains(coordinates)) {
+    private void stream(Consumer<SeaTemperatureBatch> seaTemperatureConsumer, Consumer<Batcher> readInto) {
+        SeaTemperatureBatch seaTemperaturesBatch = acquireBatch();
+        Batcher batcher = new Batcher(seaTemperaturesBatch, seaTemperatureConsumer);
+        try {
+            readInto.accept(batcher);
+            batcher.send(EventTrigger.END);
+        } finally {
+            recordStream(batcher.readings, batcher.duplicates);
+            releaseBatch(seaTemperaturesBatch);
+        }
+    }
+
+    /**
+     * Reads the bounding box from the tile cache, or failing that with the parallel scan, which counts the readings
+     * itself if they were not counted for the stream.
+     */
+    private void scan(BoundingBox boundingBox, SeaTemperatureQueryOptions options, long readings, SeaTemperatureConsumer consumer) {
+        if (tileCache.isEnabled()) {
+            tileCache.streamSeaTemperatures(boundingBox, options, consumer);
+        } else if (readings == not_counted) {
+            parallelScan.streamSeaTemperatures(boundingBox, options, consumer);
+        } else {
+            parallelScan.streamSeaTemperatures(boundingBox, options, readings, consumer);
+        }
+    }
+
+    /**
+     * Drops duplicate coordinates, and sends the rest on in batches sized by the batch policy.
+     */
+    class Batcher implements SeaTemperatureConsumer {
+        private final SeaTemperatureBatch seaTemperaturesBatch;
+        private final Consumer<SeaTemperatureBatch> seaTemperatureConsumer;
+        private final CoordinateSet uniqueCoordinates = new CoordinateSet();
+        private final AdaptiveBatchPolicy.Sizes eventSizes = batchPolicy.eventSizes();
+        private final long lingerNanos = batchPolicy.lingerNanos();
+        private long firstPointNanos;
+        private int readings = 0;
+        private int duplicates = 0;
+
+        Batcher(SeaTemperatureBatch seaTemperaturesBatch, Consumer<SeaTemperatureBatch> seaTemperatureConsumer) {
+            this.seaTemperaturesBatch = seaTemperaturesBatch;
+            this.seaTemperatureConsumer = seaTemperatureConsumer;
+            seaTemperaturesBatch.setLimit(eventSizes.next());
+        }
+
+        @Override
+        public void accept(double longitude, double latitude, double seaSurfaceTemperature) {
+            readings++;
+            if (!uniqueCoordinates.add(longitude, latitude)) {
+                duplicates++;
                 return; // Skip duplicate coordinates
             }
-            uniqueCoordinates.add(coordinates);
 
-            SeaTemperature seaTemperature = new SeaTemperature(longitude, latitude, seaSurfaceTemperature);
+            long now = System.nanoTime();
+            if (seaTemperaturesBatch.isEmpty()) {
+                firstPointNanos = now;
+            }
+            seaTemperaturesBatch.add(longitude, latitude, seaSurfaceTemperature);
+            if (seaTemperaturesBatch.isFull()) {
+                send(EventTrigger.FULL);
+            } else if (now - firstPointNanos >= lingerNanos) {
+                send(EventTrigger.LINGER);
+            }
+        }
 
-            seaTemperaturesBatch.add(seaTemperature);
-            if (seaTemperaturesBatch.size() >= batch_size) {
-                seaTemperatureConsumer.accept(new ArrayList<>(seaTemperaturesBatch));
-                seaTemperaturesBatch.clear(); // Clear the batch after sending
+        @Override
+        public void fetchingMore() {
+            send(EventTrigger.FETCH); // don't hold points back while waiting on MongoDB
+        }
+
+        @Override
+        public void fetchedBatch(int documents) {
+            batchPolicy.recordCursorBatch(documents);
+        }
+
+        void send(EventTrigger trigger) {
+            if (seaTemperaturesBatch.isEmpty()) {
+                return;
             }
-        });
-        if (!seaTemperaturesBatch.isEmpty()) {
+            batchPolicy.recordEvent(seaTemperaturesBatch.size(), trigger);
             seaTemperatureConsumer.accept(seaTemperaturesBatch);
+            seaTemperaturesBatch.clear(); // Clear the batch after sending
+            seaTemperaturesBatch.setLimit(eventSizes.next());
         }
     }
+
+    /**
+     * Streams batches of unique sea temperatures within the bounding box to the client, on the reactive engine.
+     * Returns as soon as the query is started. Readings are then fetched from MongoDB only as fast as the client reads them.
+     * The tile cache, grid and level of detail are not used, as they read MongoDB synchronously.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureFormat format, AsyncSse sse) {
+        Publisher<SeaTemperatureReading> readings = weatherDataAccess.publishSeaTemperatures(boundingBox, options);
+        readings.subscribe(new ReactiveSeaTemperatureStream(sse, format, acquireBatch(), this, batchPolicy));
+    }
+
+    void recordStream(int readings, int duplicates) {
+        this.readings.increment(readings);
+        this.duplicates.increment(duplicates);
+        pointsPerStream.record(readings - duplicates);
+    }
+
+    private SeaTemperatureBatch acquireBatch() {
+        SeaTemperatureBatch batch = batchPool.poll();
+        return batch != null && batch.capacity() == batchPolicy.maxEventSize() ? batch : new SeaTemperatureBatch(batchPolicy.maxEventSize());
+    }
+
+    void releaseBatch(SeaTemperatureBatch batch) {
+        batch.clear();
+        batch.setResolution(0);
+        batchPool.offer(batch);
+    }
 }
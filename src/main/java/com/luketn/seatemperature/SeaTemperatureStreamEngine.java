@@ -0,0 +1,18 @@
+package com.luketn.seatemperature;
+
+/**
+ * How a sea temperature stream is driven from MongoDB to the client.
+ */
+public enum SeaTemperatureStreamEngine {
+    /**
+     * The sync driver's cursor is iterated on the request's (virtual) thread, which blocks on each write to the client.
+     * Served through the tile cache when it is enabled.
+     */
+    SYNCHRONOUS,
+    /**
+     * The Reactive Streams driver publishes readings to servlet non-blocking IO, holding no thread while waiting.
+     * More readings are only requested from MongoDB once the client has taken everything sent so far.
+     * Always reads from MongoDB, bypassing the tile cache.
+     */
+    REACTIVE
+}
@@ -0,0 +1,171 @@
+package com.luketn.seatemperature;
+
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A live viewer's queue of the readings inserted within its bounding box, filled by the live feed's change stream thread
+ * and drained by the viewer's request thread. Offers never wait, so a slow client only falls behind itself: once the
+ * maximum readings are queued, the overflow policy decides what is kept.
+ * Close it to stop receiving readings.
+ */
+public class SeaTemperatureSubscription implements AutoCloseable {
+    enum Offer { QUEUED, CONFLATED, DROPPED, CLOSED }
+
+    private record Coordinate(double longitude, double latitude) {}
+
+    private final BoundingBox boundingBox;
+    private final SeaTemperatureOverflowPolicy overflowPolicy;
+    private final int maxQueued;
+    private final Consumer<SeaTemperatureSubscription> onClose;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    // guarded by lock. DROP queues every reading in turn; CONFLATE keys them by coordinate, so a newer reading keeps its place
+    private final ArrayDeque<SeaTemperature> queue;
+    private final LinkedHashMap<Coordinate, SeaTemperature> latest;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    SeaTemperatureSubscription(BoundingBox boundingBox, SeaTemperatureOverflowPolicy overflowPolicy, int maxQueued, Consumer<SeaTemperatureSubscription> onClose) {
+        this.boundingBox = boundingBox;
+        this.overflowPolicy = overflowPolicy;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.onClose = onClose;
+        this.queue = overflowPolicy == SeaTemperatureOverflowPolicy.DROP ? new ArrayDeque<>() : null;
+        this.latest = overflowPolicy == SeaTemperatureOverflowPolicy.CONFLATE ? new LinkedHashMap<>() : null;
+    }
+
+    public BoundingBox boundingBox() {
+        return boundingBox;
+    }
+
+    public SeaTemperatureOverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    boolean contains(double longitude, double latitude) {
+        return latitude >= boundingBox.south() && latitude <= boundingBox.north()
+                && longitude >= boundingBox.west() && longitude <= boundingBox.east();
+    }
+
+    /**
+     * Queues the reading, without waiting, unless the queue is full.
+     */
+    Offer offer(double longitude, double latitude, double seaSurfaceTemperature) {
+        SeaTemperature seaTemperature = new SeaTemperature(longitude, latitude, seaSurfaceTemperature);
+        lock.lock();
+        try {
+            if (closed) {
+                return Offer.CLOSED;
+            }
+            Offer offer;
+            if (latest != null) {
+                Coordinate coordinate = new Coordinate(longitude, latitude);
+                if (latest.replace(coordinate, seaTemperature) != null) {
+                    offer = Offer.CONFLATED;
+                } else if (latest.size() < maxQueued) {
+                    latest.put(coordinate, seaTemperature);
+                    offer = Offer.QUEUED;
+                } else {
+                    offer = Offer.DROPPED;
+                }
+            } else if (queue.size() < maxQueued) {
+                queue.add(seaTemperature);
+                offer = Offer.QUEUED;
+            } else {
+                offer = Offer.DROPPED;
+            }
+            if (offer == Offer.DROPPED) {
+                dropped++;
+            } else {
+                readable.signal();
+            }
+            return offer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves queued readings into the batch until it is full, first waiting up to the timeout for any to be queued.
+     *
+     * @return the readings moved (0 if none were queued in time), or -1 once the subscription is closed
+     */
+    public int poll(SeaTemperatureBatch batch, Duration timeout) throws InterruptedException {
+        long remainingNanos = timeout.toNanos();
+        lock.lock();
+        try {
+            while (!closed && queued() == 0 && remainingNanos > 0) {
+                remainingNanos = readable.awaitNanos(remainingNanos);
+            }
+            if (closed) {
+                return -1;
+            }
+            int moved = 0;
+            if (latest != null) {
+                Iterator<SeaTemperature> iterator = latest.values().iterator();
+                while (iterator.hasNext() && !batch.isFull()) {
+                    SeaTemperature seaTemperature = iterator.next();
+                    batch.add(seaTemperature.lon(), seaTemperature.lat(), seaTemperature.temp());
+                    iterator.remove();
+                    moved++;
+                }
+            } else {
+                while (!queue.isEmpty() && !batch.isFull()) {
+                    SeaTemperature seaTemperature = queue.poll();
+                    batch.add(seaTemperature.lon(), seaTemperature.lat(), seaTemperature.temp());
+                    moved++;
+                }
+            }
+            return moved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int queued() {
+        return latest != null ? latest.size() : queue.size();
+    }
+
+    /**
+     * The readings dropped since the last call, as the queue was full.
+     */
+    public long takeDropped() {
+        lock.lock();
+        try {
+            long taken = dropped;
+            dropped = 0;
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops receiving readings, and wakes a waiting poll.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        onClose.accept(this);
+    }
+}
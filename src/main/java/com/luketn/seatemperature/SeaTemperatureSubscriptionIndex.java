@@ -0,0 +1,117 @@
+package com.luketn.seatemperature;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The live subscriptions by where their bounding boxes are, so an inserted reading is only checked against the few
+ * subscribers near it rather than every one.
+ * Each subscription is listed in every cell of a fixed degree grid its bounding box overlaps. Those overlapping more than
+ * the maximum cells (e.g. a whole earth viewport) are instead held in one list checked for every reading, keeping the
+ * index small however many of them there are.
+ * Lookups take no lock: each cell holds an array which is replaced, rather than changed, when subscribers come and go.
+ */
+class SeaTemperatureSubscriptionIndex {
+    private static final SeaTemperatureSubscription[] none = new SeaTemperatureSubscription[0];
+
+    private final double cellDegrees;
+    private final int maxCellsPerSubscription;
+    private final ConcurrentHashMap<Long, SeaTemperatureSubscription[]> cells = new ConcurrentHashMap<>();
+    private final List<SeaTemperatureSubscription> unindexed = new CopyOnWriteArrayList<>();
+
+    SeaTemperatureSubscriptionIndex(double cellDegrees, int maxCellsPerSubscription) {
+        this.cellDegrees = cellDegrees;
+        this.maxCellsPerSubscription = maxCellsPerSubscription;
+    }
+
+    void add(SeaTemperatureSubscription subscription) {
+        CellRange range = cellsOf(subscription);
+        if (range == null) {
+            unindexed.add(subscription);
+            return;
+        }
+        range.forEach(cell -> cells.compute(cell, (_, subscriptions) -> {
+            SeaTemperatureSubscription[] added = Arrays.copyOf(subscriptions == null ? none : subscriptions, subscriptions == null ? 1 : subscriptions.length + 1);
+            added[added.length - 1] = subscription;
+            return added;
+        }));
+    }
+
+    void remove(SeaTemperatureSubscription subscription) {
+        CellRange range = cellsOf(subscription);
+        if (range == null) {
+            unindexed.remove(subscription);
+            return;
+        }
+        range.forEach(cell -> cells.computeIfPresent(cell, (_, subscriptions) -> {
+            SeaTemperatureSubscription[] remaining = Arrays.stream(subscriptions).filter(s -> s != subscription).toArray(SeaTemperatureSubscription[]::new);
+            return remaining.length == 0 ? null : remaining;
+        }));
+    }
+
+    /**
+     * Passes each subscription whose bounding box contains the coordinate to the consumer.
+     */
+    void forEachContaining(double longitude, double latitude, Consumer<SeaTemperatureSubscription> consumer) {
+        if (longitude >= -180 && longitude <= 180 && latitude >= -90 && latitude <= 90) {
+            SeaTemperatureSubscription[] subscriptions = cells.get(key(column(longitude), row(latitude)));
+            if (subscriptions != null) {
+                for (SeaTemperatureSubscription subscription : subscriptions) {
+                    if (subscription.contains(longitude, latitude)) {
+                        consumer.accept(subscription);
+                    }
+                }
+            }
+        }
+        for (SeaTemperatureSubscription subscription : unindexed) {
+            if (subscription.contains(longitude, latitude)) {
+                consumer.accept(subscription);
+            }
+        }
+    }
+
+    int cellCount() {
+        return cells.size();
+    }
+
+    private record CellRange(int minColumn, int maxColumn, int minRow, int maxRow) {
+        void forEach(Consumer<Long> consumer) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                for (int row = minRow; row <= maxRow; row++) {
+                    consumer.accept(key(column, row));
+                }
+            }
+        }
+    }
+
+    /**
+     * The cells the subscription's bounding box overlaps (its edges included, as the box is closed), or null if it spans
+     * more than the maximum, or is not a box the grid can hold (e.g. one crossing the antimeridian).
+     */
+    private CellRange cellsOf(SeaTemperatureSubscription subscription) {
+        var boundingBox = subscription.boundingBox();
+        double west = Math.max(boundingBox.west(), -180), east = Math.min(boundingBox.east(), 180);
+        double south = Math.max(boundingBox.south(), -90), north = Math.min(boundingBox.north(), 90);
+        if (!(west <= east) || !(south <= north)) {
+            return null;
+        }
+        CellRange range = new CellRange(column(west), column(east), row(south), row(north));
+        long count = (long) (range.maxColumn() - range.minColumn() + 1) * (range.maxRow() - range.minRow() + 1);
+        return count <= maxCellsPerSubscription ? range : null;
+    }
+
+    private int column(double longitude) {
+        return (int) Math.floor((longitude + 180) / cellDegrees);
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / cellDegrees);
+    }
+
+    private static long key(int column, int row) {
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+}
@@ -0,0 +1,262 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory cache of unique sea temperatures, split into fixed tiles at a few zoom levels.
+ * A bounding box is served tile by tile, fetching only the tiles missing from the cache from WeatherDataAccess.
+ * Tiles are cached per query mode and dedup mode, so each strategy is still queried (and can be compared) on its own.
+ * Each tile holds its points in primitive arrays. Tiles are evicted least recently used once the cache holds more than
+ * the configured number of points, and expire after the configured time to live.
+ * Concurrent misses on a tile share a single query: the first reads the whole tile, then every stream which missed emits
+ * its points. The query never writes to a stream's client, so one client that is slow or has gone away can't hold up
+ * or end the others' streams.
+ */
+@Component
+public class SeaTemperatureTileCache {
+    // tile edge lengths in degrees, from finest to coarsest
+    private static final double[] tile_sizes_degrees = {0.25, 1, 4, 16, 64};
+    // the finest level is chosen which covers a bounding box in at most this many tiles
+    private static final int max_tiles_per_query = 64;
+    private static final int initial_tile_capacity = 16;
+
+    private final WeatherDataAccess weatherDataAccess;
+    private final boolean enabled;
+    private final long maxPoints;
+    private final long timeToLiveNanos;
+
+    private final LinkedHashMap<TileKey, Tile> tiles = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedPoints = 0;
+    // tiles being read from MongoDB, for concurrent misses to wait on
+    private final Map<TileKey, CompletableFuture<Tile>> loads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SeaTemperatureTileCache(
+            WeatherDataAccess weatherDataAccess,
+            @Value("${mongodb-schema.seatemperature.cache.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.cache.max-points:2000000}") long maxPoints,
+            @Value("${mongodb-schema.seatemperature.cache.time-to-live:5m}") Duration timeToLive) {
+        this.weatherDataAccess = weatherDataAccess;
+        this.enabled = enabled;
+        this.maxPoints = maxPoints;
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public record TileKey(SeaTemperatureQueryOptions options, int level, int x, int y) {}
+
+    private record Tile(double[] lon, double[] lat, double[] temp, int size, long expiresAtNanos) {}
+
+    public record CacheStats(long hits, long misses, long sharedMisses, long evictions, int tiles, long points) {}
+
+    public CacheStats stats() {
+        synchronized (tiles) {
+            return new CacheStats(hits.sum(), misses.sum(), sharedMisses.sum(), evictions.sum(), tiles.size(), cachedPoints);
+        }
+    }
+
+    /**
+     * Streams the unique sea temperatures within the bounding box, tile by tile.
+     * Points are emitted in the same order whether their tile was cached or fetched.
+     */
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+        if (!(boundingBox.west() <= boundingBox.east()) || !(boundingBox.south() <= boundingBox.north())) {
+            return; // empty (or inverted) bounding box, as the range query would return nothing
+        }
+        int level = levelFor(boundingBox);
+        double tileSize = tile_sizes_degrees[level];
+        int minX = tileX(boundingBox.west(), tileSize);
+        int maxX = tileX(boundingBox.east(), tileSize);
+        int minY = tileY(boundingBox.south(), tileSize);
+        int maxY = tileY(boundingBox.north(), tileSize);
+        SeaTemperatureQueryOptions tileOptions = weatherDataAccess.withDefaults(options);
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                TileKey key = new TileKey(tileOptions, level, x, y);
+                Tile tile = get(key);
+                if (tile != null) {
+                    hits.increment();
+                    emit(tile, boundingBox, seaTemperatureConsumer);
+                } else {
+                    load(key, boundingBox, seaTemperatureConsumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches a missing tile, or if another stream is already fetching it, waits for that stream's query and emits its points.
+     */
+    private void load(TileKey key, BoundingBox boundingBox, SeaTemperatureConsumer seaTemperatureConsumer) {
+        CompletableFuture<Tile> load = new CompletableFuture<>();
+        CompletableFuture<Tile> existing = loads.putIfAbsent(key, load);
+        if (existing != null) {
+            sharedMisses.increment();
+            seaTemperatureConsumer.fetchingMore(); // points from cached tiles needn't wait on the other stream's query
+            Tile tile;
+            try {
+                tile = existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+            emit(tile, boundingBox, seaTemperatureConsumer);
+            return;
+        }
+        misses.increment();
+        seaTemperatureConsumer.fetchingMore(); // points from cached tiles needn't wait on the query
+        Tile tile;
+        try {
+            tile = fetch(key);
+            load.complete(tile);
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+        emit(tile, boundingBox, seaTemperatureConsumer);
+    }
+
+    /**
+     * Queries MongoDB for a single tile, and caches it once it has been read completely.
+     */
+    private Tile fetch(TileKey key) {
+        double tileSize = tile_sizes_degrees[key.level()];
+        double west = -180 + key.x() * tileSize;
+        double south = -90 + key.y() * tileSize;
+        BoundingBox tileBox = new BoundingBox(south, Math.min(90, south + tileSize), west, Math.min(180, west + tileSize));
+
+        TileBuilder builder = new TileBuilder();
+        CoordinateSet uniqueCoordinates = new CoordinateSet();
+        weatherDataAccess.streamSeaTemperatures(tileBox, key.options(), (longitude, latitude, seaSurfaceTemperature) -> {
+            // the query range is closed, so points on a shared edge are only kept by the tile that owns them
+            if (tileX(longitude, tileSize) != key.x() || tileY(latitude, tileSize) != key.y()) {
+                return;
+            }
+            if (uniqueCoordinates.add(longitude, latitude)) {
+                builder.add(longitude, latitude, seaSurfaceTemperature);
+            }
+        });
+        Tile tile = builder.build(System.nanoTime() + timeToLiveNanos);
+        put(key, tile);
+        return tile;
+    }
+
+    private static void emit(Tile tile, BoundingBox boundingBox, SeaTemperatureConsumer seaTemperatureConsumer) {
+        for (int i = 0; i < tile.size(); i++) {
+            if (contains(boundingBox, tile.lon()[i], tile.lat()[i])) {
+                seaTemperatureConsumer.accept(tile.lon()[i], tile.lat()[i], tile.temp()[i]);
+            }
+        }
+    }
+
+    private Tile get(TileKey key) {
+        synchronized (tiles) {
+            Tile tile = tiles.get(key);
+            if (tile != null && tile.expiresAtNanos() - System.nanoTime() < 0) {
+                tiles.remove(key);
+                cachedPoints -= tile.size();
+                return null;
+            }
+            return tile;
+        }
+    }
+
+    private void put(TileKey key, Tile tile) {
+        synchronized (tiles) {
+            Tile previous = tiles.put(key, tile);
+            if (previous != null) {
+                cachedPoints -= previous.size();
+            }
+            cachedPoints += tile.size();
+
+            Iterator<Map.Entry<TileKey, Tile>> leastRecentlyUsed = tiles.entrySet().iterator();
+            while (cachedPoints > maxPoints && leastRecentlyUsed.hasNext()) {
+                Tile evicted = leastRecentlyUsed.next().getValue();
+                leastRecentlyUsed.remove();
+                cachedPoints -= evicted.size();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (tiles) {
+            tiles.clear();
+            cachedPoints = 0;
+        }
+    }
+
+    static int levelFor(BoundingBox boundingBox) {
+        for (int level = 0; level < tile_sizes_degrees.length - 1; level++) {
+            double tileSize = tile_sizes_degrees[level];
+            long tilesAcross = tileX(boundingBox.east(), tileSize) - tileX(boundingBox.west(), tileSize) + 1L;
+            long tilesDown = tileY(boundingBox.north(), tileSize) - tileY(boundingBox.south(), tileSize) + 1L;
+            if (tilesAcross * tilesDown <= max_tiles_per_query) {
+                return level;
+            }
+        }
+        return tile_sizes_degrees.length - 1;
+    }
+
+    private static int tileX(double longitude, double tileSize) {
+        int maxX = (int) Math.ceil(360 / tileSize) - 1;
+        return Math.clamp((long) Math.floor((longitude + 180) / tileSize), 0, maxX);
+    }
+
+    private static int tileY(double latitude, double tileSize) {
+        int maxY = (int) Math.ceil(180 / tileSize) - 1;
+        return Math.clamp((long) Math.floor((latitude + 90) / tileSize), 0, maxY);
+    }
+
+    private static boolean contains(BoundingBox boundingBox, double longitude, double latitude) {
+        return longitude >= boundingBox.west() && longitude <= boundingBox.east()
+                && latitude >= boundingBox.south() && latitude <= boundingBox.north();
+    }
+
+    private static class TileBuilder {
+        private double[] lon = new double[initial_tile_capacity];
+        private double[] lat = new double[initial_tile_capacity];
+        private double[] temp = new double[initial_tile_capacity];
+        private int size = 0;
+
+        void add(double longitude, double latitude, double temperature) {
+            if (size == lon.length) {
+                lon = Arrays.copyOf(lon, size * 2);
+                lat = Arrays.copyOf(lat, size * 2);
+                temp = Arrays.copyOf(temp, size * 2);
+            }
+            lon[size] = longitude;
+            lat[size] = latitude;
+            temp[size] = temperature;
+            size++;
+        }
+
+        Tile build(long expiresAtNanos) {
+            return new Tile(Arrays.copyOf(lon, size), Arrays.copyOf(lat, size), Arrays.copyOf(temp, size), size, expiresAtNanos);
+        }
+    }
+}
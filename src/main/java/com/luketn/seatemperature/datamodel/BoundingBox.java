@@ -1,8 +1,51 @@
 package com.luketn.seatemperature.datamodel;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public record BoundingBox(
         // Latitude values for the bounds of the query
         Double south, Double north,
         // Longitude values for the bounds of the query
         Double west, Double east
-) { }
+) {
+    /**
+     * The overlap of the two boxes, or null if they do not overlap.
+     */
+    public BoundingBox intersection(BoundingBox other) {
+        double south = Math.max(this.south, other.south);
+        double north = Math.min(this.north, other.north);
+        double west = Math.max(this.west, other.west);
+        double east = Math.min(this.east, other.east);
+        if (south > north || west > east) {
+            return null;
+        }
+        return new BoundingBox(south, north, west, east);
+    }
+
+    /**
+     * The parts of this box outside the other, as up to four boxes: the strips south and north of the overlap across the
+     * whole width, then the strips west and east of it between them.
+     * The boxes are closed, so they share their edges with each other and the overlap, but no area.
+     */
+    public List<BoundingBox> minus(BoundingBox other) {
+        BoundingBox overlap = intersection(other);
+        if (overlap == null) {
+            return List.of(this);
+        }
+        List<BoundingBox> parts = new ArrayList<>(4);
+        if (south < overlap.south) {
+            parts.add(new BoundingBox(south, overlap.south, west, east));
+        }
+        if (north > overlap.north) {
+            parts.add(new BoundingBox(overlap.north, north, west, east));
+        }
+        if (west < overlap.west) {
+            parts.add(new BoundingBox(overlap.south, overlap.north, west, overlap.west));
+        }
+        if (east > overlap.east) {
+            parts.add(new BoundingBox(overlap.south, overlap.north, overlap.east, east));
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,106 @@
+package com.luketn.seatemperature.datamodel;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.util.AbstractList;
+
+/**
+ * A fixed capacity batch of sea temperatures held in primitive arrays, so it can be filled and reused without allocating per point.
+ * The batch counts as full at its limit, which can be set anywhere up to its capacity.
+ * Serializes to JSON exactly as a List of SeaTemperature would.
+ */
+@JsonSerialize(using = SeaTemperatureBatch.Serializer.class)
+public class SeaTemperatureBatch extends AbstractList<SeaTemperature> {
+    private final double[] lon;
+    private final double[] lat;
+    private final double[] temp;
+    private int size;
+    private int limit;
+    private double resolution = 0;
+
+    public SeaTemperatureBatch(int capacity) {
+        this.lon = new double[capacity];
+        this.lat = new double[capacity];
+        this.temp = new double[capacity];
+        this.limit = capacity;
+    }
+
+    public void add(double longitude, double latitude, double temperature) {
+        lon[size] = longitude;
+        lat[size] = latitude;
+        temp[size] = temperature;
+        size++;
+    }
+
+    public boolean isFull() {
+        return size >= limit;
+    }
+
+    public int capacity() {
+        return lon.length;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = Math.clamp(limit, 1, lon.length);
+    }
+
+    /**
+     * The size in degrees of the cells the points were downsampled to (one point per cell), or 0 if they are every point.
+     */
+    public double resolution() {
+        return resolution;
+    }
+
+    public void setResolution(double resolution) {
+        this.resolution = resolution;
+    }
+
+    public double lon(int index) {
+        return lon[index];
+    }
+
+    public double lat(int index) {
+        return lat[index];
+    }
+
+    public double temp(int index) {
+        return temp[index];
+    }
+
+    @Override
+    public SeaTemperature get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return new SeaTemperature(lon[index], lat[index], temp[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    public static class Serializer extends JsonSerializer<SeaTemperatureBatch> {
+        @Override
+        public void serialize(SeaTemperatureBatch batch, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            generator.writeStartArray(batch, batch.size);
+            for (int i = 0; i < batch.size; i++) {
+                generator.writeStartObject();
+                generator.writeNumberField("lon", batch.lon[i]);
+                generator.writeNumberField("lat", batch.lat[i]);
+                generator.writeNumberField("temp", batch.temp[i]);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
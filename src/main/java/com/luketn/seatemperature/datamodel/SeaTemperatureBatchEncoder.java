@@ -0,0 +1,150 @@
+package com.luketn.seatemperature.datamodel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Encodes batches of sea temperatures in a compact, columnar binary format, typically 4-6 bytes a point against 50 or more as JSON.
+ * <pre>
+ * version     1 byte (1)
+ * count       varint
+ * longitudes  count zigzag varints, each the difference from the previous point, in 1e-5 degrees (about a metre)
+ * latitudes   count zigzag varints, as longitudes
+ * temperatures count zigzag varints, each the difference from the previous point, in 0.01 °C
+ * </pre>
+ * The first point of each column is relative to zero, so every batch decodes on its own.
+ * Reuses its buffer between batches, so is not thread safe.
+ */
+public class SeaTemperatureBatchEncoder {
+    public static final int version = 1;
+    public static final double coordinate_scale = 1e5;
+    public static final double temperature_scale = 1e2;
+
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    /**
+     * Encodes the batch into the buffer, replacing the previous batch.
+     *
+     * @return the length of the encoded batch
+     */
+    public int encode(SeaTemperatureBatch batch) {
+        int size = batch.size();
+        length = 0;
+        ensureCapacity(1 + 5 + size * 3 * 10);
+        buffer[length++] = version;
+        writeVarint(size);
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long value = Math.round(batch.lon(i) * coordinate_scale);
+            writeVarint(zigzag(value - previous));
+            previous = value;
+        }
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            long value = Math.round(batch.lat(i) * coordinate_scale);
+            writeVarint(zigzag(value - previous));
+            previous = value;
+        }
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            long value = Math.round(batch.temp(i) * temperature_scale);
+            writeVarint(zigzag(value - previous));
+            previous = value;
+        }
+        return length;
+    }
+
+    /**
+     * The last encoded batch. Only the first length bytes are valid, and they are overwritten by the next encode.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * The last encoded batch, base64 encoded for an SSE data line.
+     */
+    public String base64() {
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, length));
+        return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes a varint (7 bits a byte, least significant first) into target, which needs up to 10 bytes free.
+     *
+     * @return the offset after the varint
+     */
+    public static int writeVarint(byte[] target, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    private void writeVarint(long value) {
+        length = writeVarint(buffer, length, value);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Decodes one batch, as a client would.
+     */
+    public static List<SeaTemperature> decode(byte[] encoded) {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        int encodedVersion = in.get();
+        if (encodedVersion != version) {
+            throw new IllegalArgumentException("Unsupported sea temperature batch version: " + encodedVersion);
+        }
+        int size = (int) readVarint(in);
+        double[] lon = readColumn(in, size, coordinate_scale);
+        double[] lat = readColumn(in, size, coordinate_scale);
+        double[] temp = readColumn(in, size, temperature_scale);
+        List<SeaTemperature> seaTemperatures = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            seaTemperatures.add(new SeaTemperature(lon[i], lat[i], temp[i]));
+        }
+        return seaTemperatures;
+    }
+
+    private static double[] readColumn(ByteBuffer in, int size, double scale) {
+        double[] column = new double[size];
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            long zigzag = readVarint(in);
+            value += (zigzag >>> 1) ^ -(zigzag & 1);
+            column[i] = value / scale;
+        }
+        return column;
+    }
+
+    public static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
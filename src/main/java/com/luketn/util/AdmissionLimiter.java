@@ -0,0 +1,182 @@
+package com.luketn.util;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps how many requests to an endpoint run at once, so under load they queue briefly or are turned away rather than all
+ * contending for the MongoDB connection pool. The limit adapts to latency (additive increase, multiplicative decrease):
+ * it grows by one for each request faster than the latency target while the limit is in use, and is cut by the backoff
+ * ratio for each one slower, between the minimum and maximum limits.
+ */
+public class AdmissionLimiter {
+    private static final double backoff_ratio = 0.9;
+
+    /**
+     * A permit outside any limit, for when admission control is disabled.
+     */
+    public static final Permit UNLIMITED = new Permit(null);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final long latencyTargetNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // guarded by lock
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private long admitted = 0;
+    private long admittedAfterQueueing = 0;
+    private long rejected = 0;
+    private long limitIncreases = 0;
+    private long limitDecreases = 0;
+
+    /**
+     * @param maxQueued requests which may wait for a permit at once. Beyond that they are rejected straight away
+     * @param maxWait how long a queued request waits for a permit before it is rejected
+     * @param latencyTarget latencies (as reported by the permit) above this shrink the limit
+     */
+    public AdmissionLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued, Duration maxWait, Duration latencyTarget) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Admission limits must satisfy 1 <= min <= initial <= max.");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("The admission queue size must not be negative.");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.latencyTargetNanos = latencyTarget.toNanos();
+    }
+
+    /**
+     * A permit if one is free, or frees up within the maximum wait. Null if the request should be turned away.
+     * Release the permit once the request has finished.
+     */
+    public Permit tryAcquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                return admit();
+            }
+            if (queued >= maxQueued) {
+                rejected++;
+                return null;
+            }
+            queued++;
+            try {
+                long remainingNanos = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (remainingNanos <= 0) {
+                        rejected++;
+                        return null;
+                    }
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                }
+                admittedAfterQueueing++;
+                return admit();
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admit() {
+        inFlight++;
+        admitted++;
+        return new Permit(this);
+    }
+
+    private void release(long latencyNanos) {
+        lock.lock();
+        try {
+            boolean limitInUse = inFlight * 2 >= (int) limit; // only grow a limit that is being reached
+            inFlight--;
+            if (latencyNanos > latencyTargetNanos) {
+                double decreased = Math.max(minLimit, limit * backoff_ratio);
+                if ((int) decreased < (int) limit) {
+                    limitDecreases++;
+                }
+                limit = decreased;
+            } else if (limitInUse && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1);
+                limitIncreases++;
+                released.signal(); // for the extra place under the limit
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request's place under the limit.
+     */
+    public static class Permit {
+        private final AdmissionLimiter limiter;
+        private final long startNanos = System.nanoTime();
+        private volatile long respondedNanos = 0;
+        private boolean releasedPermit = false;
+
+        private Permit(AdmissionLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /**
+         * Marks the first response to the client (e.g. a stream's first event), which is taken as the request's latency
+         * rather than the time until release. Only the first call counts.
+         */
+        public void responded() {
+            if (limiter != null && respondedNanos == 0) {
+                respondedNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * Frees the permit for the next request. Only the first call counts.
+         */
+        public void release() {
+            if (limiter == null) {
+                return;
+            }
+            synchronized (this) {
+                if (releasedPermit) {
+                    return;
+                }
+                releasedPermit = true;
+            }
+            long endNanos = respondedNanos != 0 ? respondedNanos : System.nanoTime();
+            limiter.release(endNanos - startNanos);
+        }
+    }
+
+    public record AdmissionStats(
+            int limit,
+            int inFlight,
+            int queued,
+            long admitted,
+            long admittedAfterQueueing,
+            long rejected,
+            long limitIncreases,
+            long limitDecreases
+    ) {}
+
+    public AdmissionStats stats() {
+        lock.lock();
+        try {
+            return new AdmissionStats((int) limit, inFlight, queued, admitted, admittedAfterQueueing, rejected, limitIncreases, limitDecreases);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
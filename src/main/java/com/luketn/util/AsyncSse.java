@@ -0,0 +1,280 @@
+package com.luketn.util;
+
+import com.luketn.api.filters.AccessLog;
+import com.luketn.util.SynchronousSse.ErrorEvent;
+import com.luketn.util.SynchronousSse.SseStats;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+
+/**
+ * Server-sent events over servlet non-blocking IO, so no thread is held while a stream waits on the client or its source.
+ * Events are written as fast as the client reads them. Whenever every sent event has been written and the client can take
+ * more, the writable callback runs, so a producer can pull more data only as fast as the client consumes it.
+ */
+public class AsyncSse implements WriteListener, AsyncListener {
+    private static final Logger log = LoggerFactory.getLogger(AsyncSse.class);
+
+    private final HttpServletRequest request;
+    private final AsyncContext asyncContext;
+    private final long startNanos;
+    private ServletOutputStream out;
+
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private Runnable onWritable = () -> {};
+    private Runnable onClosed = () -> {};
+    private AdmissionLimiter.Permit permit = AdmissionLimiter.UNLIMITED;
+    private boolean completing = false;
+    private boolean closed = false;
+    // set when the stream closes under the lock, so onClosed is run once the lock is released
+    private boolean closedCallbackDue = false;
+
+    private int eventCount = 0;
+    private HttpStatusCode lastStatusCode = HttpStatus.OK;
+
+    /**
+     * Starts async processing of the request, and sends the event stream headers.
+     * Nothing is written until stream is called.
+     */
+    public static AsyncSse start(HttpServletRequest request, HttpServletResponse response, Duration timeout) {
+        return new AsyncSse(request, response, timeout);
+    }
+
+    private AsyncSse(HttpServletRequest request, HttpServletResponse response, Duration timeout) {
+        this.request = request;
+        response.setStatus(HttpStatus.OK.value());
+        response.setCharacterEncoding("UTF-8");
+        response.addHeader("Content-Type", "text/event-stream; charset=UTF-8");
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("X-Accel-Buffering", "no");
+        this.asyncContext = request.startAsync(request, response);
+        this.asyncContext.setTimeout(timeout.toMillis());
+        this.asyncContext.addListener(this);
+        this.startNanos = SseMetrics.reactive.started(); // once there is a listener to end it
+    }
+
+    /**
+     * The admission permit the stream runs under. Marked responded at the first event, and released once the stream ends.
+     */
+    public synchronized void admittedBy(AdmissionLimiter.Permit permit) {
+        this.permit = permit;
+    }
+
+    /**
+     * Begins writing to the client.
+     *
+     * @param onWritable run (outside any lock) each time all sent events have been written and the client can take more
+     * @param onClosed run once (outside any lock) if the client goes away or the stream times out before it is completed
+     */
+    public void stream(Runnable onWritable, Runnable onClosed) throws IOException {
+        synchronized (this) {
+            this.onWritable = onWritable;
+            this.onClosed = onClosed;
+            this.out = asyncContext.getResponse().getOutputStream();
+        }
+        out.setWriteListener(this); // the container calls onWritePossible as soon as the response can be written
+    }
+
+    public void sendEvent(Object data) {
+        send("data: " + JsonUtil.toJson(data) + "\n\n");
+    }
+
+    /**
+     * Sends a named event, for the client to handle with addEventListener(eventName) rather than onmessage.
+     *
+     * @param data a single line of text (e.g. base64)
+     */
+    public void sendEvent(String eventName, String data) {
+        send("event: " + eventName + "\ndata: " + data + "\n\n");
+    }
+
+    private void send(String event) {
+        boolean writable;
+        synchronized (this) {
+            if (closed || completing) {
+                return;
+            }
+            pending.add(event.getBytes(StandardCharsets.UTF_8));
+            if (++eventCount == 1) {
+                SseMetrics.reactive.firstEvent(startNanos);
+                permit.responded();
+            }
+            writable = out != null && write();
+        }
+        runCallback(writable);
+    }
+
+    /**
+     * Runs the writable callback now if every sent event has been written and the client can take more,
+     * otherwise once it can.
+     */
+    public void resume() {
+        boolean writable;
+        synchronized (this) {
+            writable = out != null && write();
+        }
+        runCallback(writable);
+    }
+
+    /**
+     * Completes the response once all sent events have been written (starting to write them if stream was never called).
+     */
+    public void complete() {
+        boolean streaming;
+        synchronized (this) {
+            if (closed || completing) {
+                return;
+            }
+            completing = true;
+            streaming = out != null;
+            if (streaming) {
+                write();
+            }
+        }
+        runCallback(false);
+        if (!streaming) {
+            try {
+                stream(() -> {}, () -> {});
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+    }
+
+    public void error(HttpStatusCode statusCode, Throwable e, String clientMessage) {
+        // as SynchronousSse: log the full error against a UID, and only send the client a general message including it
+        String errorUid = java.util.UUID.randomUUID().toString();
+        log.error("SSE Error UID: {}, Message: {}", errorUid, clientMessage, e);
+
+        synchronized (this) {
+            lastStatusCode = statusCode;
+        }
+        sendEvent(new ErrorEvent(statusCode.toString(), errorUid, clientMessage));
+        complete();
+    }
+
+    @Override
+    public void onWritePossible() {
+        boolean writable;
+        synchronized (this) {
+            writable = write();
+        }
+        runCallback(writable);
+    }
+
+    /**
+     * Runs onClosed if the stream has closed since it was last run, otherwise onWritable if the client can take more.
+     * Must not hold the lock, as the callbacks take their own.
+     */
+    private void runCallback(boolean writable) {
+        Runnable callback = null;
+        synchronized (this) {
+            if (closedCallbackDue) {
+                closedCallbackDue = false;
+                callback = onClosed;
+            } else if (writable) {
+                callback = onWritable;
+            }
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Writes pending events until the client can take no more. Must hold the lock.
+     *
+     * @return true if everything pending was written and flushed, and the client can take more
+     */
+    private boolean write() {
+        if (closed) {
+            return false;
+        }
+        try {
+            while (out.isReady()) {
+                byte[] event = pending.poll();
+                if (event != null) {
+                    out.write(event);
+                    continue;
+                }
+                out.flush();
+                if (!out.isReady()) {
+                    return false; // onWritePossible is called once the flush has finished
+                }
+                if (completing) {
+                    finish();
+                    return false;
+                }
+                return true;
+            }
+            return false; // onWritePossible is called once the client has read enough
+        } catch (IOException e) {
+            abort(HttpStatus.PARTIAL_CONTENT);
+            return false;
+        }
+    }
+
+    /**
+     * Ends the stream without writing what is pending, leaving onClosed to run once the lock is released. Must hold the lock.
+     */
+    private void abort(HttpStatusCode statusCode) {
+        if (closed) {
+            return;
+        }
+        lastStatusCode = statusCode;
+        pending.clear();
+        finish();
+        closedCallbackDue = true;
+    }
+
+    private void finish() {
+        closed = true;
+        SseMetrics.reactive.ended(eventCount, lastStatusCode == HttpStatus.PARTIAL_CONTENT);
+        permit.release();
+        request.setAttribute(AccessLog.SSE_STATS_ATTRIBUTE, new SseStats(eventCount, lastStatusCode));
+        asyncContext.complete();
+    }
+
+    /**
+     * The client went away (a broken pipe).
+     */
+    @Override
+    public void onError(Throwable t) {
+        synchronized (this) {
+            abort(HttpStatus.PARTIAL_CONTENT);
+        }
+        runCallback(false);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        synchronized (this) {
+            abort(HttpStatus.REQUEST_TIMEOUT);
+        }
+        runCallback(false);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {}
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+}
@@ -0,0 +1,113 @@
+package com.luketn.util;
+
+import com.luketn.api.filters.AccessLog;
+import com.luketn.util.SynchronousSse.SseBrokenPipe;
+import com.luketn.util.SynchronousSse.SseStats;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+
+import java.io.IOException;
+
+/**
+ * A raw application/octet-stream of frames written on the request thread, the binary counterpart of SynchronousSse.
+ * Each frame is prefixed with its length as a varint and flushed to the client as it is sent.
+ * Call complete when the stream ends, to send the zero length frame marking a complete stream.
+ * As there is nowhere to put an error once the body has started, a failed stream just ends without that marker.
+ */
+public class FramedStream {
+    private static final Logger log = LoggerFactory.getLogger(FramedStream.class);
+
+    private final HttpServletResponse response;
+    private final byte[] lengthPrefix = new byte[5];
+    private final long startNanos;
+    private boolean ended = false;
+    private ServletOutputStream out;
+    private int frameCount = 0;
+    private HttpStatusCode lastStatusCode = HttpStatus.OK;
+
+    public static FramedStream forResponse(HttpServletResponse response) {
+        return new FramedStream(response);
+    }
+
+    private FramedStream(HttpServletResponse response) {
+        this.response = response;
+        this.startNanos = SseMetrics.framed.started();
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("application/octet-stream");
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("X-Accel-Buffering", "no");
+        updateAccessLogStats();
+    }
+
+    private void updateAccessLogStats() {
+        AccessLog.updateSseStats(new SseStats(frameCount, lastStatusCode));
+    }
+
+    public void sendFrame(byte[] data, int length) {
+        try {
+            write(data, length);
+            if (++frameCount == 1) {
+                SseMetrics.framed.firstEvent(startNanos);
+            }
+        } catch (IOException e) {
+            brokenPipe();
+        }
+        updateAccessLogStats();
+    }
+
+    /**
+     * Sends the end of stream marker.
+     */
+    public void complete() {
+        try {
+            write(lengthPrefix, 0);
+        } catch (IOException e) {
+            brokenPipe();
+        }
+        updateAccessLogStats(); // on the request's thread, even if frames were sent from others (e.g. a parallel scan)
+        end();
+    }
+
+    private void end() {
+        if (!ended) {
+            ended = true;
+            SseMetrics.framed.ended(frameCount, lastStatusCode == HttpStatus.PARTIAL_CONTENT);
+        }
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        if (out == null) {
+            out = response.getOutputStream();
+        }
+        int prefixLength = 0;
+        int remaining = length;
+        while ((remaining & ~0x7F) != 0) {
+            lengthPrefix[prefixLength++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        lengthPrefix[prefixLength++] = (byte) remaining;
+        out.write(lengthPrefix, 0, prefixLength);
+        out.write(data, 0, length);
+        out.flush();
+    }
+
+    private void brokenPipe() {
+        lastStatusCode = HttpStatus.PARTIAL_CONTENT;
+        updateAccessLogStats();
+        end();
+        throw new SseBrokenPipe();
+    }
+
+    public void error(HttpStatusCode statusCode, Exception e, String message) {
+        // as SynchronousSse, but the UID only reaches the log
+        String errorUid = java.util.UUID.randomUUID().toString();
+        log.error("Framed stream Error UID: {}, Message: {}", errorUid, message, e);
+        lastStatusCode = statusCode;
+        updateAccessLogStats();
+        end();
+    }
+}
@@ -1,15 +1,23 @@
 package com.luketn.util;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public class JsonUtil {
     private static final ObjectMapper objectMapper = new ObjectMapper()
             .registerModule(new JavaTimeModule())
             .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    // leaves flushing to the caller, so several values can be written to a generator before one flush
+    private static final ObjectWriter streamingWriter = objectMapper.writer()
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
     public static String toJson(Object object) {
         try {
@@ -19,6 +27,26 @@ public class JsonUtil {
         }
     }
 
+    /**
+     * A generator for writing a series of JSON values (and raw text between them) straight to an output stream.
+     * Nothing is written between values, and closing the generator leaves the stream open.
+     */
+    public static JsonGenerator createGenerator(OutputStream outputStream) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(null);
+        return generator;
+    }
+
+    /**
+     * Writes the object as JSON to the generator, without flushing it.
+     *
+     * @throws IOException if writing to the generator's output fails
+     */
+    public static void writeJson(JsonGenerator generator, Object object) throws IOException {
+        streamingWriter.writeValue(generator, object);
+    }
+
     public static <T> T fromJson(String json, Class<T> valueType) {
         try {
             return objectMapper.readValue(json, valueType);
@@ -0,0 +1,204 @@
+package com.luketn.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses event streams with gzip or deflate, when the client advertises it in Accept-Encoding.
+ * Each flush of the stream is a sync flush, so every event written so far reaches the client decodable, at the cost of
+ * a few bytes a flush. Counts the bytes in and out, and the time spent compressing, for the
+ * /weather/sea/temperature/compression endpoint.
+ */
+@Component
+public class SseCompression {
+    private final boolean enabled;
+    private final int level;
+
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    public SseCompression(
+            @Value("${mongodb-schema.seatemperature.sse.compression.enabled:false}") boolean enabled,
+            @Value("${mongodb-schema.seatemperature.sse.compression.level:" + Deflater.DEFAULT_COMPRESSION + "}") int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be -1 (default) or 0 to 9.");
+        }
+        this.enabled = enabled;
+        this.level = level;
+    }
+
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String headerValue;
+
+        Encoding(String headerValue) {
+            this.headerValue = headerValue;
+        }
+
+        public String headerValue() {
+            return headerValue;
+        }
+    }
+
+    /**
+     * The encoding to compress the response to this request with, preferring gzip. Null to send it uncompressed.
+     */
+    public Encoding encodingFor(HttpServletRequest request) {
+        if (!enabled) {
+            return null;
+        }
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) {
+                continue; // explicitly not acceptable
+            }
+            if (name.equalsIgnoreCase("gzip")) {
+                return Encoding.GZIP;
+            }
+            deflate |= name.equalsIgnoreCase("deflate");
+        }
+        return deflate ? Encoding.DEFLATE : null;
+    }
+
+    /**
+     * Wraps the response output stream. Call finish once the stream ends, even if it broke, to release the compressor.
+     */
+    public CompressingOutputStream compress(OutputStream out, Encoding encoding) throws IOException {
+        streams.increment();
+        return new CompressingOutputStream(out, encoding);
+    }
+
+    /**
+     * Compresses into a buffer, so only the compressor itself is timed, then copies to the client on each flush.
+     */
+    public class CompressingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(8192);
+        private final Deflater deflater;
+        private final DeflaterOutputStream compressor;
+
+        private CompressingOutputStream(OutputStream out, Encoding encoding) throws IOException {
+            this.out = out;
+            if (encoding == Encoding.GZIP) {
+                this.deflater = null; // gzip's own deflater, ended when it is closed
+                this.compressor = new GZIPOutputStream(compressed, 8192, true) {{
+                    def.setLevel(level);
+                }};
+            } else {
+                this.deflater = new Deflater(level);
+                this.compressor = new DeflaterOutputStream(compressed, deflater, 8192, true);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            compressor.write(b);
+            compressionNanos.add(System.nanoTime() - start);
+            uncompressedBytes.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            compressor.write(b, off, len);
+            compressionNanos.add(System.nanoTime() - start);
+            uncompressedBytes.add(len);
+        }
+
+        /**
+         * Sync flushes the compressor, and sends everything compressed so far to the client.
+         */
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            compressor.flush();
+            compressionNanos.add(System.nanoTime() - start);
+            flushes.increment();
+            drain();
+            out.flush();
+        }
+
+        /**
+         * Ends the compressed stream (for gzip, its trailer) and sends the rest to the client.
+         *
+         * @param send false if the client has gone, to only release the compressor
+         */
+        public void finish(boolean send) throws IOException {
+            try {
+                long start = System.nanoTime();
+                compressor.close(); // closing the in-memory buffer leaves the response open
+                compressionNanos.add(System.nanoTime() - start);
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            if (send) {
+                drain();
+                out.flush();
+            }
+        }
+
+        private void drain() throws IOException {
+            compressedBytes.add(compressed.size());
+            compressed.writeTo(out);
+            compressed.reset();
+        }
+
+        /**
+         * Not closed with the generator, as the response is closed by the container.
+         */
+        @Override
+        public void close() {}
+    }
+
+    public record CompressionStats(
+            boolean enabled,
+            long streams,
+            long flushes,
+            long uncompressedBytes,
+            long compressedBytes,
+            long savedBytes,
+            double compressionRatio,
+            double compressionMillis,
+            double nanosPerUncompressedKilobyte
+    ) {}
+
+    public CompressionStats stats() {
+        long uncompressedBytes = this.uncompressedBytes.sum();
+        long compressedBytes = this.compressedBytes.sum();
+        long compressionNanos = this.compressionNanos.sum();
+        return new CompressionStats(
+                enabled,
+                streams.sum(),
+                flushes.sum(),
+                uncompressedBytes,
+                compressedBytes,
+                uncompressedBytes - compressedBytes,
+                compressedBytes == 0 ? 0 : (double) uncompressedBytes / compressedBytes,
+                compressionNanos / 1e6,
+                uncompressedBytes == 0 ? 0 : compressionNanos * 1024d / uncompressedBytes
+        );
+    }
+}
@@ -0,0 +1,68 @@
+package com.luketn.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prometheus metrics for event streams, tagged by the kind of stream. Streams are created per request rather than as beans,
+ * so the meters are registered once on the global registry, which Spring Boot adds its registry to.
+ * Recording is a few atomic updates per stream, so it is cheap enough to leave on.
+ */
+public final class SseMetrics {
+    public static final SseMetrics synchronous = new SseMetrics("synchronous");
+    public static final SseMetrics reactive = new SseMetrics("reactive");
+    public static final SseMetrics framed = new SseMetrics("framed");
+
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final Timer timeToFirstEvent;
+    private final DistributionSummary eventsPerStream;
+    private final Counter brokenPipes;
+
+    private SseMetrics(String stream) {
+        Metrics.gauge("sse.streams.active", Tags.of("stream", stream), activeStreams);
+        timeToFirstEvent = Timer.builder("sse.time.to.first.event")
+                .description("Time from the stream starting to its first event being sent")
+                .tag("stream", stream)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+        eventsPerStream = DistributionSummary.builder("sse.stream.events")
+                .description("Events sent per stream")
+                .tag("stream", stream)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+        brokenPipes = Counter.builder("sse.broken.pipes")
+                .description("Streams ended by the client going away")
+                .tag("stream", stream)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * @return the start time, to pass to firstEvent
+     */
+    long started() {
+        activeStreams.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void firstEvent(long startNanos) {
+        timeToFirstEvent.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    int activeStreams() {
+        return activeStreams.get();
+    }
+
+    void ended(int eventCount, boolean brokenPipe) {
+        activeStreams.decrementAndGet();
+        eventsPerStream.record(eventCount);
+        if (brokenPipe) {
+            brokenPipes.increment();
+        }
+    }
+}
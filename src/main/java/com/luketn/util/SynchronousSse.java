@@ -1,5 +1,7 @@
 package com.luketn.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.luketn.api.filters.AccessLog;
 import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
@@ -8,30 +10,86 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Server-sent events written on the request thread. Events are serialized straight into the response output stream.
+ * The first event is flushed to the client immediately; later ones according to the flush policy.
+ * Optionally compressed, with a sync flush at each flush so the events sent so far can be decoded straight away.
+ * Call complete when the stream ends, to flush anything still pending.
+ */
 public class SynchronousSse {
     private static final Logger log = LoggerFactory.getLogger(SynchronousSse.class);
 
+    // only triggers deadline flushes; the flush itself runs on a virtual thread, as it may block on a slow client
+    private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("sse-flush-scheduler").daemon().factory());
+
     private final HttpServletResponse response;
+    private final FlushPolicy flushPolicy;
+    private final SseCompression compression;
+    private final SseCompression.Encoding encoding;
+    private final long startNanos;
     private int eventCount = 0;
     private HttpStatusCode lastStatusCode = HttpStatus.OK;
 
+    // guarded by this, as a deadline flush runs on another thread
+    private JsonGenerator generator;
+    private SseCompression.CompressingOutputStream compressingOutputStream;
+    private int unflushedEvents = 0;
+    private long lastFlushNanos;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean completed = false;
+    private boolean broken = false;
+
+    /**
+     * Flush once maxEvents events are unflushed, or maxDelay after the last flush, whichever comes first.
+     */
+    public record FlushPolicy(int maxEvents, Duration maxDelay) {
+        public static final FlushPolicy IMMEDIATE = new FlushPolicy(1, Duration.ZERO);
+    }
+
     public static SynchronousSse forResponse(HttpServletResponse response) {
-        return new SynchronousSse(response);
+        return new SynchronousSse(response, FlushPolicy.IMMEDIATE, null, null);
+    }
+
+    public static SynchronousSse forResponse(HttpServletResponse response, FlushPolicy flushPolicy) {
+        return new SynchronousSse(response, flushPolicy, null, null);
     }
 
-    private SynchronousSse(HttpServletResponse response) {
+    /**
+     * @param encoding the content encoding negotiated with SseCompression.encodingFor, or null to send the stream uncompressed
+     */
+    public static SynchronousSse forResponse(HttpServletResponse response, FlushPolicy flushPolicy, SseCompression compression, SseCompression.Encoding encoding) {
+        return new SynchronousSse(response, flushPolicy, compression, encoding);
+    }
+
+    private SynchronousSse(HttpServletResponse response, FlushPolicy flushPolicy, SseCompression compression, SseCompression.Encoding encoding) {
         this.response = response;
+        this.flushPolicy = flushPolicy;
+        this.compression = compression;
+        this.encoding = encoding;
+        this.startNanos = SseMetrics.synchronous.started();
         response.setStatus(HttpStatus.OK.value());
         response.setCharacterEncoding("UTF-8");
         response.addHeader("Content-Type", "text/event-stream; charset=UTF-8");
         response.addHeader("Cache-Control", "no-cache");
         response.addHeader("X-Accel-Buffering", "no");
+        response.addHeader("Vary", "Accept-Encoding");
+        if (encoding != null) {
+            response.addHeader("Content-Encoding", encoding.headerValue());
+        }
         try {
             response.flushBuffer();
         } catch (IOException e) {
+            SseMetrics.synchronous.ended(0, true); // as no complete will follow
             brokenPipe();
         }
+        lastFlushNanos = System.nanoTime();
         updateAccessLogStats();
     }
 
@@ -40,14 +98,147 @@ public class SynchronousSse {
     }
 
     public void sendEvent(Object data) {
-        try {
-            response.getWriter().print("data: " + JsonUtil.toJson(data) + "\n\n");
-            response.flushBuffer();
+        send(generator -> {
+            generator.writeRaw("data: ");
+            JsonUtil.writeJson(generator, data);
+            generator.writeRaw("\n\n");
+        });
+    }
+
+    /**
+     * Sends a named event, for the client to handle with addEventListener(eventName) rather than onmessage.
+     *
+     * @param data a single line of text (e.g. base64)
+     */
+    public void sendEvent(String eventName, String data) {
+        send(generator -> {
+            generator.writeRaw("event: ");
+            generator.writeRaw(eventName);
+            generator.writeRaw("\ndata: ");
+            generator.writeRaw(data);
+            generator.writeRaw("\n\n");
+        });
+    }
+
+    /**
+     * Sends a comment line, which clients ignore, e.g. as a heartbeat so an idle stream finds out the client has gone.
+     */
+    public void sendComment(String comment) {
+        send(generator -> {
+            generator.writeRaw(": ");
+            generator.writeRaw(comment);
+            generator.writeRaw("\n\n");
+        });
+    }
+
+    private interface EventWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private void send(EventWriter eventWriter) {
+        synchronized (this) {
+            if (broken) {
+                brokenPipe();
+            }
+            try {
+                if (generator == null) {
+                    createGenerator();
+                }
+                eventWriter.write(generator);
+                eventCount++;
+                unflushedEvents++;
+
+                long sinceLastFlushNanos = System.nanoTime() - lastFlushNanos;
+                long maxDelayNanos = flushPolicy.maxDelay().toNanos();
+                if (eventCount == 1 || completed || unflushedEvents >= flushPolicy.maxEvents() || sinceLastFlushNanos >= maxDelayNanos) {
+                    flush();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = flushScheduler.schedule(
+                            () -> Thread.ofVirtual().name("sse-flush").start(this::deadlineFlush),
+                            maxDelayNanos - sinceLastFlushNanos, TimeUnit.NANOSECONDS);
+                }
+                if (eventCount == 1) {
+                    SseMetrics.synchronous.firstEvent(startNanos);
+                }
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("Failed to convert object to JSON", e);
+            } catch (IOException e) {
+                broken = true;
+                brokenPipe();
+            }
+        }
+        updateAccessLogStats();
+    }
 
-            eventCount++;
-            updateAccessLogStats();
+    /**
+     * Flushes any events still pending, and stops deadline flushes. Call once the stream has ended, on the request's thread.
+     */
+    public synchronized void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (!broken && unflushedEvents > 0) {
+            try {
+                flush();
+            } catch (IOException e) {
+                completedBroken();
+            }
+        }
+        if (encoding != null) {
+            try {
+                if (generator == null && !broken) {
+                    createGenerator(); // even an empty stream needs a valid compressed body
+                }
+                if (compressingOutputStream != null) {
+                    compressingOutputStream.finish(!broken); // also releases the compressor of a broken stream
+                }
+            } catch (IOException e) {
+                completedBroken();
+            }
+        }
+        SseMetrics.synchronous.ended(eventCount, broken);
+        updateAccessLogStats(); // on the request's thread, even if events were sent from others (e.g. a parallel scan)
+    }
+
+    private void completedBroken() {
+        broken = true;
+        lastStatusCode = HttpStatus.PARTIAL_CONTENT;
+        updateAccessLogStats();
+    }
+
+    private void createGenerator() throws IOException {
+        if (encoding != null) {
+            compressingOutputStream = compression.compress(response.getOutputStream(), encoding);
+            generator = JsonUtil.createGenerator(compressingOutputStream);
+        } else {
+            generator = JsonUtil.createGenerator(response.getOutputStream());
+        }
+    }
+
+    private synchronized void deadlineFlush() {
+        scheduledFlush = null;
+        if (completed || broken || unflushedEvents == 0) {
+            return;
+        }
+        try {
+            flush();
         } catch (IOException e) {
-            brokenPipe();
+            broken = true; // reported as a broken pipe by the next sendEvent
+        }
+    }
+
+    private void flush() throws IOException {
+        generator.flush(); // flushes the generator's buffer, then the response output stream
+        unflushedEvents = 0;
+        lastFlushNanos = System.nanoTime();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
         }
     }
 
@@ -70,6 +261,7 @@ public class SynchronousSse {
         try {
             lastStatusCode = statusCode;
             sendEvent(errorEvent);
+            complete();
         } catch (Exception _) {} // swallow errors trying to send the error event to the client, as we are already in an error state and the socket may be broken
     }
 
@@ -29,4 +29,17 @@ class HealthApiTest {
         assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
         assertEquals("OK", response.body(), "Expected response body to be 'OK'");
     }
-}
\ No newline at end of file
+
+    @Test
+    void ready() throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newHttpClient();
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/health/ready"))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200 once started");
+        assertEquals("READY", response.body(), "Expected response body to be 'READY'");
+    }
+}
@@ -0,0 +1,61 @@
+package com.luketn.api;
+
+import com.luketn.dataaccess.mongodb.MongoDBProvider;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(useMainMethod = SpringBootTest.UseMainMethod.ALWAYS, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureObservability // metrics are only exported outside of tests by default
+class MetricsTest {
+    @MockitoBean
+    MongoDBProvider mongoDBProvider;
+
+    @LocalServerPort
+    private int port;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + path))
+                .GET()
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void prometheus_publishesRequestAndStreamMetrics() throws IOException, InterruptedException {
+        // given a sea temperature stream has been served (ending in a bad request error event)
+        assertEquals(200, get("/weather/sea/temperature?south=1").statusCode());
+
+        // when the metrics are scraped
+        var response = get("/actuator/prometheus");
+
+        // then there are latency histograms per endpoint, and the stream metrics
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        String metrics = response.body();
+        assertTrue(metrics.contains("http_server_requests_seconds_bucket{"), "Expected request latency histograms");
+        assertTrue(metrics.contains("uri=\"/weather/sea/temperature\""), "Expected latency tagged by endpoint");
+        assertTrue(metrics.contains("sse_time_to_first_event_seconds_bucket{"), "Expected a time to first event histogram");
+        assertTrue(metrics.contains("sse_stream_events_count{stream=\"synchronous\"}"), "Expected events per stream");
+        assertTrue(metrics.contains("sse_streams_active{stream=\"synchronous\"}"), "Expected active streams");
+        assertTrue(metrics.contains("sse_broken_pipes_total{"), "Expected broken pipe counts");
+        assertTrue(metrics.contains("sea_temperature_dedup_ratio "), "Expected the dedup ratio");
+        assertTrue(metrics.contains("sea_temperature_stream_points_count "), "Expected points per stream");
+        assertTrue(metrics.contains("sea_temperature_cache_hits_total "), "Expected the tile cache counters");
+        assertTrue(metrics.contains("sea_temperature_grid_viewports_total "), "Expected the grid counters");
+        assertTrue(metrics.contains("sea_temperature_batching_events_total{trigger=\"full\"}"), "Expected the batching counters");
+        assertTrue(metrics.contains("mongodb_driver_commands_slow_total "), "Expected the slow MongoDB command count");
+        assertTrue(metrics.contains("admission_limit{endpoint=\"sea_temperature\"}"), "Expected the admission limits");
+    }
+}
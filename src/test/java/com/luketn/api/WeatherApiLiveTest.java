@@ -0,0 +1,246 @@
+package com.luketn.api;
+
+import com.luketn.dataaccess.mongodb.MongoDBProvider;
+import com.luketn.dataaccess.mongodb.SeaTemperatureDedupMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import com.luketn.seatemperature.SeaTemperatureLiveFeed;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.bean.override.convention.TestBean;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Live streams against a change stream fed by the test, and a stream whose client is gone before it starts, with
+ * admission control on to see when the stream's permit is released.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, useMainMethod = SpringBootTest.UseMainMethod.ALWAYS, properties = {
+        "mongodb-schema.seatemperature.live.enabled=true",
+        "mongodb-schema.seatemperature.live.heartbeat-interval=200ms",
+        "mongodb-schema.seatemperature.live.change-stream-retry-interval=50ms",
+        "mongodb-schema.admission.enabled=true"
+})
+class WeatherApiLiveTest {
+    private static final String viewport = "south=1&west=1&north=2&east=2";
+    private static final BoundingBox viewportBoundingBox = new BoundingBox(1.0, 2.0, 1.0, 2.0);
+
+    @MockitoBean
+    MongoDBProvider mongoDBProvider;
+
+    // a fake rather than a Mockito mock, as the warm-up and the change stream call it while the tests would be stubbing it
+    @TestBean
+    WeatherDataAccess weatherDataAccess;
+
+    @Autowired
+    SeaTemperatureLiveFeed liveFeed;
+
+    @Autowired
+    AdmissionControl admissionControl;
+
+    @Autowired
+    WeatherApi weatherApi;
+
+    @LocalServerPort
+    private int port;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private static final BlockingQueue<ChangeStreamDocument<SeaTemperatureReading>> inserts = new LinkedBlockingQueue<>();
+    private static final ChangeStreamDocument<SeaTemperatureReading> cursorClosed = insert(0, 0, 0);
+    private static final AtomicInteger subscribersAtSnapshot = new AtomicInteger(-1);
+    private static volatile SeaTemperatureLiveFeed snapshotLiveFeed;
+
+    /**
+     * The snapshot of every viewport is a single reading, noting how many live viewers were subscribed when it was read,
+     * and the change stream passes on the inserts the test queues.
+     */
+    static WeatherDataAccess weatherDataAccess() {
+        return new WeatherDataAccess(null, null, 500, SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM) {
+            @Override
+            public void createIndexes() {
+            }
+
+            @Override
+            public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+                SeaTemperatureLiveFeed liveFeed = snapshotLiveFeed;
+                if (liveFeed != null && boundingBox.equals(viewportBoundingBox)) { // not the warm-up's
+                    subscribersAtSnapshot.set(liveFeed.stats().subscribers());
+                }
+                seaTemperatureConsumer.accept(1.5, 1.5, 20.0);
+            }
+
+            @Override
+            public long countSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, int limit) {
+                return 1;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> watchSeaTemperatureInserts(BsonDocument resumeToken) {
+                MongoChangeStreamCursor<ChangeStreamDocument<SeaTemperatureReading>> cursor = mock(MongoChangeStreamCursor.class);
+                when(cursor.next()).thenAnswer(_ -> {
+                    ChangeStreamDocument<SeaTemperatureReading> change = inserts.take();
+                    if (change == cursorClosed) {
+                        throw new IllegalStateException("Cursor has been closed");
+                    }
+                    return change;
+                });
+                doAnswer(_ -> inserts.add(cursorClosed)).when(cursor).close();
+                when(cursor.getResumeToken()).thenReturn(new BsonDocument("_data", new BsonInt32(1)));
+                return cursor;
+            }
+        };
+    }
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        snapshotLiveFeed = liveFeed;
+        await(() -> liveFeed.stats().changeStreamOpen(), "Expected the change stream to open");
+    }
+
+    @Test
+    void streamSeaSurfaceTemperatures_live() throws IOException, InterruptedException {
+        // given a live stream of a viewport
+        HttpResponse<InputStream> response = client.send(request("/weather/sea/temperature?" + viewport + "&live=true"), HttpResponse.BodyHandlers.ofInputStream());
+        try (BufferedReader events = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            // then the snapshot is sent, read once the viewer was subscribed so no insert in between is missed
+            assertEquals("data: [{\"lon\":1.5,\"lat\":1.5,\"temp\":20.0}]", nextEvent(events));
+            assertEquals(1, subscribersAtSnapshot.get());
+            // and the stream is marked live, no longer counting against admission control as it waits on inserts
+            assertEquals("event: live", nextEvent(events));
+            assertEquals("data: conflate", nextEvent(events));
+            await(() -> admissionControl.stats().seaTemperatureStreams().inFlight() == 0, "Expected the live stream's permit to be released");
+
+            // when a reading is inserted within the viewport, and one outside it
+            inserts.add(insert(1.75, 1.25, 21.0));
+            inserts.add(insert(10.0, 10.0, 22.0));
+
+            // then only the one within it follows
+            assertEquals("data: [{\"lon\":1.75,\"lat\":1.25,\"temp\":21.0}]", nextEvent(events));
+            // and with no more inserts, heartbeats are sent
+            assertEquals(": heartbeat", nextLine(events));
+        }
+
+        // when the client goes away
+        // then the stream finds out at its next heartbeat, and unsubscribes
+        await(() -> liveFeed.stats().subscribers() == 0, "Expected the live viewer to be unsubscribed");
+        assertEquals(0, admissionControl.stats().seaTemperatureStreams().inFlight());
+    }
+
+    @Test
+    @DirtiesContext // the live feed stays closed
+    void streamSeaSurfaceTemperatures_live_endsWhenTheFeedCloses() throws IOException, InterruptedException {
+        // given a live stream of a viewport
+        HttpResponse<InputStream> response = client.send(request("/weather/sea/temperature?" + viewport + "&live=true&overflow=drop"), HttpResponse.BodyHandlers.ofInputStream());
+        try (BufferedReader events = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            assertEquals("data: [{\"lon\":1.5,\"lat\":1.5,\"temp\":20.0}]", nextEvent(events));
+            assertEquals("event: live", nextEvent(events));
+            assertEquals("data: drop", nextEvent(events));
+
+            // when the live feed closes (as the instance shuts down)
+            liveFeed.close();
+
+            // then the stream ends, with its viewer unsubscribed
+            String line;
+            while ((line = events.readLine()) != null) {
+                assertTrue(line.isEmpty() || line.equals(": heartbeat"), "Expected no more events, got " + line);
+            }
+            assertEquals(0, liveFeed.stats().subscribers());
+        }
+    }
+
+    @Test
+    void streamSeaSurfaceTemperatures_clientGoneBeforeTheHeaders_releasesThePermit() {
+        // given a client that has gone away before the stream's headers are flushed
+        HttpServletResponseWrapper response = new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+            @Override
+            public void flushBuffer() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        // when a viewport is streamed to it
+        weatherApi.streamSeaSurfaceTemperatures(1.0, 2.0, 1.0, 2.0, null, null, null, null, null, null, null, null, false, null, new MockHttpServletRequest(), response);
+
+        // then the stream's permit is released, though the stream never started
+        assertEquals(0, admissionControl.stats().seaTemperatureStreams().inFlight());
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+    }
+
+    /**
+     * The next line of the next event in the stream, skipping heartbeats.
+     */
+    private static String nextEvent(BufferedReader events) throws IOException {
+        String line;
+        do {
+            line = nextLine(events);
+        } while (line.equals(": heartbeat"));
+        return line;
+    }
+
+    /**
+     * The next non-blank line of the event stream.
+     */
+    private static String nextLine(BufferedReader events) throws IOException {
+        String line;
+        do {
+            line = events.readLine();
+            assertNotNull(line, "Expected the stream to still be open");
+        } while (line.isEmpty());
+        return line;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChangeStreamDocument<SeaTemperatureReading> insert(double longitude, double latitude, double seaSurfaceTemperature) {
+        ChangeStreamDocument<SeaTemperatureReading> change = mock(ChangeStreamDocument.class);
+        when(change.getFullDocument()).thenReturn(new SeaTemperatureReading(longitude, latitude, seaSurfaceTemperature));
+        return change;
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(20);
+        }
+    }
+}
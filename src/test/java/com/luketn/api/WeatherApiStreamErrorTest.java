@@ -78,6 +78,48 @@ public class WeatherApiStreamErrorTest {
                 "Expected error message for missing parameters");
     }
 
+    @Test
+    void streamSeaSurfaceTemperatures_reactive_database_error() throws IOException, InterruptedException {
+        // given a mock MongoDB provider that simulates a database error on the reactive client
+        when(mongoDBProvider.getReactiveMongoDatabase())
+                .thenThrow(new RuntimeException("Simulated database error"));
+
+        // when the sea surface temperatures are requested from the reactive engine
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/sea/temperature?south=1&west=1&north=2&east=2&engine=reactive"))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then should return the same SSE error event as the synchronous engine
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"), "Expected an event stream");
+        String body = response.body();
+        if (body.startsWith("data: ")) {
+            body = body.substring(6);
+        }
+        SynchronousSse.ErrorEvent errorEvent = JsonUtil.fromJson(body, SynchronousSse.ErrorEvent.class);
+        assertEquals("500 INTERNAL_SERVER_ERROR", errorEvent.status(), "Expected HTTP status code in error event");
+        assertNotNull(errorEvent.id(), "Error event ID should not be null");
+        assertEquals("An unexpected error occurred while streaming sea surface temperatures.", errorEvent.error());
+    }
+
+    @Test
+    void streamSeaSurfaceTemperatures_octetStream_badRequest() throws IOException, InterruptedException {
+        // given a raw binary request with missing query string parameters
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/sea/temperature?south=1&west=1"))
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build();
+
+        // when the request is sent
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then should return 400 Bad Request, as there is no event stream to put an error event in
+        assertEquals(400, response.statusCode(), "Expected HTTP status code 400");
+    }
+
     @Test
     public void testMissingParameters() throws IOException, InterruptedException {
         // given a request with missing query string parameters
@@ -105,4 +147,26 @@ public class WeatherApiStreamErrorTest {
         assertEquals("For BoundingBox query type, north, south, east, and west must all be supplied.", errorEvent.error(),
                 "Expected error message for missing parameters");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInvalidQueryMode() throws IOException, InterruptedException {
+        // given a request with an unknown query mode
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/sea/temperature?south=1&west=1&north=2&east=2&queryMode=NEAREST"))
+                .GET()
+                .build();
+
+        // when the request is sent
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then should return a 400 Bad Request error event
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        String body = response.body();
+        if (body.startsWith("data: ")) {
+            body = body.substring(6);
+        }
+        SynchronousSse.ErrorEvent errorEvent = JsonUtil.fromJson(body, SynchronousSse.ErrorEvent.class);
+        assertEquals("400 BAD_REQUEST", errorEvent.status(), "Expected HTTP status code in error event");
+        assertEquals("queryMode must be one of RANGE or GEO_WITHIN.", errorEvent.error());
+    }
+}
@@ -3,7 +3,9 @@ package com.luketn.api;
 import com.luketn.seatemperature.SeaTemperatureService;
 import com.luketn.seatemperature.datamodel.BoundingBox;
 import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatchEncoder;
 import com.luketn.util.JsonUtil;
+import com.luketn.testsupport.SeedDataMongoDB;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -14,9 +16,6 @@ import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
-import org.testcontainers.containers.BindMode;
-import org.testcontainers.containers.Container.ExecResult;
-import org.testcontainers.containers.ExecConfig;
 import org.testcontainers.containers.MongoDBContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
@@ -30,8 +29,10 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Base64;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,9 +41,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
 import static org.junit.jupiter.api.Assertions.*;
-import static org.testcontainers.shaded.org.apache.commons.lang3.ArrayUtils.toArray;
 
 /**
  * Tests the Weather API endpoints for streaming sea surface temperatures.
@@ -53,36 +52,26 @@ import static org.testcontainers.shaded.org.apache.commons.lang3.ArrayUtils.toAr
 @Testcontainers
 public class WeatherApiStreamSeedDataTest {
     @Container
-    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongodb/mongodb-community-server:8.0.12-ubi9")
-            .withClasspathResourceMapping("/seed-data","/tmp/seed-data", BindMode.READ_ONLY);
+    private static final MongoDBContainer mongoDBContainer = SeedDataMongoDB.container();
 
     @BeforeAll
     static void init() throws IOException, InterruptedException {
-        ExecResult execResult = mongoDBContainer.execInContainer(
-                ExecConfig.builder()
-                        .workDir("/tmp/seed-data")
-                        .command(
-                                toArray(
-                                    "mongoimport",
-                                    "-d", "testdb",
-                                    "-c", COLLECTION_NAME,
-                                    "--jsonArray",
-                                    "sample_weatherdata.data.json"
-                                 )
-                        ).build()
-        );
-        int exitCode = execResult.getExitCode();
-        if (exitCode != 0) {
-            throw new RuntimeException("Failed to import seed data into MongoDB container, exit code: %d\nstdout: %s\nstderr: %s".formatted(exitCode, execResult.getStdout(), execResult.getStderr()));
-        }
+        SeedDataMongoDB.importSeedData(mongoDBContainer);
     }
 
     @DynamicPropertySource
     static void configureProperties(DynamicPropertyRegistry registry) {
         registry.add("mongodb-schema.dataaccess.mongodb.connection-string", mongoDBContainer::getConnectionString);
-        registry.add("mongodb-schema.dataaccess.mongodb.database-name", ()->"testdb");
+        registry.add("mongodb-schema.dataaccess.mongodb.database-name", ()->SeedDataMongoDB.database_name);
+        // events grow from 10 to at most 50 points, and only linger beyond the length of any test
+        registry.add("mongodb-schema.seatemperature.batching.max-event-size", ()->max_event_size);
+        registry.add("mongodb-schema.seatemperature.batching.linger", ()->"10s");
+        // the whole earth is compared against every unique report, not the pre-aggregated grid
+        registry.add("mongodb-schema.seatemperature.grid.enabled", ()->"false");
     }
 
+    private static final int max_event_size = 50;
+
     @LocalServerPort
     protected int port;
 
@@ -116,7 +105,6 @@ public class WeatherApiStreamSeedDataTest {
         assertNotNull(body, "Response body should not be null");
         String[] sseEvents = body.split("\n\n");
 
-        assertEquals(1, sseEvents.length, "Expected 1 SSE event in the response");
         int countTotalMeasurements = 0;
         for (String sseEvent : sseEvents) {
             //strip the line starting with "data: "
@@ -124,6 +112,7 @@ public class WeatherApiStreamSeedDataTest {
                 sseEvent = sseEvent.substring(6);
             }
             List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+            assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
             for (SeaTemperature seaTemperature : seaTemperatures) {
                 countTotalMeasurements++;
 
@@ -164,7 +153,6 @@ public class WeatherApiStreamSeedDataTest {
         assertNotNull(body, "Response body should not be null");
         String[] sseEvents = body.split("\n\n");
 
-        assertEquals(24, sseEvents.length, "Expected 2 SSE events in the response");
         int countTotalMeasurements = 0;
         for (String sseEvent : sseEvents) {
             //strip the line starting with "data: "
@@ -172,6 +160,7 @@ public class WeatherApiStreamSeedDataTest {
                 sseEvent = sseEvent.substring(6);
             }
             List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+            assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
             for (SeaTemperature seaTemperature : seaTemperatures) {
                 countTotalMeasurements++;
 
@@ -185,6 +174,143 @@ public class WeatherApiStreamSeedDataTest {
         assertEquals(238, countTotalMeasurements, "Expected 558 sea surface temperature measurements in total");
     }
 
+    @Test
+    void streamSeaSurfaceTemperatures_bounding_large_geoWithin() throws IOException, InterruptedException {
+        // given the large bounding box, queried with $geoWithin against the 2dsphere index
+        double south = 48.85387273165656;
+        double west = -12.980690002441408;
+        double north = 56.791853873960605;
+        double east = 13.386497497558596;
+
+        // when the sea surface temperatures are requested
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create(
+                    "http://localhost:" + port + "/weather/sea/temperature?" +
+                    "south=" + south +
+                    "&west=" + west +
+                    "&north=" + north +
+                    "&east=" + east +
+                    "&queryMode=GEO_WITHIN"
+                ))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then should return exactly the same measurements as the range query
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        String[] sseEvents = response.body().split("\n\n");
+        int countTotalMeasurements = 0;
+        for (String sseEvent : sseEvents) {
+            if (sseEvent.startsWith("data: ")) {
+                sseEvent = sseEvent.substring(6);
+            }
+            List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+            assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
+            for (SeaTemperature seaTemperature : seaTemperatures) {
+                countTotalMeasurements++;
+                assertTrue(seaTemperature.lat() >= south && seaTemperature.lat() <= north,
+                        "Latitude %f should be within bounds [%f, %f]".formatted(seaTemperature.lat(), south, north));
+                assertTrue(seaTemperature.lon() >= west && seaTemperature.lon() <= east,
+                        "Longitude %f should be within bounds [%f, %f]".formatted(seaTemperature.lon(), west, east));
+            }
+        }
+        assertEquals(238, countTotalMeasurements, "Expected the same 238 measurements as the range query");
+    }
+
+    @Test
+    void streamSeaSurfaceTemperatures_bounding_large_reactive() throws IOException, InterruptedException {
+        // given the large bounding box
+        double south = 48.85387273165656;
+        double west = -12.980690002441408;
+        double north = 56.791853873960605;
+        double east = 13.386497497558596;
+
+        // when the sea surface temperatures are requested from the reactive engine
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create(
+                    "http://localhost:" + port + "/weather/sea/temperature?" +
+                    "south=" + south +
+                    "&west=" + west +
+                    "&north=" + north +
+                    "&east=" + east +
+                    "&engine=REACTIVE"
+                ))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then should return exactly the same measurements, in the same batches, as the synchronous engine
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        String[] sseEvents = response.body().split("\n\n");
+        int countTotalMeasurements = 0;
+        for (String sseEvent : sseEvents) {
+            if (sseEvent.startsWith("data: ")) {
+                sseEvent = sseEvent.substring(6);
+            }
+            List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+            assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
+            for (SeaTemperature seaTemperature : seaTemperatures) {
+                countTotalMeasurements++;
+                assertTrue(seaTemperature.lat() >= south && seaTemperature.lat() <= north,
+                        "Latitude %f should be within bounds [%f, %f]".formatted(seaTemperature.lat(), south, north));
+                assertTrue(seaTemperature.lon() >= west && seaTemperature.lon() <= east,
+                        "Longitude %f should be within bounds [%f, %f]".formatted(seaTemperature.lon(), west, east));
+            }
+        }
+        assertEquals(238, countTotalMeasurements, "Expected the same 238 measurements as the synchronous engine");
+    }
+
+    @Test
+    void streamSeaSurfaceTemperatures_bounding_large_binary() throws IOException, InterruptedException {
+        // given the large bounding box, and the same measurements as JSON
+        String query = "south=48.85387273165656&west=-12.980690002441408&north=56.791853873960605&east=13.386497497558596";
+        var jsonResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/weather/sea/temperature?" + query))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        List<SeaTemperature> expected = new java.util.ArrayList<>();
+        for (String sseEvent : jsonResponse.body().split("\n\n")) {
+            expected.addAll(JsonUtil.fromJsonArray(sseEvent.substring(6), SeaTemperature.class));
+        }
+        assertEquals(238, expected.size());
+
+        // when the sea surface temperatures are requested as binary SSE events
+        var binaryResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/weather/sea/temperature?" + query + "&format=binary"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+
+        // then the events decode to the same measurements
+        assertEquals(200, binaryResponse.statusCode(), "Expected HTTP status code 200");
+        List<SeaTemperature> binary = new java.util.ArrayList<>();
+        for (String sseEvent : binaryResponse.body().split("\n\n")) {
+            assertTrue(sseEvent.startsWith("event: points\ndata: "), "Expected a points event");
+            binary.addAll(SeaTemperatureBatchEncoder.decode(Base64.getDecoder().decode(sseEvent.substring("event: points\ndata: ".length()))));
+        }
+        assertEquals(expected, binary);
+
+        // and when they are requested as a raw octet stream
+        var octetResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/weather/sea/temperature?" + query))
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        // then the length prefixed frames decode to the same measurements, ending with an empty frame
+        assertEquals(200, octetResponse.statusCode(), "Expected HTTP status code 200");
+        assertEquals("application/octet-stream", octetResponse.headers().firstValue("Content-Type").orElse(""));
+        ByteBuffer body = ByteBuffer.wrap(octetResponse.body());
+        List<SeaTemperature> octets = new java.util.ArrayList<>();
+        int frameLength;
+        while ((frameLength = (int) SeaTemperatureBatchEncoder.readVarint(body)) > 0) {
+            byte[] frame = new byte[frameLength];
+            body.get(frame);
+            octets.addAll(SeaTemperatureBatchEncoder.decode(frame));
+        }
+        assertFalse(body.hasRemaining(), "Expected nothing after the end of stream frame");
+        assertEquals(expected, octets);
+    }
+
     @Test
     void streamSeaSurfaceTemperatures_bounding_earth() throws IOException, InterruptedException {
         // given a bounding box that covers earth
@@ -212,13 +338,13 @@ public class WeatherApiStreamSeedDataTest {
         assertNotNull(body, "Response body should not be null");
         String[] sseEvents = body.split("\n\n");
 
-        assertEquals(63, sseEvents.length, "Expected 63 SSE events in the response");
         int countTotalMeasurements = 0;
         for (String sseEvent : sseEvents) {
             if (sseEvent.startsWith("data: ")) {
                 sseEvent = sseEvent.substring(6);
             }
             List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+            assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
             for (SeaTemperature seaTemperature : seaTemperatures) {
                 countTotalMeasurements++;
 
@@ -272,7 +398,9 @@ public class WeatherApiStreamSeedDataTest {
         // Wait a bit to allow the server to attempt writing and hit the broken pipe
         TimeUnit.MILLISECONDS.sleep(250);
 
-        assertEquals(SeaTemperatureService.batch_size, seaTemperatures.size());
+        // the first event is sent once it reaches the initial size, or sooner if the stream waits on MongoDB first
+        assertFalse(seaTemperatures.isEmpty());
+        assertTrue(seaTemperatures.size() <= SeaTemperatureService.initial_batch_size);
     }
 
     private static final Logger clientLogger = LoggerFactory.getLogger("ClientTestLog");
@@ -347,6 +475,7 @@ public class WeatherApiStreamSeedDataTest {
 
                                         String sseEvent = line.substring(6);
                                         List<SeaTemperature> seaTemperatures = JsonUtil.fromJsonArray(sseEvent, SeaTemperature.class);
+                                        assertTrue(seaTemperatures.size() <= max_event_size, "Expected events of at most %d points".formatted(max_event_size));
                                         allSeaTemperatures.addAll(seaTemperatures);
 
                                         // Odd threads disconnect after first batch
@@ -408,9 +537,9 @@ public class WeatherApiStreamSeedDataTest {
                     assertEquals(expectedTotal, actual.size(), "Thread " + i + " should have all sea temperatures");
                     assertEquals(expectedAll, actual, "Thread " + i + " should have the same sea temperatures as expected");
                 } else {
-                    // Odd threads: should have only the first batch
-                    assertEquals(expectedBatchSize, actual.size(), "Thread " + i + " should have only the first batch");
-                    assertEquals(expectedFirstBatch, actual, "Thread " + i + " should have the same first batch as expected");
+                    // Odd threads: should have only the first batch (which is smaller if it was sent while waiting on MongoDB)
+                    assertTrue(!actual.isEmpty() && actual.size() <= expectedBatchSize, "Thread " + i + " should have only the first batch");
+                    assertEquals(expectedAll.subList(0, actual.size()), actual, "Thread " + i + " should have the start of the sea temperatures as expected");
                 }
             }
         }
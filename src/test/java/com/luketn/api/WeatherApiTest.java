@@ -8,6 +8,7 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -26,7 +27,9 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import static com.luketn.dataaccess.mongodb.MongoDBProvider.createClientSettings;
 import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
@@ -43,6 +46,13 @@ public class WeatherApiTest {
     static void configureProperties(DynamicPropertyRegistry registry) {
         registry.add("mongodb-schema.dataaccess.mongodb.connection-string", mongoDBContainer::getConnectionString);
         registry.add("mongodb-schema.dataaccess.mongodb.database-name", ()->"testdb");
+        // each test replaces the collection, so count it on every request
+        registry.add("mongodb-schema.dataaccess.mongodb.report-count.accuracy", ()->"EXACT");
+        registry.add("mongodb-schema.dataaccess.mongodb.report-count.time-to-live", ()->"0s");
+        // and reuses report ids, which the report cache would only see invalidated once the change stream catches up
+        registry.add("mongodb-schema.dataaccess.mongodb.report-cache.enabled", ()->"false");
+        // the sea temperature tests expect every report, not the pre-aggregated grid
+        registry.add("mongodb-schema.seatemperature.grid.enabled", ()->"false");
     }
 
     @LocalServerPort
@@ -112,6 +122,141 @@ public class WeatherApiTest {
         ), fetchedReportList);
     }
 
+    @Test
+    void listReports_keysetPages() throws IOException, InterruptedException {
+        // given
+        List<WeatherReport> testReports = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            testReports.add(createTestReport(new ObjectId().toHexString(), "2025-07-31T11:56:54.859Z", 151.2 + i * 0.001, -33.8688, 20.0 + i, 10.0 + i));
+        }
+        testDatabase.getCollection(COLLECTION_NAME, WeatherReport.class).insertMany(testReports);
+
+        // when
+        List<WeatherReportSummaryList> pages = new ArrayList<>();
+        String after = null;
+        do {
+            var request = HttpRequest.newBuilder()
+                    .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/list" + (after == null ? "" : "?after=" + after)))
+                    .GET()
+                    .build();
+            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+            WeatherReportSummaryList page = JsonUtil.fromJson(response.body(), WeatherReportSummaryList.class);
+            pages.add(page);
+            after = page.nextPageToken();
+        } while (after != null);
+
+        // then
+        assertEquals(3, pages.size());
+        assertEquals(List.of(10, 10, 5), pages.stream().map(page -> page.reports().size()).toList());
+        assertEquals(testReports.stream().map(WeatherReport::id).toList(),
+                pages.stream().flatMap(page -> page.reports().stream()).map(WeatherReportSummary::id).toList());
+        assertEquals(3, pages.getLast().totalPages());
+    }
+
+    @Test
+    void listReports_exactlyFullLastPage() throws IOException, InterruptedException {
+        // given exactly two pages of reports
+        List<WeatherReport> testReports = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            testReports.add(createTestReport(new ObjectId().toHexString(), "2025-07-31T11:56:54.859Z", 151.2 + i * 0.001, -33.8688, 20.0 + i, 10.0 + i));
+        }
+        testDatabase.getCollection(COLLECTION_NAME, WeatherReport.class).insertMany(testReports);
+
+        // when the second page is listed, by number and after the first page's token
+        WeatherReportSummaryList firstPage = JsonUtil.fromJson(client.send(HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/list"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString()).body(), WeatherReportSummaryList.class);
+        WeatherReportSummaryList byNumber = JsonUtil.fromJson(client.send(HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/list?page=1"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString()).body(), WeatherReportSummaryList.class);
+        WeatherReportSummaryList byToken = JsonUtil.fromJson(client.send(HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/list?after=" + firstPage.nextPageToken()))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString()).body(), WeatherReportSummaryList.class);
+
+        // then both are full, and neither has a token for a following page
+        assertEquals(10, byNumber.reports().size());
+        assertNull(byNumber.nextPageToken());
+        assertEquals(byNumber.reports(), byToken.reports());
+        assertNull(byToken.nextPageToken());
+    }
+
+    @Test
+    void listReports_invalidPageToken() throws IOException, InterruptedException {
+        // when
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/list?after=not-a-token"))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then
+        assertEquals(400, response.statusCode(), "Expected HTTP status code 400");
+    }
+
+    private record ReportBatch(List<WeatherReport> reports, List<String> missing) {}
+
+    @Test
+    void getReports_batch() throws IOException, InterruptedException {
+        // given two reports, and an id with no report
+        WeatherReport testReport1 = createTestReport("688b5a0628ebb91a42ce2977", "2025-07-31T11:56:54.857Z", 151.2091, -33.8688, 23.0, 10.0);
+        WeatherReport testReport2 = createTestReport("688b5a0628ebb91a42ce2978", "2025-07-31T11:56:54.858Z", 151.2092, -33.8688, 24.0, 11.0);
+        testDatabase.getCollection(COLLECTION_NAME, WeatherReport.class).insertMany(List.of(testReport1, testReport2));
+        String missingId = "688b5a0628ebb91a42ce2999";
+
+        // when they are looked up together
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/batch?ids=" + testReport2.id() + "," + missingId + "," + testReport1.id()))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then both reports are returned, and the missing id reported
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        ReportBatch batch = JsonUtil.fromJson(response.body(), ReportBatch.class);
+        assertEquals(Set.of(testReport1, testReport2), Set.copyOf(batch.reports()));
+        assertEquals(List.of(missingId), batch.missing());
+    }
+
+    @Test
+    void getReports_ndjson() throws IOException, InterruptedException {
+        // given a report
+        WeatherReport testReport = createTestReport("688b5a0628ebb91a42ce2979", "2025-07-31T11:56:54.859Z", 151.2093, -33.8688, 25.0, 15.0);
+        testDatabase.getCollection(COLLECTION_NAME, WeatherReport.class).insertOne(testReport);
+
+        // when it is looked up as newline delimited JSON
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/batch?ids=" + testReport.id()))
+                .header("Accept", "application/x-ndjson")
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then there is a line for the report, and a final line of missing ids
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        assertEquals("application/x-ndjson;charset=UTF-8", response.headers().firstValue("Content-Type").orElseThrow().replace(" ", ""));
+        List<String> lines = response.body().lines().toList();
+        assertEquals(2, lines.size());
+        assertEquals(testReport, JsonUtil.fromJson(lines.get(0), WeatherReport.class));
+        assertEquals("{\"missing\":[]}", lines.get(1));
+    }
+
+    @Test
+    void getReports_invalidId() throws IOException, InterruptedException {
+        // when
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report/batch?ids=688b5a0628ebb91a42ce2979,not-an-id"))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then
+        assertEquals(400, response.statusCode(), "Expected HTTP status code 400");
+    }
+
     @Test
     void getFullReport() throws IOException, InterruptedException {
         // given
@@ -132,6 +277,37 @@ public class WeatherApiTest {
         assertEquals(fullReport, fetchedReport);
     }
 
+    @Test
+    void getReport_sparseFields() throws IOException, InterruptedException {
+        // given
+        WeatherReport fullReport = createFullReport();
+        testDatabase.getCollection(COLLECTION_NAME, WeatherReport.class).insertOne(fullReport);
+
+        // when only some fields are asked for
+        var request = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report?id=" + fullReport.id() + "&fields=ts,position,airTemperature"))
+                .GET()
+                .build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        // then only those fields and the id are returned
+        assertEquals(200, response.statusCode(), "Expected HTTP status code 200");
+        WeatherReport fetchedReport = JsonUtil.fromJson(response.body(), WeatherReport.class);
+        assertEquals(new WeatherReport(fullReport.id(), null, fullReport.ts(), fullReport.position(),
+                null, null, null, null, null, fullReport.airTemperature(),
+                null, null, null, null, null, null, null, null, null), fetchedReport);
+
+        // when an unknown field is asked for
+        var invalidRequest = HttpRequest.newBuilder()
+                .uri(java.net.URI.create("http://localhost:" + port + "/weather/report?id=" + fullReport.id() + "&fields=ts,windSpeed"))
+                .GET()
+                .build();
+        var invalidResponse = client.send(invalidRequest, HttpResponse.BodyHandlers.ofString());
+
+        // then
+        assertEquals(400, invalidResponse.statusCode(), "Expected HTTP status code 400");
+    }
+
     private static @NotNull WeatherReport createTestReport(String reportId, String isoDate, double longitude, double latitude, double airTemperatureDegreesCelcius, double seaTemperatureDegreesCelcius) {
         return new WeatherReport(reportId, "Test Report",
                 Instant.parse(isoDate),
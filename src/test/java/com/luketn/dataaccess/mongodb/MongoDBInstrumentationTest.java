@@ -0,0 +1,47 @@
+package com.luketn.dataaccess.mongodb;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MongoDBInstrumentationTest {
+
+    @Test
+    void filterShape_replacesValues() {
+        // given a sea temperature range filter
+        BsonDocument filter = BsonDocument.parse("{'position.coordinates.0': {$gte: -12.98, $lte: 13.38}, 'seaSurfaceTemperature.value': {$ne: 999.9}, st: {$in: ['x+48900-003700', 'x+48900-003800']}}");
+
+        // when its shape is taken
+        String shape = MongoDBInstrumentation.filterShape(filter);
+
+        // then the field names and operators remain, but none of the values
+        assertEquals("{\"position.coordinates.0\": {\"$gte\": ?, \"$lte\": ?}, \"seaSurfaceTemperature.value\": {\"$ne\": ?}, \"st\": {\"$in\": ?}}", shape);
+    }
+
+    @Test
+    void filterShape_keepsPipelineStages() {
+        // given an aggregation pipeline with an $or
+        BsonDocument command = BsonDocument.parse("{pipeline: [{$match: {$or: [{a: 1}, {b: 'secret'}]}}, {$group: {_id: '$position', t: {$first: '$seaSurfaceTemperature'}}}]}");
+
+        // when its shape is taken
+        String shape = MongoDBInstrumentation.filterShape(command.get("pipeline"));
+
+        // then each stage and clause remains, with its values replaced
+        assertEquals("[{\"$match\": {\"$or\": [{\"a\": ?}, {\"b\": ?}]}}, {\"$group\": {\"_id\": ?, \"t\": {\"$first\": ?}}}]", shape);
+        assertFalse(shape.contains("secret"));
+    }
+
+    @Test
+    void copy_keepsTheFilterForItsShape() {
+        // given an aggregate command, as the driver passes it to the started event
+        BsonDocument command = BsonDocument.parse("{aggregate: 'seaTemperature', pipeline: [{$match: {$or: [{a: 1}, {b: 'secret'}]}}], cursor: {}}");
+
+        // when it is copied, and the shape of the copy's pipeline is taken
+        String shape = MongoDBInstrumentation.filterShape(MongoDBInstrumentation.copy(command).get("pipeline"));
+
+        // then it is the shape of the original's
+        assertEquals(MongoDBInstrumentation.filterShape(command.get("pipeline")), shape);
+        assertEquals("[{\"$match\": {\"$or\": [{\"a\": ?}, {\"b\": ?}]}}]", shape);
+    }
+}
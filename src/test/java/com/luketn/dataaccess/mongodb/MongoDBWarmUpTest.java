@@ -0,0 +1,47 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.datamodel.mongodb.WeatherReportSummary;
+import com.luketn.datamodel.mongodb.WeatherReportSummaryList;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class MongoDBWarmUpTest {
+    private final MongoDBProvider mongoDBProvider = mock(MongoDBProvider.class);
+    private final WeatherDataAccess weatherDataAccess = mock(WeatherDataAccess.class);
+
+    @Test
+    void run_connectsThenRunsEachQuery() throws Exception {
+        // given a warm-up of three iterations, and a first page with a following page
+        when(weatherDataAccess.listReports(0)).thenReturn(new WeatherReportSummaryList(
+                List.of(new WeatherReportSummary("5553a998e4b02cf7151190ba", null, null, null)), 0, 2, "token"));
+        MongoDBWarmUp warmUp = new MongoDBWarmUp(mongoDBProvider, weatherDataAccess, true, 3, Duration.ofSeconds(10));
+
+        // when it runs
+        warmUp.run(null);
+
+        // then it connects, and runs every query (each sea temperature strategy) every iteration
+        verify(mongoDBProvider).connect();
+        verify(weatherDataAccess, times(3)).listReports(0);
+        verify(weatherDataAccess, times(3)).listReportsAfter("token");
+        verify(weatherDataAccess, times(3)).getReport("5553a998e4b02cf7151190ba");
+        int strategies = SeaTemperatureQueryMode.values().length * SeaTemperatureDedupMode.values().length;
+        verify(weatherDataAccess, times(3 * strategies)).streamSeaTemperatures(any(), any(SeaTemperatureQueryOptions.class), any());
+    }
+
+    @Test
+    void run_failureIsLoggedNotThrown() throws Exception {
+        // given MongoDB is unavailable
+        when(mongoDBProvider.connect()).thenThrow(new RuntimeException("Simulated connection failure"));
+        MongoDBWarmUp warmUp = new MongoDBWarmUp(mongoDBProvider, weatherDataAccess, true, 3, Duration.ofSeconds(10));
+
+        // when it runs, then the application still starts, without any queries being attempted
+        warmUp.run(null);
+        verify(weatherDataAccess, never()).listReports(eq(0));
+    }
+}
@@ -0,0 +1,122 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.luketn.datamodel.mongodb.WeatherReport;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ReportCacheTest {
+    private static final String id = "688b5a0628ebb91a42ce2979";
+
+    private final WeatherDataAccess weatherDataAccess = mock(WeatherDataAccess.class);
+    private final ReportCache reportCache = new ReportCache(weatherDataAccess, mock(MongoDBProvider.class),
+            new ObjectMapper().registerModule(new JavaTimeModule()).disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS),
+            true, 100, Duration.ofMinutes(10), Duration.ofMinutes(1), Duration.ofSeconds(30));
+
+    private static WeatherReport report(String st) {
+        return new WeatherReport(id, st, Instant.parse("2025-07-31T11:56:54.859Z"), null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null);
+    }
+
+    private String getReport() {
+        byte[] json = reportCache.getReportJson(id);
+        return json == null ? null : new String(json, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void getReportJson_servesRepeatsFromTheCacheUntilInvalidated() {
+        // given a report
+        when(weatherDataAccess.getReport(id)).thenReturn(report("first"), report("second"));
+
+        // when it is fetched twice
+        String first = getReport();
+        String repeat = getReport();
+
+        // then it is queried once, and served as JSON
+        assertEquals(first, repeat);
+        assertTrue(first.contains("\"st\":\"first\""), first);
+        assertTrue(first.contains("\"ts\":\"2025-07-31T11:56:54.859Z\""), first);
+        verify(weatherDataAccess, times(1)).getReport(id);
+
+        // and once it changes, the next fetch queries it again
+        reportCache.invalidate(id);
+        assertTrue(getReport().contains("\"st\":\"second\""));
+        verify(weatherDataAccess, times(2)).getReport(id);
+        ReportCache.ReportCacheStats stats = reportCache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+    }
+
+    @Test
+    void getReportJson_missingReportIsNotCached() {
+        // given no report with the id
+        when(weatherDataAccess.getReport(id)).thenReturn(null);
+
+        // when it is fetched twice, then each fetch queries for it
+        assertNull(getReport());
+        assertNull(getReport());
+        verify(weatherDataAccess, times(2)).getReport(id);
+    }
+
+    @Test
+    void getCachedReportJson_countsOnlyHits() {
+        // given a cached report
+        when(weatherDataAccess.getReport(id)).thenReturn(report("first"));
+        getReport();
+
+        // when it and an uncached report are looked up without loading them
+        assertNotNull(reportCache.getCachedReportJson(id));
+        assertNull(reportCache.getCachedReportJson("688b5a0628ebb91a42ce2999"));
+
+        // then only the hit is counted, alongside the miss which loaded the report
+        ReportCache.ReportCacheStats stats = reportCache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void getReportJson_concurrentMissesShareOneQuery() throws Exception {
+        // given a slow query
+        CountDownLatch queried = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(weatherDataAccess.getReport(id)).thenAnswer(_ -> {
+            queried.countDown();
+            release.await();
+            return report("first");
+        });
+
+        // when many requests miss at once
+        List<Future<String>> responses = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            responses.add(executor.submit(this::getReport));
+            queried.await();
+            for (int i = 0; i < 9; i++) {
+                responses.add(executor.submit(this::getReport));
+            }
+            while (reportCache.stats().misses() < 10) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+        }
+
+        // then they all get the report, from a single query
+        for (Future<String> response : responses) {
+            assertTrue(response.get().contains("\"st\":\"first\""));
+        }
+        verify(weatherDataAccess, times(1)).getReport(id);
+    }
+}
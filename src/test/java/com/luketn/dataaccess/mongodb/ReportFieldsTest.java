@@ -0,0 +1,35 @@
+package com.luketn.dataaccess.mongodb;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportFieldsTest {
+
+    @Test
+    void of_projectsTheFieldsAndTheId() {
+        // when
+        ReportFields fields = ReportFields.of(List.of("ts", " position", "airTemperature", "id", "ts"));
+
+        // then
+        assertEquals(Set.of("ts", "position", "airTemperature", "id"), fields.names());
+        assertEquals(new Document("_id", 1).append("ts", 1).append("position", 1).append("airTemperature", 1), fields.projection());
+    }
+
+    @Test
+    void of_rejectsUnknownOrNoFields() {
+        // when a field is not a component of WeatherReport (including the stored name of the id, and nested paths)
+        IllegalArgumentException unknown = assertThrows(IllegalArgumentException.class, () -> ReportFields.of(List.of("ts", "_id", "wind.speed")));
+
+        // then
+        assertTrue(unknown.getMessage().startsWith("Unknown report fields: _id, wind.speed."), unknown.getMessage());
+
+        // when no fields are given
+        assertThrows(IllegalArgumentException.class, () -> ReportFields.of(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> ReportFields.of(List.of("")));
+    }
+}
@@ -0,0 +1,98 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import static com.luketn.dataaccess.mongodb.SeaTemperatureGrid.GRID_COLLECTION_NAME;
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SeaTemperatureGridTest {
+
+    @Test
+    void levelFor_choosesTheFinestLevelWithinTheMaximumCells() {
+        // a continent is covered in 0.5 degree cells, the earth only in 8 degree cells
+        assertEquals(0, SeaTemperatureGrid.levelFor(new BoundingBox(-45.0, -10.0, 110.0, 155.0), 10_000));
+        assertEquals(1, SeaTemperatureGrid.levelFor(new BoundingBox(-60.0, 60.0, -90.0, 90.0), 10_000));
+        assertEquals(2, SeaTemperatureGrid.levelFor(new BoundingBox(-90.0, 90.0, -180.0, 180.0), 10_000));
+        // the coarsest level is used however few cells are allowed
+        assertEquals(2, SeaTemperatureGrid.levelFor(new BoundingBox(-90.0, 90.0, -180.0, 180.0), 1));
+    }
+
+    @Test
+    void serves_nothingUntilBuilt() {
+        // given a grid which has not been built
+        SeaTemperatureGrid grid = new SeaTemperatureGrid(null, true, false, Duration.ofMinutes(5), 20, 10_000);
+
+        // then no viewport is served from it
+        assertFalse(grid.serves(new BoundingBox(-90.0, 90.0, -180.0, 180.0)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void refresh_afterAPartialMergeFinishesTheSameWindow() {
+        // given reports through t1, and a merge which fails part way through
+        Instant t1 = Instant.parse("2025-01-01T00:00:00Z");
+        Instant t2 = Instant.parse("2025-01-02T00:00:00Z");
+        MongoCollection<Document> reports = mock(MongoCollection.class);
+        FindIterable<Document> latest = mock(FindIterable.class, RETURNS_SELF);
+        when(reports.find()).thenReturn(latest);
+        when(latest.first()).thenReturn(new Document("ts", Date.from(t1)));
+        AggregateIterable<Document> merge = mock(AggregateIterable.class, RETURNS_SELF);
+        when(reports.aggregate(anyList())).thenReturn(merge);
+        doThrow(new MongoException("interrupted")).doNothing().when(merge).toCollection();
+
+        MongoCollection<Document> gridCollection = mock(MongoCollection.class);
+        FindIterable<Document> state = mock(FindIterable.class);
+        when(gridCollection.find(any(Bson.class))).thenReturn(state);
+        when(state.first()).thenReturn(null);
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(database.getCollection(COLLECTION_NAME)).thenReturn(reports);
+        when(database.getCollection(GRID_COLLECTION_NAME)).thenReturn(gridCollection);
+        MongoDBProvider mongoDBProvider = mock(MongoDBProvider.class);
+        when(mongoDBProvider.getMongoDatabase()).thenReturn(database);
+        SeaTemperatureGrid grid = new SeaTemperatureGrid(mongoDBProvider, true, true, Duration.ofMinutes(5), 20, 10_000);
+
+        // when the first run fails, leaving t1 pending, and more reports arrive through t2 before the retry
+        assertThrows(MongoException.class, grid::refresh);
+        ArgumentCaptor<Bson> updates = ArgumentCaptor.forClass(Bson.class);
+        verify(gridCollection).updateOne(any(Bson.class), updates.capture(), any());
+        assertEquals(new Document("$set", new Document("pending", Date.from(t1))), updates.getValue());
+        when(state.first()).thenReturn(new Document("_id", "watermark").append("pending", Date.from(t1)));
+        when(latest.first()).thenReturn(new Document("ts", Date.from(t2)));
+        grid.refresh();
+
+        // then the retry merges the same window through t1 (whose merged cells are skipped), rather than a wider one
+        ArgumentCaptor<List<Bson>> pipelines = ArgumentCaptor.forClass(List.class);
+        verify(reports, times(2)).aggregate(pipelines.capture());
+        assertEquals(render(SeaTemperatureGrid.mergePipeline(null, t1)), render(pipelines.getAllValues().get(1)));
+        verify(reports, times(1)).find();
+        // and t1 becomes the watermark, no longer pending
+        verify(gridCollection, times(2)).updateOne(any(Bson.class), updates.capture(), any());
+        assertEquals(new Document("$set", new Document("through", Date.from(t1))).append("$unset", new Document("pending", "")), updates.getValue());
+        assertEquals(t1, grid.stats().watermark());
+        assertEquals(1, grid.stats().runs());
+        assertEquals(1, grid.stats().failedRuns());
+    }
+
+    private static List<BsonDocument> render(List<Bson> pipeline) {
+        return pipeline.stream().map(stage -> stage.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry())).toList();
+    }
+}
@@ -0,0 +1,56 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.luketn.datamodel.mongodb.SeaTemperatureReading;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.codecs.DecoderContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeaTemperatureReadingCodecTest {
+    private final SeaTemperatureReadingCodec codec = new SeaTemperatureReadingCodec();
+
+    private SeaTemperatureReading decode(String json) {
+        return codec.decode(new BsonDocumentReader(BsonDocument.parse(json)), DecoderContext.builder().build());
+    }
+
+    @Test
+    void decode_projectedDocument() {
+        // given a document shaped like the sea temperature projection
+        String json = "{position: {coordinates: [3.6, 51.9]}, seaSurfaceTemperature: {value: 4.5}}";
+
+        // when decoded
+        SeaTemperatureReading reading = decode(json);
+
+        // then the primitives are read directly
+        assertEquals(new SeaTemperatureReading(3.6, 51.9, 4.5), reading);
+        assertTrue(reading.hasPosition());
+        assertTrue(reading.hasSeaSurfaceTemperature());
+    }
+
+    @Test
+    void decode_integerValuesAndExtraFields() {
+        // given a full document with integer coordinates and fields outside the projection
+        String json = "{_id: {$oid: '5553a998e4b02cf7151190ba'}, st: 'x+48900-003700', position: {type: 'Point', coordinates: [3, {$numberLong: '51'}]}, airTemperature: {value: 4.4, quality: '1'}, seaSurfaceTemperature: {value: {$numberDecimal: '4.5'}, quality: '9'}}";
+
+        // when decoded
+        SeaTemperatureReading reading = decode(json);
+
+        // then numeric types are widened and other fields are skipped
+        assertEquals(new SeaTemperatureReading(3, 51, 4.5), reading);
+    }
+
+    @Test
+    void decode_missingSeaSurfaceTemperature() {
+        // given a report without a sea surface temperature
+        String json = "{position: {coordinates: [1.5, 59.5]}}";
+
+        // when decoded
+        SeaTemperatureReading reading = decode(json);
+
+        // then the temperature is absent
+        assertTrue(reading.hasPosition());
+        assertFalse(reading.hasSeaSurfaceTemperature());
+    }
+}
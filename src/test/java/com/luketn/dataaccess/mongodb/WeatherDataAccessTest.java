@@ -0,0 +1,223 @@
+package com.luketn.dataaccess.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.testsupport.SeedDataMongoDB;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the sea temperature query strategies of WeatherDataAccess against the seed data.
+ */
+@Testcontainers
+public class WeatherDataAccessTest {
+    private static final Logger log = LoggerFactory.getLogger(WeatherDataAccessTest.class);
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = SeedDataMongoDB.container();
+
+    private static final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private static MongoDBProvider mongoDBProvider;
+    private static WeatherDataAccess weatherDataAccess;
+
+    @BeforeAll
+    static void init() throws IOException, InterruptedException {
+        SeedDataMongoDB.importSeedData(mongoDBContainer);
+        mongoDBProvider = new MongoDBProvider(mongoDBContainer.getConnectionString(), SeedDataMongoDB.database_name, new MongoDBInstrumentation(meterRegistry, Duration.ofMillis(100), 1.0), 0);
+        weatherDataAccess = new WeatherDataAccess(mongoDBProvider, new ReportCountCache(mongoDBProvider, ReportCountAccuracy.EXACT, Duration.ZERO), 500, SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM);
+        weatherDataAccess.createIndexes();
+    }
+
+    private static final BoundingBox earth = new BoundingBox(-90.0, 90.0, -180.0, 180.0);
+    private static final BoundingBox large = new BoundingBox(48.85387273165656, 56.791853873960605, -12.980690002441408, 13.386497497558596);
+
+    private record Coordinates(double longitude, double latitude) {}
+
+    private static List<Coordinates> stream(BoundingBox boundingBox, SeaTemperatureQueryOptions options) {
+        List<Coordinates> coordinates = new ArrayList<>();
+        weatherDataAccess.streamSeaTemperatures(boundingBox, options, (longitude, latitude, _) -> coordinates.add(new Coordinates(longitude, latitude)));
+        return coordinates;
+    }
+
+    @Test
+    void serverDedup_returnsOnlyTheUniqueCoordinates() {
+        // given all readings streamed with JVM dedup (i.e. every reading, duplicates included)
+        List<Coordinates> allReadings = stream(earth, new SeaTemperatureQueryOptions(null, SeaTemperatureDedupMode.JVM));
+
+        // when the readings are streamed with server-side dedup
+        List<Coordinates> serverUnique = stream(earth, new SeaTemperatureQueryOptions(null, SeaTemperatureDedupMode.SERVER));
+
+        // then the server sends exactly the unique coordinates, once each
+        Set<Coordinates> expectedUnique = new HashSet<>(allReadings);
+        assertEquals(624, expectedUnique.size());
+        assertEquals(expectedUnique.size(), serverUnique.size(), "Server dedup should send each coordinate once");
+        assertEquals(expectedUnique, new HashSet<>(serverUnique));
+        assertTrue(allReadings.size() > serverUnique.size(), "Seed data has duplicate coordinates");
+    }
+
+    @Test
+    void explain_serverDedupReturnsFewerDocuments() {
+        // when both dedup strategies are explained
+        Document jvmExplain = weatherDataAccess.explainSeaTemperatures(large, new SeaTemperatureQueryOptions(null, SeaTemperatureDedupMode.JVM));
+        Document serverExplain = weatherDataAccess.explainSeaTemperatures(large, new SeaTemperatureQueryOptions(null, SeaTemperatureDedupMode.SERVER));
+        log.info("JVM dedup explain: {}", jvmExplain.toJson());
+        log.info("Server dedup explain: {}", serverExplain.toJson());
+
+        // then the server-side dedup returns only the unique points to the client
+        int jvmReturned = documentsReturned(jvmExplain);
+        int serverReturned = documentsReturned(serverExplain);
+        log.info("Documents returned to the client: JVM dedup {}, server dedup {}", jvmReturned, serverReturned);
+        assertEquals(238, serverReturned);
+        assertTrue(jvmReturned > serverReturned, "Expected JVM dedup (%d) to return more documents than server dedup (%d)".formatted(jvmReturned, serverReturned));
+    }
+
+    @Test
+    void geoWithin_matchesRange() {
+        // when the large bounding box is streamed with both query modes
+        List<Coordinates> range = stream(large, new SeaTemperatureQueryOptions(SeaTemperatureQueryMode.RANGE, null));
+        List<Coordinates> geoWithin = stream(large, new SeaTemperatureQueryOptions(SeaTemperatureQueryMode.GEO_WITHIN, null));
+
+        // then the same readings are returned
+        assertEquals(new HashSet<>(range), new HashSet<>(geoWithin));
+        assertEquals(range.size(), geoWithin.size());
+    }
+
+    @Test
+    void instrumentation_timesCommandsByCollectionAndPoolCheckouts() {
+        // when the readings are streamed
+        stream(large, new SeaTemperatureQueryOptions(SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM));
+
+        // then the commands are timed by command and collection, and the connection checkouts by pool
+        Timer finds = meterRegistry.find("mongodb.driver.commands").tag("command", "find").tag("collection", COLLECTION_NAME).timer();
+        assertNotNull(finds, "Expected find commands timed for the collection");
+        assertTrue(finds.count() > 0);
+        Timer checkouts = meterRegistry.find("mongodb.driver.pool.checkout").tag("status", "SUCCESS").timer();
+        assertNotNull(checkouts, "Expected connection checkouts timed");
+        assertTrue(checkouts.count() > 0);
+        assertNotNull(meterRegistry.find("mongodb.driver.pool.saturation").gauge(), "Expected the pool saturation");
+    }
+
+    @Test
+    void reportCache_invalidatedByChangeStream() throws InterruptedException {
+        // given a cached report, with the change stream open (the test container is a single node replica set)
+        ReportCache reportCache = new ReportCache(weatherDataAccess, mongoDBProvider, new ObjectMapper().registerModule(new JavaTimeModule()),
+                true, 100, Duration.ofMinutes(10), Duration.ofMinutes(10), Duration.ofSeconds(1));
+        reportCache.startWatching();
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!reportCache.stats().changeStreamOpen() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(reportCache.stats().changeStreamOpen(), "Expected the change stream to open");
+            MongoCollection<Document> collection = mongoDBProvider.getMongoDatabase().getCollection(COLLECTION_NAME);
+            String id = collection.find().first().getObjectId("_id").toHexString();
+            String cached = new String(reportCache.getReportJson(id), StandardCharsets.UTF_8);
+            assertEquals(cached, new String(reportCache.getReportJson(id), StandardCharsets.UTF_8));
+            assertEquals(1, reportCache.stats().hits());
+
+            // when the report is updated
+            collection.updateOne(new Document("_id", new ObjectId(id)), new Document("$set", new Document("callLetters", "CACHE")));
+
+            // then the cache soon serves the updated report
+            String updated = cached;
+            while (updated.equals(cached) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                updated = new String(reportCache.getReportJson(id), StandardCharsets.UTF_8);
+            }
+            assertTrue(updated.contains("\"callLetters\":\"CACHE\""), updated);
+        } finally {
+            reportCache.close();
+        }
+    }
+
+    @Test
+    void seaTemperatureGrid_mergesEachReportOnce() {
+        // given the seed data in a database of its own, so reports can be added without affecting the other tests
+        mongoDBProvider.getMongoDatabase().getCollection(COLLECTION_NAME)
+                .aggregate(List.of(new Document("$out", new Document("db", "griddb").append("coll", COLLECTION_NAME))))
+                .toCollection();
+        MongoDBProvider gridProvider = new MongoDBProvider(mongoDBContainer.getConnectionString(), "griddb", new MongoDBInstrumentation(new SimpleMeterRegistry(), Duration.ofMillis(100), 1.0), 0);
+        MongoCollection<Document> reports = gridProvider.getMongoDatabase().getCollection(COLLECTION_NAME);
+        SeaTemperatureGrid grid = new SeaTemperatureGrid(gridProvider, true, true, Duration.ofMinutes(5), 20, 10_000);
+        long readings = reports.countDocuments(Filters.and(Filters.ne("seaSurfaceTemperature.value", null), Filters.exists("position.coordinates.1")));
+
+        // when the grid is built
+        grid.refresh();
+
+        // then every level counts each reading once, and the whole earth is served from it
+        for (int level = 0; level < 3; level++) {
+            assertEquals(readings, gridReadings(gridProvider, level));
+        }
+        assertTrue(grid.serves(earth));
+        List<Coordinates> cells = new ArrayList<>();
+        grid.streamSeaTemperatures(earth, (longitude, latitude, _) -> cells.add(new Coordinates(longitude, latitude)));
+        assertFalse(cells.isEmpty());
+        assertEquals(cells.size(), new HashSet<>(cells).size(), "Expected a point per cell");
+
+        // when a later report is added, and the grid refreshed twice
+        Instant built = grid.stats().watermark();
+        reports.insertOne(new Document("ts", Date.from(built.plusSeconds(3600)))
+                .append("position", new Document("type", "Point").append("coordinates", List.of(-170.0, -60.0)))
+                .append("seaSurfaceTemperature", new Document("value", 1.5).append("quality", "1")));
+        grid.refresh();
+        grid.refresh();
+
+        // then only the new report is merged
+        assertEquals(readings + 1, gridReadings(gridProvider, 2));
+        assertEquals(2, grid.stats().runs());
+
+        // when the last window is merged again, as if the run had failed before saving the watermark
+        reports.aggregate(SeaTemperatureGrid.mergePipeline(built, grid.stats().watermark())).toCollection();
+
+        // then its readings are not counted twice
+        assertEquals(readings + 1, gridReadings(gridProvider, 2));
+    }
+
+    private static long gridReadings(MongoDBProvider provider, int level) {
+        long total = 0;
+        for (Document cell : provider.getMongoDatabase().getCollection(SeaTemperatureGrid.GRID_COLLECTION_NAME).find(Filters.eq("_id.l", level))) {
+            total += ((Number) cell.get("count")).longValue();
+        }
+        return total;
+    }
+
+    /**
+     * nReturned of the final stage, from either a find or aggregate explain (with or without the SBE engine's pushdown).
+     */
+    private static int documentsReturned(Document explain) {
+        if (explain.containsKey("executionStats")) {
+            return explain.get("executionStats", Document.class).getInteger("nReturned");
+        }
+        List<Document> stages = explain.getList("stages", Document.class);
+        Document lastStage = stages.getLast();
+        if (lastStage.containsKey("nReturned")) {
+            return ((Number) lastStage.get("nReturned")).intValue();
+        }
+        return documentsReturned(lastStage);
+    }
+}
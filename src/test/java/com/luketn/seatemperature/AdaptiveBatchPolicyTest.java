@@ -0,0 +1,74 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.testsupport.InMemoryWeatherDataAccess;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveBatchPolicyTest {
+    private static final SeaTemperatureGrid noGrid = new SeaTemperatureGrid(null, false, false, Duration.ZERO, 0, 0);
+    private static final BoundingBox earth = new BoundingBox(-90d, 90d, -180d, 180d);
+
+    private static List<Integer> eventSizes(AdaptiveBatchPolicy batchPolicy) {
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureService service = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO), noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+        List<Integer> eventSizes = new ArrayList<>();
+        service.streamSeaTemperatures(earth, SeaTemperatureQueryOptions.DEFAULTS, seaTemperatures -> eventSizes.add(seaTemperatures.size()));
+        return eventSizes;
+    }
+
+    @Test
+    void eventSizes_growGeometricallyToTheMaximum() {
+        // given a policy starting at 10 points, doubling up to 100
+        AdaptiveBatchPolicy batchPolicy = new AdaptiveBatchPolicy(10, 100, 10, 1000, 2.0, Duration.ofHours(1));
+
+        // when every point is streamed
+        List<Integer> eventSizes = eventSizes(batchPolicy);
+
+        // then events grow, and all but the last are the full size
+        assertEquals(List.of(10, 20, 40, 80, 100, 100), eventSizes.subList(0, 6));
+        for (int size : eventSizes.subList(4, eventSizes.size() - 1)) {
+            assertEquals(100, size);
+        }
+
+        // and each decision is counted
+        AdaptiveBatchPolicy.BatchingStats stats = batchPolicy.stats();
+        assertEquals(1, stats.streams());
+        assertEquals(eventSizes.size(), stats.events());
+        assertEquals(eventSizes.stream().mapToInt(Integer::intValue).sum(), stats.eventPoints());
+        assertEquals(eventSizes.size() - 1, stats.fullEvents());
+        assertEquals(1, stats.endEvents());
+    }
+
+    @Test
+    void linger_sendsEventsBeforeTheyAreFull() {
+        // given a policy that never lets a point wait
+        AdaptiveBatchPolicy batchPolicy = new AdaptiveBatchPolicy(10, 100, 10, 1000, 2.0, Duration.ZERO);
+
+        // when every point is streamed
+        List<Integer> eventSizes = eventSizes(batchPolicy);
+
+        // then every point is sent as soon as it arrives
+        assertTrue(eventSizes.stream().allMatch(size -> size == 1));
+        assertEquals(eventSizes.size(), batchPolicy.stats().lingerEvents());
+    }
+
+    @Test
+    void fixed_keepsTheSameSize() {
+        // given a fixed policy
+        List<Integer> eventSizes = eventSizes(AdaptiveBatchPolicy.fixed(10, 10));
+
+        // then every event but the last has 10 points
+        for (int size : eventSizes.subList(0, eventSizes.size() - 1)) {
+            assertEquals(10, size);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.luketn.seatemperature;
+
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+import com.luketn.util.JsonUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoordinateSetTest {
+
+    @Test
+    void add_matchesBoxedSetSemantics() {
+        // given a set of random coordinates on a coarse grid, so there are many duplicates
+        record Coordinates(Double longitude, Double latitude) {}
+        Set<Coordinates> expected = new HashSet<>();
+        CoordinateSet coordinateSet = new CoordinateSet();
+        Random random = new Random(42);
+
+        // when every coordinate is added to both a boxed HashSet and the CoordinateSet
+        for (int i = 0; i < 100_000; i++) {
+            double longitude = Math.round(random.nextDouble(-180, 180) * 2) / 2d;
+            double latitude = Math.round(random.nextDouble(-90, 90) * 2) / 2d;
+
+            // then both agree on whether the coordinate was new
+            assertEquals(expected.add(new Coordinates(longitude, latitude)), coordinateSet.add(longitude, latitude));
+        }
+        assertEquals(expected.size(), coordinateSet.size());
+        for (Coordinates coordinates : expected) {
+            assertTrue(coordinateSet.contains(coordinates.longitude(), coordinates.latitude()));
+        }
+        assertFalse(coordinateSet.contains(0.25, 0.25));
+    }
+
+    @Test
+    void add_distinguishesSignedZero() {
+        // given a set containing 0.0, 0.0
+        CoordinateSet coordinateSet = new CoordinateSet();
+        coordinateSet.add(0.0, 0.0);
+
+        // then -0.0 is a different coordinate, as it is with Double.equals
+        assertTrue(coordinateSet.add(-0.0, 0.0));
+        assertFalse(coordinateSet.add(0.0, 0.0));
+    }
+
+    @Test
+    void seaTemperatureBatch_serializesAsList() {
+        // given a batch and the equivalent list of records
+        SeaTemperatureBatch batch = new SeaTemperatureBatch(3);
+        batch.add(1.5, 59.5, 6.3);
+        batch.add(-3.6, 51.9, 4.5);
+        List<SeaTemperature> list = List.of(new SeaTemperature(1.5, 59.5, 6.3), new SeaTemperature(-3.6, 51.9, 4.5));
+
+        // then they serialize identically
+        assertEquals(JsonUtil.toJson(list), JsonUtil.toJson(batch));
+        assertEquals(list, batch);
+    }
+}
@@ -0,0 +1,94 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.testsupport.InMemoryWeatherDataAccess;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeaTemperatureLevelOfDetailTest {
+    private static final SeaTemperatureGrid noGrid = new SeaTemperatureGrid(null, false, false, Duration.ZERO, 0, 0);
+    private static final AdaptiveBatchPolicy batchPolicy = AdaptiveBatchPolicy.fixed(SeaTemperatureService.initial_batch_size, 10);
+
+    private record Cell(long x, long y) {}
+
+    @Test
+    void streamSeaTemperatures_downsamplesOnlyOversizedViewports() {
+        // given 20,000 random readings, and at most 2,000 points a viewport
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureLevelOfDetail levelOfDetail = new SeaTemperatureLevelOfDetail(weatherDataAccess, true, 2_000);
+        SeaTemperatureService service = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO),
+                noGrid, levelOfDetail, new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+
+        // when the whole earth is streamed
+        List<SeaTemperature> points = new ArrayList<>();
+        Set<Double> resolutions = new HashSet<>();
+        service.streamSeaTemperatures(new BoundingBox(-90.0, 90.0, -180.0, 180.0), batch -> {
+            points.addAll(batch);
+            resolutions.add(batch.resolution());
+        });
+
+        // then every batch is labelled with the cell size (the earth spans 46 x 23 cells of 8 degrees), and there is at
+        // most a point per cell
+        assertEquals(Set.of(8.0), resolutions);
+        Set<Cell> cells = new HashSet<>();
+        for (SeaTemperature point : points) {
+            assertTrue(cells.add(new Cell((long) Math.floor((point.lon() + 180) / 8), (long) Math.floor((point.lat() + 90) / 8))), "Expected one point per cell");
+        }
+        assertTrue(points.size() <= 46 * 23 && points.size() > 900, "Expected most cells to have a point, got " + points.size());
+        assertEquals(1, levelOfDetail.stats().downsampledStreams());
+
+        // when a viewport with fewer readings than the maximum is streamed
+        resolutions.clear();
+        service.streamSeaTemperatures(new BoundingBox(40.0, 48.0, 0.0, 16.0), batch -> resolutions.add(batch.resolution()));
+
+        // then every point is sent
+        assertEquals(Set.of(0.0), resolutions);
+        assertEquals(1, levelOfDetail.stats().downsampledStreams());
+    }
+
+    @Test
+    void streamSeaTemperatures_countsEachViewportOnce() {
+        // given the level of detail and the parallel scan both deciding how to read a viewport by its count of readings
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureLevelOfDetail levelOfDetail = new SeaTemperatureLevelOfDetail(weatherDataAccess, true, 2_000);
+        SeaTemperatureService service = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO),
+                noGrid, levelOfDetail, new SeaTemperatureParallelScan(weatherDataAccess, true, 4, 50_000), batchPolicy, new SimpleMeterRegistry());
+        BoundingBox earth = new BoundingBox(-90.0, 90.0, -180.0, 180.0);
+
+        // when the whole earth is streamed
+        Set<Double> resolutions = new HashSet<>();
+        service.streamSeaTemperatures(earth, batch -> resolutions.add(batch.resolution()));
+
+        // then its readings are counted once for both, and it is downsampled
+        assertEquals(1, weatherDataAccess.counts.get());
+        assertEquals(Set.of(8.0), resolutions);
+
+        // when it is streamed in full detail, for a format which can't label batches with their resolution
+        List<SeaTemperature> points = new ArrayList<>();
+        service.streamFullDetailSeaTemperatures(earth, SeaTemperatureQueryOptions.DEFAULTS, points::addAll);
+
+        // then every unique point is sent
+        long unique = weatherDataAccess.readings.stream().map(reading -> List.of(reading.lon(), reading.lat())).distinct().count();
+        assertEquals(unique, points.size());
+        assertEquals(1, levelOfDetail.stats().downsampledStreams());
+    }
+
+    @Test
+    void cellSizeFor_isTheSmallestPowerOfTwoWithinTheMaximumCells() {
+        // 46 x 23 cells of 8 degrees cover the earth, where 4 degree cells would be 91 x 46
+        assertEquals(8.0, SeaTemperatureLevelOfDetail.cellSizeFor(new BoundingBox(-90.0, 90.0, -180.0, 180.0), 1_058));
+        assertEquals(4.0, SeaTemperatureLevelOfDetail.cellSizeFor(new BoundingBox(-90.0, 90.0, -180.0, 180.0), 91 * 46));
+        assertEquals(Math.scalb(1.0, -10), SeaTemperatureLevelOfDetail.cellSizeFor(new BoundingBox(0.0, 0.001, 0.0, 0.001), 10));
+    }
+}
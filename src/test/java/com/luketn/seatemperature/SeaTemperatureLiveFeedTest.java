@@ -0,0 +1,87 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.seatemperature.datamodel.SeaTemperatureBatch;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class SeaTemperatureLiveFeedTest {
+
+    private static SeaTemperatureLiveFeed liveFeed(int queueSize) {
+        // readings are published directly, so the change stream (and with it WeatherDataAccess) is never used
+        return new SeaTemperatureLiveFeed(mock(WeatherDataAccess.class), true, queueSize, SeaTemperatureOverflowPolicy.CONFLATE,
+                10, 64, Duration.ofSeconds(15), Duration.ofSeconds(30));
+    }
+
+    private static List<SeaTemperature> poll(SeaTemperatureSubscription subscription) throws InterruptedException {
+        SeaTemperatureBatch batch = new SeaTemperatureBatch(100);
+        assertTrue(subscription.poll(batch, Duration.ZERO) >= 0, "Expected the subscription to be open");
+        return List.copyOf(batch);
+    }
+
+    @Test
+    void publish_routesEachInsertToTheViewportsContainingIt() throws InterruptedException {
+        // given two small viewports sharing a corner on the edge of an index cell, and a whole earth viewport too large to index
+        SeaTemperatureLiveFeed liveFeed = liveFeed(100);
+        SeaTemperatureSubscription south = liveFeed.subscribe(new BoundingBox(0.0, 10.0, 0.0, 10.0), null);
+        SeaTemperatureSubscription north = liveFeed.subscribe(new BoundingBox(10.0, 25.0, 10.0, 25.0), null);
+        SeaTemperatureSubscription earth = liveFeed.subscribe(new BoundingBox(-90.0, 90.0, -180.0, 180.0), null);
+
+        // when readings are inserted within one, on the shared corner, and within neither small viewport
+        liveFeed.publish(2.0, 3.0, 20.0);
+        liveFeed.publish(10.0, 10.0, 21.0);
+        liveFeed.publish(-100.0, -50.0, 22.0);
+
+        // then each viewport is sent only the readings within it
+        assertEquals(List.of(new SeaTemperature(2.0, 3.0, 20.0), new SeaTemperature(10.0, 10.0, 21.0)), poll(south));
+        assertEquals(List.of(new SeaTemperature(10.0, 10.0, 21.0)), poll(north));
+        assertEquals(3, poll(earth).size());
+        assertEquals(6, liveFeed.stats().deliveries());
+
+        // and once a viewer has gone, it is sent nothing more and its poll ends
+        south.close();
+        liveFeed.publish(2.0, 3.0, 23.0);
+        assertEquals(-1, south.poll(new SeaTemperatureBatch(100), Duration.ZERO));
+        assertEquals(2, liveFeed.stats().subscribers());
+        assertEquals(List.of(new SeaTemperature(2.0, 3.0, 23.0)), poll(earth));
+    }
+
+    @Test
+    void publish_slowViewersDropOrConflateBeyondTheirQueue() throws InterruptedException {
+        // given a viewer of each overflow policy, queueing at most 3 readings and not yet taking any
+        SeaTemperatureLiveFeed liveFeed = liveFeed(3);
+        BoundingBox boundingBox = new BoundingBox(0.0, 10.0, 0.0, 10.0);
+        SeaTemperatureSubscription dropping = liveFeed.subscribe(boundingBox, SeaTemperatureOverflowPolicy.DROP);
+        SeaTemperatureSubscription conflating = liveFeed.subscribe(boundingBox, SeaTemperatureOverflowPolicy.CONFLATE);
+
+        // when 5 readings are inserted at one point
+        for (int temperature = 1; temperature <= 5; temperature++) {
+            liveFeed.publish(1.0, 1.0, temperature);
+        }
+
+        // then the dropping viewer gets the first 3 and is told 2 were dropped
+        assertEquals(List.of(1.0, 2.0, 3.0), poll(dropping).stream().map(SeaTemperature::temp).toList());
+        assertEquals(2, dropping.takeDropped());
+        assertEquals(0, dropping.takeDropped());
+        // and the conflating viewer gets only the latest
+        assertEquals(List.of(new SeaTemperature(1.0, 1.0, 5.0)), poll(conflating));
+        assertEquals(0, conflating.takeDropped());
+
+        // when readings are inserted at more points than the conflating viewer can queue
+        for (int point = 1; point <= 4; point++) {
+            liveFeed.publish(point, 2.0, 20.0);
+        }
+
+        // then readings at the points beyond its queue are dropped
+        assertEquals(3, poll(conflating).size());
+        assertEquals(1, conflating.takeDropped());
+        assertEquals(4, liveFeed.stats().conflated());
+    }
+}
@@ -0,0 +1,80 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.testsupport.InMemoryWeatherDataAccess;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeaTemperatureParallelScanTest {
+    private static final SeaTemperatureGrid noGrid = new SeaTemperatureGrid(null, false, false, Duration.ZERO, 0, 0);
+    private static final AdaptiveBatchPolicy batchPolicy = AdaptiveBatchPolicy.fixed(SeaTemperatureService.initial_batch_size, 10);
+    private static final BoundingBox earth = new BoundingBox(-90.0, 90.0, -180.0, 180.0);
+
+    private static List<SeaTemperature> stream(InMemoryWeatherDataAccess weatherDataAccess, SeaTemperatureParallelScan parallelScan, BoundingBox boundingBox) {
+        SeaTemperatureService service = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO),
+                noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), parallelScan, batchPolicy, new SimpleMeterRegistry());
+        List<SeaTemperature> seaTemperatures = new ArrayList<>();
+        service.streamSeaTemperatures(boundingBox, seaTemperatures::addAll);
+        return seaTemperatures;
+    }
+
+    @Test
+    void parallelScan_returnsTheSameUniquePointsAsOneCursor() {
+        // given 20,000 random readings, and a cursor per 2,000 readings up to 4
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureParallelScan parallelScan = new SeaTemperatureParallelScan(weatherDataAccess, true, 4, 2_000);
+
+        for (BoundingBox boundingBox : List.of(earth, new BoundingBox(-60.0, 60.0, -180.0, 0.0), new BoundingBox(50.0, 51.0, 1.0, 2.0))) {
+            // when the bounding box is streamed from concurrent cursors and from a single cursor
+            List<SeaTemperature> sequential = stream(weatherDataAccess, new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), boundingBox);
+            List<SeaTemperature> parallel = stream(weatherDataAccess, parallelScan, boundingBox);
+
+            // then the same unique points are sent, including those on the edges between partitions only once
+            assertEquals(new HashSet<>(sequential), new HashSet<>(parallel), "Parallel scan of " + boundingBox);
+            assertEquals(sequential.size(), parallel.size(), "Parallel scan of " + boundingBox);
+        }
+        // and only the bounding boxes with enough readings were read concurrently (the earth by 4, a third of it by 3),
+        // each as a few partitions per cursor
+        assertEquals(2, parallelScan.stats().parallelStreams());
+        assertEquals(7, parallelScan.stats().cursors());
+        assertTrue(parallelScan.stats().partitions() > 7, "Expected several partitions per cursor");
+    }
+
+    @Test
+    void parallelScan_failedPartitionCancelsTheRest() {
+        // given partitions which read forever, except the first to be read, which fails after a few readings
+        AtomicBoolean failed = new AtomicBoolean();
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess() {
+            @Override
+            public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+                boolean fails = failed.compareAndSet(false, true);
+                for (int i = 0; ; i++) {
+                    if (fails && i == 1_000) {
+                        throw new IllegalStateException("Simulated partition failure");
+                    }
+                    seaTemperatureConsumer.accept(boundingBox.west(), boundingBox.south(), i);
+                }
+            }
+        };
+        SeaTemperatureParallelScan parallelScan = new SeaTemperatureParallelScan(weatherDataAccess, true, 4, 2_000);
+
+        // when the earth is scanned
+        IllegalStateException failure = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(IllegalStateException.class,
+                () -> parallelScan.streamSeaTemperatures(earth, SeaTemperatureQueryOptions.DEFAULTS, (_, _, _) -> {})));
+
+        // then the partition's failure is thrown, once the other cursors have stopped
+        assertEquals("Simulated partition failure", failure.getMessage());
+        assertEquals(1, parallelScan.stats().failedStreams());
+    }
+}
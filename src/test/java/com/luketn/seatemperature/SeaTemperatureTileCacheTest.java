@@ -0,0 +1,248 @@
+package com.luketn.seatemperature;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureDedupMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureGrid;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess.SeaTemperatureConsumer;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import com.luketn.testsupport.InMemoryWeatherDataAccess;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeaTemperatureTileCacheTest {
+    private static final AdaptiveBatchPolicy batchPolicy = AdaptiveBatchPolicy.fixed(SeaTemperatureService.initial_batch_size, 10);
+    private static final SeaTemperatureGrid noGrid = new SeaTemperatureGrid(null, false, false, Duration.ZERO, 0, 0);
+
+    private static List<SeaTemperature> stream(SeaTemperatureService service, BoundingBox boundingBox) {
+        List<SeaTemperature> seaTemperatures = new ArrayList<>();
+        service.streamSeaTemperatures(boundingBox, seaTemperatures::addAll);
+        return seaTemperatures;
+    }
+
+    @Test
+    void cachedTiles_returnTheSameUniquePointsAsMongoDB() {
+        // given a service with the cache disabled and one with it enabled
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofMinutes(5));
+        SeaTemperatureService uncached = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO), noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+        SeaTemperatureService cached = new SeaTemperatureService(weatherDataAccess, tileCache, noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+
+        for (BoundingBox boundingBox : List.of(
+                new BoundingBox(-90.0, 90.0, -180.0, 180.0),
+                new BoundingBox(48.85387273165656, 56.791853873960605, -12.980690002441408, 13.386497497558596),
+                new BoundingBox(50.0, 51.0, 1.0, 2.0), // exactly on tile edges
+                new BoundingBox(-10.25, 3.5, 170.0, 180.0))) {
+            // when the same bounding box is streamed with and without the cache, cold then warm
+            List<SeaTemperature> expected = stream(uncached, boundingBox);
+            List<SeaTemperature> cold = stream(cached, boundingBox);
+            int queriesAfterCold = weatherDataAccess.queries.get();
+            List<SeaTemperature> warm = stream(cached, boundingBox);
+
+            // then the same set of unique points is returned, and the warm stream is identical and needs no queries
+            assertEquals(new HashSet<>(expected), new HashSet<>(cold), "Cold cache for " + boundingBox);
+            assertEquals(expected.size(), cold.size(), "Cold cache for " + boundingBox);
+            assertEquals(cold, warm, "Warm cache for " + boundingBox);
+            assertEquals(queriesAfterCold, weatherDataAccess.queries.get(), "Warm cache should not query for " + boundingBox);
+        }
+        assertTrue(tileCache.stats().hits() > 0);
+        assertTrue(tileCache.stats().misses() > 0);
+        assertEquals(0, tileCache.stats().evictions());
+    }
+
+    @Test
+    void panning_onlyFetchesNewTiles() {
+        // given a warm cache for a viewport
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofMinutes(5));
+        SeaTemperatureService cached = new SeaTemperatureService(weatherDataAccess, tileCache, noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+        stream(cached, new BoundingBox(40.0, 48.0, 0.0, 16.0));
+        long missesBefore = tileCache.stats().misses();
+
+        // when the viewport pans east by a quarter of its width
+        stream(cached, new BoundingBox(40.0, 48.0, 4.0, 20.0));
+
+        // then only the newly exposed column of tiles is fetched
+        long newMisses = tileCache.stats().misses() - missesBefore;
+        assertTrue(newMisses > 0 && newMisses < missesBefore, "Expected only new tiles to miss, but %d of %d missed".formatted(newMisses, missesBefore));
+    }
+
+    private static boolean contains(BoundingBox boundingBox, SeaTemperature point) {
+        return point.lat() >= boundingBox.south() && point.lat() <= boundingBox.north()
+                && point.lon() >= boundingBox.west() && point.lon() <= boundingBox.east();
+    }
+
+    @Test
+    void viewportDelta_streamsOnlyTheNewlyExposedPoints() {
+        // given a client holding every point of a viewport
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureService service = new SeaTemperatureService(weatherDataAccess, new SeaTemperatureTileCache(weatherDataAccess, false, 0, Duration.ZERO), noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+        BoundingBox previous = new BoundingBox(40.0, 48.0, 0.0, 16.0);
+        BoundingBox current = new BoundingBox(42.5, 50.5, 4.0, 20.0);
+        List<SeaTemperature> held = stream(service, previous);
+
+        // when it pans, and only the delta is streamed
+        SeaTemperatureService.ViewportDelta delta = service.viewportDelta(previous, current, service.countSeaTemperatures(current, SeaTemperatureQueryOptions.DEFAULTS), SeaTemperatureQueryOptions.DEFAULTS);
+        List<SeaTemperature> added = new ArrayList<>();
+        service.streamSeaTemperatures(delta, SeaTemperatureQueryOptions.DEFAULTS, added::addAll);
+
+        // then the points held, less those evicted (which share edges with the new viewport, so only those outside it),
+        // plus those added, are exactly the points of the new viewport
+        HashSet<SeaTemperature> kept = new HashSet<>(held);
+        kept.removeIf(point -> delta.evicted().stream().anyMatch(box -> contains(box, point)) && !contains(current, point));
+        kept.addAll(added);
+        assertEquals(new HashSet<>(stream(service, current)), kept);
+        assertTrue(added.size() < stream(service, current).size());
+    }
+
+    @Test
+    void maxPoints_evictsLeastRecentlyUsedTiles() {
+        // given a cache that can hold only a few hundred points
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, 300, Duration.ofMinutes(5));
+        SeaTemperatureService cached = new SeaTemperatureService(weatherDataAccess, tileCache, noGrid, new SeaTemperatureLevelOfDetail(weatherDataAccess, false, 0), new SeaTemperatureParallelScan(weatherDataAccess, false, 0, 0), batchPolicy, new SimpleMeterRegistry());
+
+        // when the whole earth is streamed
+        stream(cached, new BoundingBox(-90.0, 90.0, -180.0, 180.0));
+
+        // then tiles were evicted to stay within the bound
+        assertTrue(tileCache.stats().evictions() > 0);
+        assertTrue(tileCache.stats().points() <= 300);
+    }
+
+    @Test
+    void tiles_areCachedPerQueryAndDedupMode() {
+        // given a warm cache for a viewport, streamed with the default options
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess();
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofMinutes(5));
+        BoundingBox boundingBox = new BoundingBox(40.0, 48.0, 0.0, 16.0);
+        tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, (_, _, _) -> {});
+        int queriesWarm = weatherDataAccess.queries.get();
+
+        // when it is streamed choosing the same options as the defaults, then other options
+        tileCache.streamSeaTemperatures(boundingBox, new SeaTemperatureQueryOptions(SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM), (_, _, _) -> {});
+        int queriesSameOptions = weatherDataAccess.queries.get();
+        tileCache.streamSeaTemperatures(boundingBox, new SeaTemperatureQueryOptions(SeaTemperatureQueryMode.GEO_WITHIN, SeaTemperatureDedupMode.SERVER), (_, _, _) -> {});
+
+        // then the same options are served from the cache, and the others query MongoDB for their own tiles
+        assertEquals(queriesWarm, queriesSameOptions);
+        assertEquals(2 * queriesWarm, weatherDataAccess.queries.get());
+    }
+
+    @Test
+    void concurrentMisses_shareOneQueryPerTile() throws InterruptedException {
+        // given MongoDB holding the first query until a second stream has missed on the same tile
+        CountDownLatch secondStreamWaiting = new CountDownLatch(1);
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess() {
+            @Override
+            public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+                try {
+                    assertTrue(secondStreamWaiting.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.streamSeaTemperatures(boundingBox, options, seaTemperatureConsumer);
+            }
+        };
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofMinutes(5));
+        SeaTemperature reading = weatherDataAccess.readings.getFirst();
+        BoundingBox boundingBox = new BoundingBox(reading.lat(), reading.lat(), reading.lon(), reading.lon()); // a single tile
+
+        // when two streams miss on it at once
+        List<SeaTemperature> first = new ArrayList<>();
+        Thread firstStream = Thread.ofVirtual().start(() -> tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS,
+                (longitude, latitude, temperature) -> first.add(new SeaTemperature(longitude, latitude, temperature))));
+        while (tileCache.stats().misses() == 0) {
+            Thread.onSpinWait();
+        }
+        List<SeaTemperature> second = new ArrayList<>();
+        tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, new SeaTemperatureConsumer() {
+            @Override
+            public void accept(double longitude, double latitude, double seaSurfaceTemperature) {
+                second.add(new SeaTemperature(longitude, latitude, seaSurfaceTemperature));
+            }
+
+            @Override
+            public void fetchingMore() {
+                secondStreamWaiting.countDown();
+            }
+        });
+        firstStream.join();
+
+        // then MongoDB is queried once, and both streams get the tile's points
+        assertEquals(1, weatherDataAccess.queries.get());
+        assertEquals(1, tileCache.stats().misses());
+        assertEquals(1, tileCache.stats().sharedMisses());
+        assertFalse(first.isEmpty());
+        assertEquals(first, second);
+    }
+
+    @Test
+    void concurrentMisses_aFailingStreamDoesNotEndTheOthers() throws InterruptedException {
+        // given MongoDB holding the first query until a second stream has missed on the same tile
+        CountDownLatch secondStreamWaiting = new CountDownLatch(1);
+        InMemoryWeatherDataAccess weatherDataAccess = new InMemoryWeatherDataAccess() {
+            @Override
+            public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+                try {
+                    assertTrue(secondStreamWaiting.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.streamSeaTemperatures(boundingBox, options, seaTemperatureConsumer);
+            }
+        };
+        SeaTemperatureTileCache tileCache = new SeaTemperatureTileCache(weatherDataAccess, true, Long.MAX_VALUE, Duration.ofMinutes(5));
+        SeaTemperature reading = weatherDataAccess.readings.getFirst();
+        BoundingBox boundingBox = new BoundingBox(reading.lat(), reading.lat(), reading.lon(), reading.lon()); // a single tile
+
+        // when the stream loading the tile fails on its first point (as if its client had gone away), while another waits
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        Thread firstStream = Thread.ofVirtual().start(() -> {
+            try {
+                tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, (_, _, _) -> {
+                    throw new IllegalStateException("Client went away");
+                });
+            } catch (IllegalStateException e) {
+                firstFailure.set(e);
+            }
+        });
+        while (tileCache.stats().misses() == 0) {
+            Thread.onSpinWait();
+        }
+        List<SeaTemperature> second = new ArrayList<>();
+        tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS, new SeaTemperatureConsumer() {
+            @Override
+            public void accept(double longitude, double latitude, double seaSurfaceTemperature) {
+                second.add(new SeaTemperature(longitude, latitude, seaSurfaceTemperature));
+            }
+
+            @Override
+            public void fetchingMore() {
+                secondStreamWaiting.countDown();
+            }
+        });
+        firstStream.join();
+
+        // then only the first stream fails, and the waiting stream gets the whole tile, as does the next from the cache
+        assertNotNull(firstFailure.get());
+        assertEquals(1, tileCache.stats().sharedMisses());
+        List<SeaTemperature> cached = new ArrayList<>();
+        tileCache.streamSeaTemperatures(boundingBox, SeaTemperatureQueryOptions.DEFAULTS,
+                (longitude, latitude, temperature) -> cached.add(new SeaTemperature(longitude, latitude, temperature)));
+        assertFalse(second.isEmpty());
+        assertEquals(cached, second);
+        assertEquals(1, weatherDataAccess.queries.get());
+    }
+}
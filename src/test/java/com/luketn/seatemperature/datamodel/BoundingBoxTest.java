@@ -0,0 +1,58 @@
+package com.luketn.seatemperature.datamodel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundingBoxTest {
+
+    @Test
+    void minus_coversEveryPointOutsideTheOtherBoxOnce() {
+        // given a viewport panned north east of the previous one
+        BoundingBox previous = new BoundingBox(0.0, 10.0, 0.0, 20.0);
+        BoundingBox current = new BoundingBox(4.0, 14.0, 5.0, 25.0);
+
+        // when the previous viewport is subtracted from the current one, and the reverse
+        List<BoundingBox> added = current.minus(previous);
+        List<BoundingBox> evicted = previous.minus(current);
+
+        // then the added parts are the strip to the north and the strip to the east below it
+        assertEquals(List.of(
+                new BoundingBox(10.0, 14.0, 5.0, 25.0),
+                new BoundingBox(4.0, 10.0, 20.0, 25.0)), added);
+        // and the evicted parts are the strip to the south and the strip to the west above it
+        assertEquals(List.of(
+                new BoundingBox(0.0, 4.0, 0.0, 20.0),
+                new BoundingBox(4.0, 10.0, 0.0, 5.0)), evicted);
+        // and every point of the current viewport is in exactly one of the added parts or the overlap, apart from edges
+        BoundingBox overlap = current.intersection(previous);
+        for (double lat = 4.5; lat < 14; lat++) {
+            for (double lon = 5.5; lon < 25; lon++) {
+                double latitude = lat, longitude = lon;
+                long containing = added.stream().filter(box -> contains(box, latitude, longitude)).count()
+                        + (contains(overlap, latitude, longitude) ? 1 : 0);
+                assertEquals(1, containing, "lat %s lon %s".formatted(lat, lon));
+            }
+        }
+    }
+
+    @Test
+    void minus_disjointAndContainedBoxes() {
+        // given boxes which don't overlap, and one within the other
+        BoundingBox box = new BoundingBox(0.0, 10.0, 0.0, 10.0);
+        BoundingBox disjoint = new BoundingBox(20.0, 30.0, 0.0, 10.0);
+        BoundingBox within = new BoundingBox(2.0, 8.0, 2.0, 8.0);
+
+        // then the whole box is outside a disjoint one, and nothing is outside one containing it
+        assertNull(box.intersection(disjoint));
+        assertEquals(List.of(box), box.minus(disjoint));
+        assertEquals(List.of(), within.minus(box));
+        assertEquals(4, box.minus(within).size());
+    }
+
+    private static boolean contains(BoundingBox box, double latitude, double longitude) {
+        return latitude >= box.south() && latitude <= box.north() && longitude >= box.west() && longitude <= box.east();
+    }
+}
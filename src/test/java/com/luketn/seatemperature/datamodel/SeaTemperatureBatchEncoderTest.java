@@ -0,0 +1,71 @@
+package com.luketn.seatemperature.datamodel;
+
+import com.luketn.util.JsonUtil;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeaTemperatureBatchEncoderTest {
+
+    private static SeaTemperatureBatch batchOf(double... lonLatTemps) {
+        SeaTemperatureBatch batch = new SeaTemperatureBatch(lonLatTemps.length / 3);
+        for (int i = 0; i < lonLatTemps.length; i += 3) {
+            batch.add(lonLatTemps[i], lonLatTemps[i + 1], lonLatTemps[i + 2]);
+        }
+        return batch;
+    }
+
+    @Test
+    void encode_decodesToTheSamePoints() {
+        // given a batch including the extremes of each column
+        SeaTemperatureBatch batch = batchOf(
+                1.5, -2.25, 18.0,
+                -180, -90, -2.5,
+                180, 90, 35.25,
+                0.00001, -0.00001, 0);
+
+        // when it is encoded and decoded
+        SeaTemperatureBatchEncoder encoder = new SeaTemperatureBatchEncoder();
+        int length = encoder.encode(batch);
+        List<SeaTemperature> decoded = SeaTemperatureBatchEncoder.decode(Arrays.copyOf(encoder.buffer(), length));
+
+        // then the points are the same
+        assertEquals(batch, decoded);
+
+        // and the base64 form is of the same bytes
+        assertArrayEquals(Arrays.copyOf(encoder.buffer(), length), Base64.getDecoder().decode(encoder.base64()));
+    }
+
+    @Test
+    void encode_quantizesCoordinatesAndTemperatures() {
+        // given points with more precision than the format keeps
+        SeaTemperatureBatchEncoder encoder = new SeaTemperatureBatchEncoder();
+        int length = encoder.encode(batchOf(151.2093456, -33.8688197, 21.456));
+
+        // then they are rounded to 1e-5 degrees and 0.01 °C
+        assertEquals(List.of(new SeaTemperature(151.20935, -33.86882, 21.46)), SeaTemperatureBatchEncoder.decode(Arrays.copyOf(encoder.buffer(), length)));
+    }
+
+    @Test
+    void encode_isSmallerThanJson() {
+        // given a batch of nearby points, as a cursor returns them
+        Random random = new Random(3);
+        SeaTemperatureBatch batch = new SeaTemperatureBatch(500);
+        for (int i = 0; i < 500; i++) {
+            batch.add(random.nextDouble(10, 12), random.nextDouble(-40, -38), random.nextDouble(14, 16));
+        }
+
+        // when it is encoded
+        int length = new SeaTemperatureBatchEncoder().encode(batch);
+
+        // then it takes a fraction of the JSON size
+        int jsonLength = JsonUtil.toJson(batch).getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(length * 5 < jsonLength, "Expected %d bytes to be under a fifth of %d JSON bytes".formatted(length, jsonLength));
+    }
+}
@@ -0,0 +1,57 @@
+package com.luketn.testsupport;
+
+import com.luketn.dataaccess.mongodb.SeaTemperatureDedupMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryMode;
+import com.luketn.dataaccess.mongodb.SeaTemperatureQueryOptions;
+import com.luketn.dataaccess.mongodb.WeatherDataAccess;
+import com.luketn.seatemperature.datamodel.BoundingBox;
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves random sea temperature readings (including duplicates and points on tile edges) with the same closed range
+ * semantics as MongoDB, counting the queries and counts made.
+ */
+public class InMemoryWeatherDataAccess extends WeatherDataAccess {
+    public final List<SeaTemperature> readings = new ArrayList<>();
+    public final AtomicInteger queries = new AtomicInteger();
+    public final AtomicInteger counts = new AtomicInteger();
+
+    public InMemoryWeatherDataAccess() {
+        super(null, null, 500, SeaTemperatureQueryMode.RANGE, SeaTemperatureDedupMode.JVM);
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            double longitude = Math.round(random.nextDouble(-180, 180) * 4) / 4d;
+            double latitude = Math.round(random.nextDouble(-90, 90) * 4) / 4d;
+            readings.add(new SeaTemperature(longitude, latitude, random.nextDouble(-2, 30)));
+        }
+    }
+
+    @Override
+    public void streamSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, SeaTemperatureConsumer seaTemperatureConsumer) {
+        queries.incrementAndGet();
+        for (SeaTemperature reading : readings) {
+            if (contains(boundingBox, reading)) {
+                seaTemperatureConsumer.accept(reading.lon(), reading.lat(), reading.temp());
+            }
+        }
+    }
+
+    @Override
+    public long countSeaTemperatures(BoundingBox boundingBox, SeaTemperatureQueryOptions options, int limit) {
+        counts.incrementAndGet();
+        return readings.stream()
+                .filter(reading -> contains(boundingBox, reading))
+                .limit(limit)
+                .count();
+    }
+
+    private static boolean contains(BoundingBox boundingBox, SeaTemperature reading) {
+        return reading.lon() >= boundingBox.west() && reading.lon() <= boundingBox.east()
+                && reading.lat() >= boundingBox.south() && reading.lat() <= boundingBox.north();
+    }
+}
@@ -0,0 +1,48 @@
+package com.luketn.testsupport;
+
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.Container.ExecResult;
+import org.testcontainers.containers.ExecConfig;
+import org.testcontainers.containers.MongoDBContainer;
+
+import java.io.IOException;
+
+import static com.luketn.dataaccess.mongodb.WeatherDataAccess.COLLECTION_NAME;
+import static org.testcontainers.shaded.org.apache.commons.lang3.ArrayUtils.toArray;
+
+/**
+ * A MongoDB container with the seed-data directory mounted, for tests to import the sample weather data into.
+ */
+public final class SeedDataMongoDB {
+    public static final String database_name = "testdb";
+
+    private SeedDataMongoDB() {}
+
+    public static MongoDBContainer container() {
+        return new MongoDBContainer("mongodb/mongodb-community-server:8.0.12-ubi9")
+                .withClasspathResourceMapping("/seed-data", "/tmp/seed-data", BindMode.READ_ONLY);
+    }
+
+    /**
+     * Imports the sample weather data into the collection, once the container has started.
+     */
+    public static void importSeedData(MongoDBContainer mongoDBContainer) throws IOException, InterruptedException {
+        ExecResult execResult = mongoDBContainer.execInContainer(
+                ExecConfig.builder()
+                        .workDir("/tmp/seed-data")
+                        .command(
+                                toArray(
+                                    "mongoimport",
+                                    "-d", database_name,
+                                    "-c", COLLECTION_NAME,
+                                    "--jsonArray",
+                                    "sample_weatherdata.data.json"
+                                 )
+                        ).build()
+        );
+        int exitCode = execResult.getExitCode();
+        if (exitCode != 0) {
+            throw new RuntimeException("Failed to import seed data into MongoDB container, exit code: %d\nstdout: %s\nstderr: %s".formatted(exitCode, execResult.getStdout(), execResult.getStderr()));
+        }
+    }
+}
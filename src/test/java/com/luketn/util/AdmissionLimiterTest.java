@@ -0,0 +1,82 @@
+package com.luketn.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionLimiterTest {
+
+    @Test
+    void tryAcquire_admitsUpToTheLimitThenRejects() throws InterruptedException {
+        // given a limit of two, with no queue
+        AdmissionLimiter limiter = new AdmissionLimiter(2, 1, 4, 0, Duration.ofMillis(50), Duration.ofHours(1));
+
+        // when three requests arrive at once
+        AdmissionLimiter.Permit first = limiter.tryAcquire();
+        AdmissionLimiter.Permit second = limiter.tryAcquire();
+        AdmissionLimiter.Permit third = limiter.tryAcquire();
+
+        // then the third is turned away
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(third);
+        assertEquals(new AdmissionLimiter.AdmissionStats(2, 2, 0, 2, 0, 1, 0, 0), limiter.stats());
+    }
+
+    @Test
+    void tryAcquire_queuedRequestIsAdmittedOnRelease() throws Exception {
+        // given a limit of one, in use, with room for one waiting request
+        AdmissionLimiter limiter = new AdmissionLimiter(1, 1, 1, 1, Duration.ofSeconds(10), Duration.ofHours(1));
+        AdmissionLimiter.Permit first = limiter.tryAcquire();
+        CompletableFuture<AdmissionLimiter.Permit> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.tryAcquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (limiter.stats().queued() == 0) {
+            Thread.onSpinWait();
+        }
+
+        // when the first request finishes
+        first.release();
+        first.release(); // only the first release counts
+
+        // then the queued request is admitted
+        assertNotNull(queued.get(5, TimeUnit.SECONDS));
+        AdmissionLimiter.AdmissionStats stats = limiter.stats();
+        assertEquals(1, stats.inFlight());
+        assertEquals(1, stats.admittedAfterQueueing());
+        assertEquals(0, stats.rejected());
+    }
+
+    @Test
+    void release_limitAdaptsToLatency() throws InterruptedException {
+        // given a limit of ten which every request is slower than
+        AdmissionLimiter slow = new AdmissionLimiter(10, 2, 20, 0, Duration.ZERO, Duration.ZERO);
+
+        // when a request finishes
+        slow.tryAcquire().release();
+
+        // then the limit is cut multiplicatively
+        assertEquals(9, slow.stats().limit());
+
+        // given a limit of two which every request is faster than
+        AdmissionLimiter fast = new AdmissionLimiter(2, 2, 20, 0, Duration.ZERO, Duration.ofHours(1));
+
+        // when requests finish while the limit is in use, and then while it is not
+        AdmissionLimiter.Permit first = fast.tryAcquire();
+        AdmissionLimiter.Permit second = fast.tryAcquire();
+        first.release();
+        second.release();
+
+        // then the limit grows by one only while it was in use
+        assertEquals(3, fast.stats().limit());
+        assertEquals(1, fast.stats().limitIncreases());
+    }
+}
@@ -0,0 +1,232 @@
+package com.luketn.util;
+
+import com.luketn.seatemperature.datamodel.SeaTemperature;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SynchronousSseTest {
+
+    /**
+     * Records what has been flushed to the client, separately from what has only been written.
+     */
+    static class FlushRecordingResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private volatile String flushed = "";
+        private volatile byte[] flushedBytes = new byte[0];
+        private volatile int flushes = 0;
+
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                flushed = written.toString(StandardCharsets.UTF_8);
+                flushedBytes = written.toByteArray();
+                flushes++;
+            }
+        };
+
+        FlushRecordingResponse() {
+            super(new MockHttpServletResponse());
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return outputStream;
+        }
+    }
+
+    private static String event(Object data) {
+        return "data: " + JsonUtil.toJson(data) + "\n\n";
+    }
+
+    @Test
+    void sendEvent_writesSameFramesAsToJson() {
+        // given an SSE stream which flushes every event
+        FlushRecordingResponse response = new FlushRecordingResponse();
+        SynchronousSse sse = SynchronousSse.forResponse(response);
+        List<SeaTemperature> batch = List.of(new SeaTemperature(1.5, -2.25, 18.0), new SeaTemperature(3.0, 4.0, 19.5));
+
+        // when events are sent
+        sse.sendEvent(batch);
+        sse.sendEvent(new SynchronousSse.ErrorEvent("500 INTERNAL_SERVER_ERROR", "id", null));
+
+        // then each is flushed as it is sent, framed exactly as the serialized JSON
+        assertEquals(event(batch) + event(new SynchronousSse.ErrorEvent("500 INTERNAL_SERVER_ERROR", "id", null)), response.flushed);
+        assertEquals(2, response.flushes);
+    }
+
+    @Test
+    void sendEvent_coalescesFlushesAfterTheFirstEvent() {
+        // given an SSE stream which flushes every 3 events (and not on a deadline within the test)
+        FlushRecordingResponse response = new FlushRecordingResponse();
+        SynchronousSse sse = SynchronousSse.forResponse(response, new SynchronousSse.FlushPolicy(3, Duration.ofHours(1)));
+
+        // when the first event is sent, then it is flushed immediately
+        sse.sendEvent(List.of(1));
+        assertEquals(event(List.of(1)), response.flushed);
+
+        // when two more are sent, then they are held back
+        sse.sendEvent(List.of(2));
+        sse.sendEvent(List.of(3));
+        assertEquals(event(List.of(1)), response.flushed);
+
+        // when a third is sent, then all three are flushed together
+        sse.sendEvent(List.of(4));
+        assertEquals(event(List.of(1)) + event(List.of(2)) + event(List.of(3)) + event(List.of(4)), response.flushed);
+        assertEquals(2, response.flushes);
+
+        // when the stream completes, then anything left is flushed
+        sse.sendEvent(List.of(5));
+        sse.complete();
+        assertTrue(response.flushed.endsWith(event(List.of(5))));
+        assertEquals(3, response.flushes);
+    }
+
+    @Test
+    void sendEvent_flushesOnDeadlineWhenTheSourceStalls() throws InterruptedException {
+        // given an SSE stream which flushes every 100 events or 20ms
+        FlushRecordingResponse response = new FlushRecordingResponse();
+        SynchronousSse sse = SynchronousSse.forResponse(response, new SynchronousSse.FlushPolicy(100, Duration.ofMillis(20)));
+
+        // when two events are sent, and then no more for a while
+        sse.sendEvent(List.of(1));
+        sse.sendEvent(List.of(2));
+
+        // then the second is flushed once the deadline passes
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (response.flushes < 2 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertEquals(event(List.of(1)) + event(List.of(2)), response.flushed);
+        sse.complete();
+    }
+
+    @Test
+    void forResponse_clientAlreadyGone_isNotLeftActive() {
+        // given a client that has gone away before the headers are flushed
+        FlushRecordingResponse response = new FlushRecordingResponse() {
+            @Override
+            public void flushBuffer() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        int activeStreams = SseMetrics.synchronous.activeStreams();
+
+        // when the stream is started, then it fails as a broken pipe
+        assertThrows(SynchronousSse.SseBrokenPipe.class, () -> SynchronousSse.forResponse(response));
+
+        // and it is not counted as an active stream, as there is no stream to complete
+        assertEquals(activeStreams, SseMetrics.synchronous.activeStreams());
+    }
+
+    private static String inflateSyncFlushedGzip(byte[] gzip) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(Arrays.copyOfRange(gzip, 10, gzip.length)); // after the gzip header
+        byte[] inflated = new byte[64 * 1024];
+        int length = inflater.inflate(inflated);
+        inflater.end();
+        return new String(inflated, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sendEvent_gzipsWithASyncFlushPerFlush() throws DataFormatException, IOException {
+        // given a gzip compressed SSE stream which flushes every event
+        SseCompression compression = new SseCompression(true, -1);
+        FlushRecordingResponse response = new FlushRecordingResponse();
+        SynchronousSse sse = SynchronousSse.forResponse(response, SynchronousSse.FlushPolicy.IMMEDIATE, compression, SseCompression.Encoding.GZIP);
+
+        // when the first event is sent, then it can be decompressed from what was flushed, before the stream ends
+        sse.sendEvent(List.of(1));
+        assertEquals(event(List.of(1)), inflateSyncFlushedGzip(response.flushedBytes));
+
+        // when more events are sent and the stream completes, then the whole body is valid gzip of every event
+        sse.sendEvent(List.of(2));
+        sse.complete();
+        byte[] body = new GZIPInputStream(new ByteArrayInputStream(response.flushedBytes)).readAllBytes();
+        assertEquals(event(List.of(1)) + event(List.of(2)), new String(body, StandardCharsets.UTF_8));
+        assertEquals(1, compression.stats().streams());
+    }
+
+    @Test
+    void sendEvent_compressesPointBatchesAtLeastFiveTimes() throws IOException {
+        // given a gzip compressed SSE stream, and batches of points with one decimal place, as in the seed data
+        SseCompression compression = new SseCompression(true, -1);
+        FlushRecordingResponse response = new FlushRecordingResponse();
+        SynchronousSse sse = SynchronousSse.forResponse(response, new SynchronousSse.FlushPolicy(8, Duration.ofHours(1)), compression, SseCompression.Encoding.GZIP);
+        Random random = new Random(11);
+
+        // when the batches are sent
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            List<SeaTemperature> batch = new ArrayList<>();
+            for (int j = 0; j < 50; j++) {
+                batch.add(new SeaTemperature(random.nextInt(-1800, 1800) / 10d, random.nextInt(-900, 900) / 10d, random.nextInt(-20, 300) / 10d));
+            }
+            sse.sendEvent(batch);
+            expected.append(event(batch));
+        }
+        sse.complete();
+
+        // then they decompress to the same events, from at most a fifth of the bytes
+        byte[] body = new GZIPInputStream(new ByteArrayInputStream(response.flushedBytes)).readAllBytes();
+        assertEquals(expected.toString(), new String(body, StandardCharsets.UTF_8));
+        SseCompression.CompressionStats stats = compression.stats();
+        assertEquals(body.length, stats.uncompressedBytes());
+        assertEquals(response.flushedBytes.length, stats.compressedBytes());
+        assertTrue(stats.compressionRatio() >= 5, "Expected at least 5x compression, got %.1fx".formatted(stats.compressionRatio()));
+    }
+
+    @Test
+    void encodingFor_prefersGzipWhenAdvertised() {
+        SseCompression compression = new SseCompression(true, -1);
+        assertEquals(SseCompression.Encoding.GZIP, compression.encodingFor(requestAccepting("gzip, deflate, br")));
+        assertEquals(SseCompression.Encoding.DEFLATE, compression.encodingFor(requestAccepting("deflate")));
+        assertEquals(SseCompression.Encoding.DEFLATE, compression.encodingFor(requestAccepting("gzip;q=0, deflate")));
+        assertNull(compression.encodingFor(requestAccepting("br")));
+        assertNull(compression.encodingFor(new MockHttpServletRequest()));
+        assertNull(new SseCompression(false, -1).encodingFor(requestAccepting("gzip")));
+    }
+
+    private static MockHttpServletRequest requestAccepting(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+}